@@ -22,15 +22,36 @@
 package org.jboss.ejb3.jndi.binder;
 
 import javax.naming.Context;
+import javax.naming.Name;
+import javax.naming.NameNotFoundException;
 import javax.naming.NamingException;
+import javax.naming.Reference;
 
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import org.jboss.ejb3.jndi.binder.impl.BindingMetrics;
+import org.jboss.ejb3.jndi.binder.impl.BindingPlan;
+import org.jboss.ejb3.jndi.binder.impl.BindingStatistics;
+import org.jboss.ejb3.jndi.binder.impl.GenerationSwitch;
+import org.jboss.ejb3.jndi.binder.impl.NamespaceShutdown;
+import org.jboss.ejb3.jndi.binder.impl.RebindRegistry;
+import org.jboss.ejb3.jndi.binder.impl.BindingPlan.Namespace;
+import org.jboss.ejb3.jndi.binder.impl.StagedBindings;
 import org.jboss.ejb3.jndi.binder.impl.View;
 import org.jboss.ejb3.jndi.binder.metadata.SessionBeanType;
+import org.jboss.ejb3.jndi.binder.spi.BindListener;
 import org.jboss.ejb3.jndi.binder.spi.ProxyFactory;
+import org.jboss.ejb3.jndi.binder.spi.UnbindListener;
 import org.jboss.logging.Logger;
 import org.jboss.reloaded.naming.spi.JavaEEApplication;
 import org.jboss.reloaded.naming.spi.JavaEEModule;
@@ -44,12 +65,30 @@ import org.jboss.util.naming.Util;
 public class EJBBinder
 {
    private static final Logger log = Logger.getLogger(EJBBinder.class);
+
+   private static final Namespace[] UNBIND_ORDER = { Namespace.MODULE, Namespace.APP, Namespace.GLOBAL };
    
    private SessionBeanType bean;
    private Context globalContext;
    private ProxyFactory proxyFactory;
 
    private Collection<View> views = new LinkedList<View>();
+   private Map<View, Object> proxies = new HashMap<View, Object>();
+   private final BindingPlan plan;
+   private Map<Context, Map<Name, Context>> subcontexts = new IdentityHashMap<Context, Map<Name, Context>>();
+   private boolean rollbackOnFailure;
+   private StagedBindings staging;
+   private EJBBinder replaced;
+   private Map<Context, Map<String, Bound>> replacedNames;
+   private RebindRegistry rebindRegistry;
+   private GenerationSwitch generationSwitch;
+   private NamespaceShutdown namespaceShutdown;
+   private BindingStatistics statistics;
+   private boolean timed;
+   private long produceNanos;
+   private boolean detached;
+   private List<BindListener> bindListeners = new CopyOnWriteArrayList<BindListener>();
+   private List<UnbindListener> unbindListeners = new CopyOnWriteArrayList<UnbindListener>();
 
    public EJBBinder(SessionBeanType bean)
    {
@@ -62,6 +101,33 @@ public class EJBBinder
 
       if(bean.isLocalBean())
          views.add(new View(bean.getEJBClass(), View.Type.LOCAL_BEAN, bean));
+
+      this.plan = createPlan();
+   }
+
+   private BindingPlan createPlan()
+   {
+      BindingPlan.Builder builder = new BindingPlan.Builder();
+      boolean singleView = hasSingleView();
+      for(View view : views)
+      {
+         Class<?> businessInterface = view.getBusinessInterface();
+         // 4.4.1
+         builder.add(view, Namespace.GLOBAL, getGlobalJNDIName(businessInterface), false);
+         // bind to an additional JNDI name (as specified by 4.4.1 section of EJB3.10
+         // when the bean exposes just 1 view
+         if(singleView)
+            builder.add(view, Namespace.GLOBAL, getGlobalJNDIName(null), true);
+         // 4.4.1.1
+         builder.add(view, Namespace.APP, getAppJNDIName(businessInterface), false);
+         if(singleView)
+            builder.add(view, Namespace.APP, getAppJNDIName(null), true);
+         // 4.4.1.2
+         builder.add(view, Namespace.MODULE, getModuleJNDIName(businessInterface), false);
+         if(singleView)
+            builder.add(view, Namespace.MODULE, getModuleJNDIName(null), true);
+      }
+      return builder.build();
    }
 
    private static void constructViews(Collection<View> views, Collection<Class<?>> businessInterfaces, View.Type type, SessionBeanType bean)
@@ -87,62 +153,466 @@ public class EJBBinder
    // PostConstruct
    public void bind() throws NamingException
    {
+      timed = statistics != null || BindingMetrics.getInstance().isEnabled();
+      if(!timed)
+      {
+         doBind();
+         return;
+      }
+
+      produceNanos = 0;
+      long start = System.nanoTime();
+      doBind();
+      long nanos = System.nanoTime() - start;
+      BindingMetrics.getInstance().record("bind", nanos);
+      if(statistics != null)
+         statistics.bound(getRebindKey(), plan, views, produceNanos, nanos);
+   }
+
+   private void doBind() throws NamingException
+   {
+      if(generationSwitch != null)
+      {
+         bindGeneration();
+         return;
+      }
+
+      if(rebindRegistry != null)
+      {
+         // retained names outlive the deployment, a shutdown would never see its last binder
+         if(namespaceShutdown != null)
+            throw new IllegalStateException("A rebind registry cannot be combined with a namespace shutdown");
+
+         EJBBinder previous = rebindRegistry.claim(getRebindKey());
+         if(previous != null)
+         {
+            rebind(previous);
+            return;
+         }
+      }
+
+      // a shutdown which did not happen after all left the names of the last run
+      if(detached)
+         unbindDetached();
+
+      if(rollbackOnFailure)
+      {
+         StagedBindings bindings = new StagedBindings();
+         stage(bindings);
+         try
+         {
+            bindings.publish();
+         }
+         catch(NamingException e)
+         {
+            proxies.clear();
+            throw e;
+         }
+      }
+      else
+      {
+         for(View view : views)
+            bindView(view);
+      }
+
+      if(namespaceShutdown != null)
+         namespaceShutdown.register(this);
+
+      for(View view : views)
+         fireBound(view, proxies.get(view));
+   }
+
+   /**
+    * Stage the values into the shadow generation of the switch, the names resolve
+    * through the switch and only need to be bound by the first generation.
+    */
+   private void bindGeneration() throws NamingException
+   {
+      // the switch retires the names, there is nothing left for a shutdown to drop
+      if(namespaceShutdown != null)
+         throw new IllegalStateException("A generation switch cannot be combined with a namespace shutdown");
+
+      // a shutdown which did not happen after all left the names of the last run
+      if(detached)
+         unbindDetached();
+
+      // the hooks end up in publish, which stages into the switch
+      for(View view : views)
+         bindView(view);
+
+      for(View view : views)
+         fireBound(view, proxies.get(view));
+   }
+
+   /**
+    * Bind the value of a plan entry through the generation switch.
+    */
+   private void bindGeneration(Context ctx, BindingPlan.Entry entry, Object obj) throws NamingException
+   {
+      String key = entry.getNamespace() + ":" + getRebindKey() + ":" + entry.getName();
+      Reference ref = generationSwitch.stage(key, ctx, entry, obj, this);
+      Object bound = lookupLink(ctx, entry);
+      if(bound == null)
+         bind(ctx, entry, ref);
+      else if(!GenerationSwitch.isSame(bound, ref))
+         rebind(ctx, entry, ref);
+   }
+
+   private static Object lookupLink(Context ctx, BindingPlan.Entry entry) throws NamingException
+   {
+      try
+      {
+         return ctx.lookupLink(entry.getParsedName());
+      }
+      catch(NameNotFoundException e)
+      {
+         return null;
+      }
+   }
+
+   /**
+    * Retire a name of a generation which is no longer served.
+    *
+    * @param ctx the context
+    * @param entry the plan entry of the name
+    * @param obj the value the generation had
+    * @param unbind true to unbind the name, false if a later generation still has it
+    * @throws NamingException for any error unbinding the name
+    */
+   public void retire(Context ctx, BindingPlan.Entry entry, Object obj, boolean unbind) throws NamingException
+   {
+      if(unbind)
+         unbind(ctx, entry, obj);
+      else
+         fireUnbound(ctx, entry.getName(), obj);
+      proxies.remove(entry.getView());
+   }
+
+   /**
+    * Take over the names of a stopped binder of the same bean. Names both binders have
+    * get their new value in place, names only the previous binder had are unbound and
+    * new names are bound.
+    *
+    * @param previous the stopped binder
+    * @throws NamingException for any error
+    */
+   public void rebind(EJBBinder previous) throws NamingException
+   {
+      if(previous == null)
+         throw new IllegalArgumentException("Null previous");
+
+      Map<Context, Map<String, Bound>> old = previous.getBound();
+      // the hooks end up in publish, which takes over the names of the previous binder
+      replaced = previous;
+      replacedNames = old;
+      try
+      {
+         for(View view : views)
+            bindView(view);
+      }
+      finally
+      {
+         replaced = null;
+         replacedNames = null;
+      }
+      for(Map.Entry<Context, Map<String, Bound>> names : old.entrySet())
+      {
+         for(Bound bound : names.getValue().values())
+         {
+            try
+            {
+               previous.unbind(names.getKey(), bound.entry, bound.obj);
+            }
+            catch(NamingException e)
+            {
+               // the java:app and java:module contexts of the previous deployment may be gone already
+               log.warn("Failed to unbind " + bound.entry.getName() + " of the previous deployment under " + names.getKey(), e);
+               previous.fireUnbound(names.getKey(), bound.entry.getName(), bound.obj);
+            }
+         }
+      }
+      previous.proxies.clear();
+      previous.subcontexts.clear();
+
+      for(View view : views)
+         fireBound(view, proxies.get(view));
+   }
+
+   /**
+    * Get everything this binder has bound, by context in unbind order.
+    */
+   private Map<Context, Map<String, Bound>> getBound()
+   {
+      Map<Context, Map<String, Bound>> bound = new IdentityHashMap<Context, Map<String, Bound>>();
+      Context[] contexts = getContexts();
       for(View view : views)
       {
-         Object proxy = proxyFactory.produce(view);
-         // 4.4.1
-         bindGlobal(view, proxy);
-         // 4.4.1.1
-         bindApp(view, proxy);
-         // 4.4.1.2
-         bindModule(view, proxy);
+         if(proxies.containsKey(view) == false)
+            continue;
+         Object proxy = proxies.get(view);
+         List<BindingPlan.Entry> entries = plan.getEntries(view);
+         for(Namespace namespace : UNBIND_ORDER)
+         {
+            Context ctx = contexts[namespace.ordinal()];
+            Map<String, Bound> names = bound.get(ctx);
+            if(names == null)
+            {
+               names = new LinkedHashMap<String, Bound>();
+               bound.put(ctx, names);
+            }
+            for(BindingPlan.Entry entry : entries)
+            {
+               if(entry.getNamespace() == namespace)
+                  names.put(entry.getName(), new Bound(entry, proxy));
+            }
+         }
+      }
+      return bound;
+   }
+
+   private static class Bound
+   {
+      final BindingPlan.Entry entry;
+      final Object obj;
+
+      Bound(BindingPlan.Entry entry, Object obj)
+      {
+         this.entry = entry;
+         this.obj = obj;
+      }
+   }
+
+   /**
+    * Stage the bindings of all views, instead of binding them. The bindings
+    * become visible once they are published, for instance together with
+    * those of the other binders in the deployment.
+    *
+    * @param bindings the staged bindings
+    * @throws NamingException for any error
+    */
+   public void stage(StagedBindings bindings) throws NamingException
+   {
+      staging = bindings;
+      try
+      {
+         for(View view : views)
+            bindView(view);
       }
+      finally
+      {
+         staging = null;
+      }
+   }
+
+   private void bindView(View view) throws NamingException
+   {
+      Object proxy = produce(view);
+      proxies.put(view, proxy);
+      // 4.4.1
+      bindGlobal(view, proxy);
+      // 4.4.1.1
+      bindApp(view, proxy);
+      // 4.4.1.2
+      bindModule(view, proxy);
+   }
+
+   /**
+    * Bind the java:app names of a view.
+    *
+    * @param view the view
+    * @param proxy the proxy of the view
+    * @throws NamingException for any error
+    * @deprecated the names come from the binding plan, override {@link #bind(Context, BindingPlan.Entry, Object)} instead
+    */
+   @Deprecated
+   protected void bindApp(View view, Object proxy) throws NamingException
+   {
+      bind(view, Namespace.APP, proxy);
+   }
+
+   /**
+    * Bind the java:global names of a view.
+    *
+    * @param view the view
+    * @param proxy the proxy of the view
+    * @throws NamingException for any error
+    * @deprecated the names come from the binding plan, override {@link #bind(Context, BindingPlan.Entry, Object)} instead
+    */
+   @Deprecated
+   protected void bindGlobal(View view, Object proxy) throws NamingException
+   {
+      bind(view, Namespace.GLOBAL, proxy);
+   }
+
+   /**
+    * Bind the java:module names of a view.
+    *
+    * @param view the view
+    * @param proxy the proxy of the view
+    * @throws NamingException for any error
+    * @deprecated the names come from the binding plan, override {@link #bind(Context, BindingPlan.Entry, Object)} instead
+    */
+   @Deprecated
+   protected void bindModule(View view, Object proxy) throws NamingException
+   {
+      bind(view, Namespace.MODULE, proxy);
    }
 
    @SuppressWarnings({"deprecation"})
-   protected void bind(Context ctx, String name, Object obj) throws NamingException
+   private void bind(View view, Namespace namespace, Object proxy) throws NamingException
+   {
+      Context ctx = getContexts()[namespace.ordinal()];
+      for(BindingPlan.Entry entry : plan.getEntries(view))
+      {
+         if(entry.getNamespace() == namespace)
+            bind(ctx, entry.getName(), proxy);
+      }
+   }
+
+   /**
+    * Publish the value of a plan entry the way this bind goes: through the generation
+    * switch, in place of the name of a replaced binder or as a plain bind.
+    */
+   private void publish(Context ctx, BindingPlan.Entry entry, Object obj) throws NamingException
+   {
+      if(generationSwitch != null)
+      {
+         bindGeneration(ctx, entry, obj);
+         return;
+      }
+      Map<String, Bound> names = replacedNames != null ? replacedNames.get(ctx) : null;
+      Bound bound = names != null ? names.remove(entry.getName()) : null;
+      if(bound == null)
+      {
+         bind(ctx, entry, obj);
+         return;
+      }
+      rebind(ctx, entry, obj);
+      replaced.fireUnbound(ctx, entry.getName(), bound.obj);
+   }
+
+   /**
+    * Produce the proxy of a view, timed if statistics or metrics are on.
+    */
+   private Object produce(View view)
+   {
+      if(statistics == null && !BindingMetrics.getInstance().isEnabled())
+         return proxyFactory.produce(view);
+
+      long start = System.nanoTime();
+      Object proxy = proxyFactory.produce(view);
+      long nanos = System.nanoTime() - start;
+      produceNanos += nanos;
+      BindingMetrics.getInstance().record("produce:" + proxyFactory.getClass().getName(), nanos);
+      return proxy;
+   }
+
+   protected void rebind(Context ctx, BindingPlan.Entry entry, Object obj) throws NamingException
    {
       if(log.isDebugEnabled())
-         log.debug("Binding " + obj + " at " + name + " under " + ctx);
-      Util.bind(ctx, name, obj);
+         log.debug("Rebinding " + obj + " at " + entry.getName() + " under " + ctx);
+      Name name = entry.getParsedName();
+      int last = name.size() - 1;
+      getSubcontext(ctx, name.getPrefix(last)).rebind(name.get(last), obj);
    }
 
-   protected void bindApp(View view, Object proxy) throws NamingException
+   /**
+    * Get the contexts of the namespaces, indexed by namespace ordinal.
+    */
+   private Context[] getContexts()
+   {
+      JavaEEModule module = bean.getModule();
+      Context[] contexts = new Context[Namespace.values().length];
+      contexts[Namespace.GLOBAL.ordinal()] = globalContext;
+      contexts[Namespace.APP.ordinal()] = module.getApplication().getContext();
+      contexts[Namespace.MODULE.ordinal()] = module.getContext();
+      return contexts;
+   }
+
+   /**
+    * Bind an object at a name of the binding plan. Every way of binding, also a rebind
+    * of a redeploy and a bind into a generation switch, goes through the per namespace
+    * hooks and this, so overriding them keeps working while they exist.
+    *
+    * @param ctx the context
+    * @param name the name relative to ctx
+    * @param obj the object
+    * @throws NamingException for any error
+    * @deprecated override {@link #bind(Context, BindingPlan.Entry, Object)} instead
+    */
+   @Deprecated
+   @SuppressWarnings({"deprecation"})
+   protected void bind(Context ctx, String name, Object obj) throws NamingException
    {
-      String name = getAppJNDIName(view.getBusinessInterface());
-      bind(bean.getModule().getApplication().getContext(), name, proxy);
-      
-      // bind to an additional JNDI name (as specified by 4.4.1 section of EJB3.10
-      // when the bean exposes just 1 view
-      if (this.hasSingleView())
+      Context[] contexts = getContexts();
+      for(BindingPlan.Entry entry : plan.getEntries())
       {
-         bind(bean.getModule().getApplication().getContext(), this.getAppJNDIName(null), proxy);
+         if(contexts[entry.getNamespace().ordinal()] == ctx && entry.getName().equals(name))
+         {
+            publish(ctx, entry, obj);
+            return;
+         }
       }
-      
+      // not a name of this binder
+      if(log.isDebugEnabled())
+         log.debug("Binding " + obj + " at " + name + " under " + ctx);
+      Util.bind(ctx, name, obj);
    }
 
-   protected void bindGlobal(View view, Object proxy) throws NamingException
+   /**
+    * Bind an object at a name of the binding plan which is not bound yet. A name a redeploy
+    * takes over from the previous binder is rebound with {@link #rebind(Context, BindingPlan.Entry, Object)}.
+    *
+    * @param ctx the context
+    * @param entry the entry of the name relative to ctx
+    * @param obj the object
+    * @throws NamingException for any error
+    */
+   @SuppressWarnings({"deprecation"})
+   protected void bind(Context ctx, BindingPlan.Entry entry, Object obj) throws NamingException
    {
-      bind(globalContext, getGlobalJNDIName(view.getBusinessInterface()), proxy);
-      
-      // bind to an additional JNDI name (as specified by 4.4.1 section of EJB3.10
-      // when the bean exposes just 1 view
-      if (this.hasSingleView())
+      if(staging != null)
       {
-         bind(globalContext, getGlobalJNDIName(null), proxy);
+         staging.stage(ctx, entry.getParsedName(), obj);
+         return;
       }
+      if(log.isDebugEnabled())
+         log.debug("Binding " + obj + " at " + entry.getName() + " under " + ctx);
+      long start = timed ? System.nanoTime() : 0;
+      Name name = entry.getParsedName();
+      int last = name.size() - 1;
+      getSubcontext(ctx, name.getPrefix(last)).bind(name.get(last), obj);
+      if(timed)
+         BindingMetrics.getInstance().record("bind:" + entry.getNamespace(), System.nanoTime() - start);
    }
 
-   protected void bindModule(View view, Object proxy) throws NamingException
+   /**
+    * Get a subcontext, created if needed. The views of a bean share their parent
+    * contexts, so those are only looked up once until unbind.
+    *
+    * @param ctx the root context
+    * @param name the name of the subcontext relative to ctx
+    * @return the subcontext
+    * @throws NamingException for any error creating the subcontext
+    */
+   private Context getSubcontext(Context ctx, Name name) throws NamingException
    {
-      bind(bean.getModule().getContext(), getModuleJNDIName(view.getBusinessInterface()), proxy);
-      
-      // bind to an additional JNDI name (as specified by 4.4.1 section of EJB3.10
-      // when the bean exposes just 1 view
-      if (this.hasSingleView())
+      if(name.isEmpty())
+         return ctx;
+
+      Map<Name, Context> cache = subcontexts.get(ctx);
+      if(cache == null)
+      {
+         cache = new HashMap<Name, Context>();
+         subcontexts.put(ctx, cache);
+      }
+      Context subcontext = cache.get(name);
+      if(subcontext == null)
       {
-         bind(bean.getModule().getContext(), getModuleJNDIName(null), proxy);
+         subcontext = Util.createSubcontext(ctx, name);
+         cache.put(name, subcontext);
       }
+      return subcontext;
    }
 
    /**
@@ -183,6 +653,16 @@ public class EJBBinder
       return bean.getName() + (businessInterface != null ? "!" + businessInterface.getName() : "");
    }
 
+   /**
+    * Get the names this binder binds at, for tooling.
+    *
+    * @return the read-only binding plan
+    */
+   public BindingPlan getPlan()
+   {
+      return plan;
+   }
+
    public void setGlobalContext(Context context)
    {
       this.globalContext = context;
@@ -192,50 +672,397 @@ public class EJBBinder
    {
       this.proxyFactory = proxyFactory;
    }
+
+   public GenerationSwitch getGenerationSwitch()
+   {
+      return generationSwitch;
+   }
+
+   /**
+    * Bind through a generation switch, so a redeploy can bind its names in a shadow
+    * generation while this one keeps serving. Stopping the binder then leaves the
+    * names to the switch, which retires them. Cannot be combined with a namespace shutdown.
+    *
+    * @param generationSwitch the switch, null to bind directly
+    */
+   public void setGenerationSwitch(GenerationSwitch generationSwitch)
+   {
+      this.generationSwitch = generationSwitch;
+   }
+
+   public BindingStatistics getStatistics()
+   {
+      return statistics;
+   }
+
+   /**
+    * Set the statistics of the deployment, which then get the names and timings of this binder.
+    *
+    * @param statistics the statistics, null for none
+    */
+   public void setStatistics(BindingStatistics statistics)
+   {
+      this.statistics = statistics;
+   }
+
+   public NamespaceShutdown getNamespaceShutdown()
+   {
+      return namespaceShutdown;
+   }
+
+   /**
+    * Set the shutdown of the deployment. Once it has begun, stopping the binder
+    * leaves its names to the shutdown, which drops them per subcontext.
+    *
+    * @param namespaceShutdown the shutdown, null to always unbind every name
+    */
+   public void setNamespaceShutdown(NamespaceShutdown namespaceShutdown)
+   {
+      this.namespaceShutdown = namespaceShutdown;
+   }
+
+   public RebindRegistry getRebindRegistry()
+   {
+      return rebindRegistry;
+   }
+
+   /**
+    * Set the registry which keeps the names of a stopped binder, until the binder
+    * of a redeploy rebinds just the difference.
+    *
+    * Every stop keeps the names for the grace period of the registry, as it cannot
+    * tell an undeploy from the first half of a redeploy.
+    *
+    * @param rebindRegistry the registry, null to unbind everything on stop
+    */
+   public void setRebindRegistry(RebindRegistry rebindRegistry)
+   {
+      this.rebindRegistry = rebindRegistry;
+   }
+
+   /**
+    * The key of a bean in the rebind registry, the same for every deployment of it.
+    */
+   private String getRebindKey()
+   {
+      return getGlobalJNDIName(null);
+   }
+
+   public boolean isRollbackOnFailure()
+   {
+      return rollbackOnFailure;
+   }
+
+   /**
+    * Unbind every name bound so far if binding one of them fails, so a failed bind leaves
+    * no names behind. The names are still bound one by one, they are not published atomically.
+    *
+    * @param rollbackOnFailure true to roll back on failure
+    */
+   public void setRollbackOnFailure(boolean rollbackOnFailure)
+   {
+      this.rollbackOnFailure = rollbackOnFailure;
+   }
+
+   /**
+    * Add a bind listener.
+    *
+    * @param listener the listener
+    */
+   public void addBindListener(BindListener listener)
+   {
+      if(listener == null)
+         throw new IllegalArgumentException("Null listener");
+      bindListeners.add(listener);
+   }
+
+   /**
+    * Remove a bind listener.
+    *
+    * @param listener the listener
+    */
+   public void removeBindListener(BindListener listener)
+   {
+      if(listener == null)
+         throw new IllegalArgumentException("Null listener");
+      bindListeners.remove(listener);
+   }
+
+   /**
+    * Tell the listeners, and the proxy factory if it wants to know, that a view was bound.
+    *
+    * @param view the view
+    * @param obj the object bound for it
+    */
+   protected void fireBound(View view, Object obj)
+   {
+      if(proxyFactory instanceof BindListener)
+         fireBound((BindListener) proxyFactory, view, obj);
+      for(BindListener listener : bindListeners)
+         fireBound(listener, view, obj);
+   }
+
+   private static void fireBound(BindListener listener, View view, Object obj)
+   {
+      try
+      {
+         listener.bound(view, obj);
+      }
+      catch(RuntimeException e)
+      {
+         log.warn("Bind listener " + listener + " failed on " + view, e);
+      }
+   }
+
+   /**
+    * Add an unbind listener.
+    *
+    * @param listener the listener
+    */
+   public void addUnbindListener(UnbindListener listener)
+   {
+      if(listener == null)
+         throw new IllegalArgumentException("Null listener");
+      unbindListeners.add(listener);
+   }
+
+   /**
+    * Remove an unbind listener.
+    *
+    * @param listener the listener
+    */
+   public void removeUnbindListener(UnbindListener listener)
+   {
+      if(listener == null)
+         throw new IllegalArgumentException("Null listener");
+      unbindListeners.remove(listener);
+   }
+
+   /**
+    * Tell the listeners, and the proxy factory if it wants to know, that a name was unbound.
+    *
+    * @param ctx the context
+    * @param name the name
+    * @param obj the object which was bound
+    */
+   protected void fireUnbound(Context ctx, String name, Object obj)
+   {
+      if(proxyFactory instanceof UnbindListener)
+         fireUnbound((UnbindListener) proxyFactory, ctx, name, obj);
+      for(UnbindListener listener : unbindListeners)
+         fireUnbound(listener, ctx, name, obj);
+   }
+
+   private static void fireUnbound(UnbindListener listener, Context ctx, String name, Object obj)
+   {
+      try
+      {
+         listener.unbound(ctx, name, obj);
+      }
+      catch(RuntimeException e)
+      {
+         log.warn("Unbind listener " + listener + " failed on " + name, e);
+      }
+   }
    
    // PreDestroy
    public void unbind() throws NamingException
    {
-      for(View view : views)
+      timed = statistics != null || BindingMetrics.getInstance().isEnabled();
+      if(!timed)
       {
-         unbindModule(view);
-         unbindApp(view);
-         unbindGlobal(view);
+         doUnbind();
+         return;
       }
+
+      long start = System.nanoTime();
+      doUnbind();
+      long nanos = System.nanoTime() - start;
+      BindingMetrics.getInstance().record("unbind", nanos);
+      if(statistics != null)
+         statistics.unbound(getRebindKey(), nanos);
    }
 
-   protected void unbindApp(View view) throws NamingException
+   private void doUnbind() throws NamingException
+   {
+      // the generation keeps serving until it is retired
+      if(generationSwitch != null)
+         return;
+
+      if(rebindRegistry != null)
+      {
+         // keep the names until the binder of a redeploy takes them over
+         rebindRegistry.retain(getRebindKey(), this);
+         return;
+      }
+
+      if(namespaceShutdown != null && namespaceShutdown.isStopping())
+      {
+         detach();
+         return;
+      }
+      release();
+   }
+
+   /**
+    * Tell the unbind listeners about all names, but leave the actual unbinding
+    * to the namespace shutdown. Names in java:module go with the module context.
+    */
+   private void detach()
    {
-      bean.getModule().getApplication().getContext().unbind(getAppJNDIName(view.getBusinessInterface()));
-      
-      // unbind from the additional JNDI name, if the bean exposed just 1 view
-      if (this.hasSingleView())
+      Context[] contexts = getContexts();
+      Map<Context, Set<Name>> names = new IdentityHashMap<Context, Set<Name>>();
+      try
+      {
+         for(View view : views)
+         {
+            Object proxy = proxies.get(view);
+            List<BindingPlan.Entry> entries = plan.getEntries(view);
+            for(Namespace namespace : UNBIND_ORDER)
+            {
+               Context ctx = contexts[namespace.ordinal()];
+               for(BindingPlan.Entry entry : entries)
+               {
+                  if(entry.getNamespace() != namespace)
+                     continue;
+                  if(namespace != Namespace.MODULE)
+                     addName(names, ctx, entry.getParsedName());
+                  fireUnbound(ctx, entry.getName(), proxy);
+               }
+            }
+         }
+      }
+      finally
       {
-         bean.getModule().getApplication().getContext().unbind(getAppJNDIName(null));   
+         proxies.clear();
+         subcontexts.clear();
+         detached = true;
+         namespaceShutdown.detach(this, names);
       }
    }
 
-   protected void unbindGlobal(View view) throws NamingException
+   private static void addName(Map<Context, Set<Name>> names, Context ctx, Name name)
    {
-      globalContext.unbind(getGlobalJNDIName(view.getBusinessInterface()));
-      
-      // unbind from the additional JNDI name, if the bean exposed just 1 view
-      if (this.hasSingleView())
+      Set<Name> set = names.get(ctx);
+      if(set == null)
       {
-         globalContext.unbind(getGlobalJNDIName(null));
+         set = new LinkedHashSet<Name>();
+         names.put(ctx, set);
       }
+      set.add(name);
    }
 
+   /**
+    * Remove whatever is left of the names of a detached run.
+    */
+   private void unbindDetached() throws NamingException
+   {
+      Context[] contexts = getContexts();
+      for(BindingPlan.Entry entry : plan.getEntries())
+      {
+         try
+         {
+            contexts[entry.getNamespace().ordinal()].unbind(entry.getParsedName());
+         }
+         catch(NameNotFoundException e)
+         {
+            // dropped with its subcontext
+         }
+      }
+      detached = false;
+   }
+
+   /**
+    * Unbind all names, also when this binder was retained for a rebind.
+    *
+    * @throws NamingException for any error unbinding a name
+    */
+   public void release() throws NamingException
+   {
+      try
+      {
+         for(View view : views)
+         {
+            unbindModule(view);
+            unbindApp(view);
+            unbindGlobal(view);
+            proxies.remove(view);
+         }
+      }
+      finally
+      {
+         subcontexts.clear();
+      }
+   }
+
+   /**
+    * Unbind the java:app names of a view.
+    *
+    * @param view the view
+    * @throws NamingException for any error
+    * @deprecated the names come from the binding plan, override {@link #unbind(Context, BindingPlan.Entry, Object)} instead
+    */
+   @Deprecated
+   protected void unbindApp(View view) throws NamingException
+   {
+      unbind(view, Namespace.APP);
+   }
+
+   /**
+    * Unbind the java:global names of a view.
+    *
+    * @param view the view
+    * @throws NamingException for any error
+    * @deprecated the names come from the binding plan, override {@link #unbind(Context, BindingPlan.Entry, Object)} instead
+    */
+   @Deprecated
+   protected void unbindGlobal(View view) throws NamingException
+   {
+      unbind(view, Namespace.GLOBAL);
+   }
+
+   /**
+    * Unbind the java:module names of a view.
+    *
+    * @param view the view
+    * @throws NamingException for any error
+    * @deprecated the names come from the binding plan, override {@link #unbind(Context, BindingPlan.Entry, Object)} instead
+    */
+   @Deprecated
    protected void unbindModule(View view) throws NamingException
    {
-      bean.getModule().getContext().unbind(getModuleJNDIName(view.getBusinessInterface()));
-      
-      // unbind from the additional JNDI name, if the bean exposed just 1 view
-      if (this.hasSingleView())
+      unbind(view, Namespace.MODULE);
+   }
+
+   private void unbind(View view, Namespace namespace) throws NamingException
+   {
+      Context ctx = getContexts()[namespace.ordinal()];
+      Object obj = proxies.get(view);
+      for(BindingPlan.Entry entry : plan.getEntries(view))
       {
-         bean.getModule().getContext().unbind(getModuleJNDIName(null));
+         if(entry.getNamespace() == namespace)
+            unbind(ctx, entry, obj);
       }
    }
+
+   /**
+    * Unbind a name and tell the unbind listeners about it.
+    *
+    * @param ctx the context
+    * @param entry the entry of the name relative to ctx
+    * @param obj the object which was bound
+    * @throws NamingException for any error unbinding the name
+    */
+   protected void unbind(Context ctx, BindingPlan.Entry entry, Object obj) throws NamingException
+   {
+      if(log.isDebugEnabled())
+         log.debug("Unbinding " + entry.getName() + " under " + ctx);
+      long start = timed ? System.nanoTime() : 0;
+      ctx.unbind(entry.getParsedName());
+      if(timed)
+         BindingMetrics.getInstance().record("unbind:" + entry.getNamespace(), System.nanoTime() - start);
+      fireUnbound(ctx, entry.getName(), obj);
+   }
    
    /**
     * Returns true if the bean exposes just 1 view to the client. Else returns false
@@ -23,6 +23,7 @@
 package org.jboss.ejb3.jndi.binder.impl;
 
 import javax.naming.Context;
+import javax.naming.InitialContext;
 import javax.naming.Name;
 import javax.naming.RefAddr;
 import javax.naming.Reference;
@@ -33,8 +34,14 @@ import java.lang.reflect.Method;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
 import java.util.Hashtable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import org.jboss.ejb3.jndi.binder.spi.BindListener;
 import org.jboss.ejb3.jndi.binder.spi.ProxyFactory;
+import org.jboss.ejb3.jndi.binder.spi.UnbindListener;
+import org.jboss.logging.Logger;
 
 import javassist.util.proxy.MethodFilter;
 import javassist.util.proxy.MethodHandler;
@@ -45,8 +52,50 @@ import javassist.util.proxy.ProxyObject;
  *
  * @author <a href="mailto:ales.justin@jboss.org">Ales Justin</a>
  */
-public abstract class AbstractLazyProxyFactory implements ProxyFactory
+public abstract class AbstractLazyProxyFactory implements ProxyFactory, BindListener, UnbindListener
 {
+   private static final Logger log = Logger.getLogger(AbstractLazyProxyFactory.class);
+
+   private static final ProxyClassCache PROXY_CLASSES = new ProxyClassCache();
+   private static final ProxyClassCache DISPATCH_CLASSES = new ProxyClassCache();
+   private static final LazyLinkRegistry LINKS = new LazyLinkRegistry();
+
+   /**
+    * How a lazy proxy dispatches business calls to its target.
+    */
+   public static enum Dispatch
+   {
+      /** A javassist proxy which invokes the target reflectively through a {@link LazyHandler} */
+      HANDLER,
+      /**
+       * A generated class which invokes the target directly, see {@link LazyDispatchGenerator}.
+       * Its invocations are not recorded in {@link LazyInvocationMetrics}.
+       */
+      GENERATED
+   }
+
+   /**
+    * How a lazy proxy resolves its target.
+    */
+   public static enum Resolution
+   {
+      /** Every thread which finds the target unresolved looks it up */
+      DIRECT,
+      /** Exactly one lookup per proxy, see {@link SingleFlightLazyTarget} */
+      SINGLE_FLIGHT,
+      /**
+       * Exactly one lookup per link, shared by all proxies, see {@link LazyLinkRegistry}.
+       * Links to stateful beans are never shared, every proxy must get a session of its own,
+       * so they are resolved {@link #DIRECT} instead.
+       */
+      SHARED
+   }
+
+   private Dispatch dispatch = Dispatch.HANDLER;
+   private Resolution resolution = Resolution.DIRECT;
+   private BindListener warmup;
+   private boolean generateAtBind;
+
    /**
     * Create a lazy ref.
     *
@@ -56,9 +105,249 @@ public abstract class AbstractLazyProxyFactory implements ProxyFactory
     */
    public Object lazyLinkRef(String className, String linkName)
    {
+      return lazyLinkRef(className, linkName, false);
+   }
+
+   /**
+    * Create a lazy ref.
+    *
+    * @param className the classname
+    * @param linkName the link name
+    * @param stateful whether the link is to a stateful bean
+    * @return lazy link ref
+    */
+   public Object lazyLinkRef(String className, String linkName, boolean stateful)
+   {
+      String factory = LazyObjectFactory.class.getName();
+      RefAddr addr = new StringRefAddr("link", linkName);
+      return addModes(new Reference(className, addr, factory, null), stateful);
+   }
+
+   /**
+    * Create a lazy ref.
+    *
+    * If proxy classes are generated at bind time, the proxy class is generated
+    * in the class loader of the class right away and handed over with the ref.
+    *
+    * @param clazz the class
+    * @param linkName the link name
+    * @return lazy link ref
+    */
+   public Object lazyLinkRef(Class<?> clazz, String linkName)
+   {
+      return lazyLinkRef(clazz, linkName, false);
+   }
+
+   /**
+    * Create a lazy ref, see {@link #lazyLinkRef(Class, String)}.
+    *
+    * @param clazz the class
+    * @param linkName the link name
+    * @param stateful whether the link is to a stateful bean
+    * @return lazy link ref
+    */
+   public Object lazyLinkRef(Class<?> clazz, String linkName, boolean stateful)
+   {
+      if (generateAtBind == false || clazz.getClassLoader() == null)
+         return lazyLinkRef(clazz.getName(), linkName, stateful);
+
+      Class<?> proxyClass;
+      try
+      {
+         proxyClass = getLazyProxyClass(clazz, dispatch);
+      }
+      catch (RuntimeException e)
+      {
+         log.warn("Failed to generate lazy proxy class for " + clazz + ", deferring it to lookup", e);
+         return lazyLinkRef(clazz.getName(), linkName, stateful);
+      }
       String factory = LazyObjectFactory.class.getName();
       RefAddr addr = new StringRefAddr("link", linkName);
-      return new Reference(className, addr, factory, null);
+      return addModes(new LazyLinkReference(clazz.getName(), addr, factory, proxyClass), stateful);
+   }
+
+   private Reference addModes(Reference ref, boolean stateful)
+   {
+      if (dispatch != Dispatch.HANDLER)
+         ref.add(new StringRefAddr("dispatch", dispatch.name()));
+      // every lookup of a stateful bean must create a new session
+      if (stateful && resolution == Resolution.SHARED)
+         ref.add(new StringRefAddr("resolution", Resolution.DIRECT.name()));
+      else if (resolution != Resolution.DIRECT)
+         ref.add(new StringRefAddr("resolution", resolution.name()));
+      return ref;
+   }
+
+   /**
+    * Get the link of a lazy ref.
+    *
+    * @param obj the bound object
+    * @return the link name or null if obj is not a lazy ref
+    */
+   public static String getLink(Object obj)
+   {
+      if (obj instanceof Reference == false)
+         return null;
+
+      Reference ref = (Reference) obj;
+      if (LazyObjectFactory.class.getName().equals(ref.getFactoryClassName()) == false)
+         return null;
+
+      RefAddr addr = ref.get("link");
+      if (addr == null || addr instanceof StringRefAddr == false)
+         return null;
+
+      return (String) addr.getContent();
+   }
+
+   /**
+    * Prepare a lazy ref for its first use, by generating its proxy class
+    * and, if its target is shared, resolving its link.
+    *
+    * The proxy class is cached under the defining class loader of the proxied class,
+    * which is where a lookup finds it, whichever class loader it loads the class by.
+    * Only a {@link Resolution#SHARED} target is used by the proxies looked up later, every
+    * other target belongs to a single proxy, so it is not resolved ahead.
+    *
+    * @param obj the lazy ref
+    * @param clazz the proxied class
+    * @throws Exception for any error
+    */
+   public static void prepare(Object obj, Class<?> clazz) throws Exception
+   {
+      String link = getLink(obj);
+      if (link == null)
+         return;
+
+      Reference ref = (Reference) obj;
+      if (getBoundProxyClass(ref, clazz.getClassLoader()) == null)
+         getLazyProxyClass(clazz, getDispatch(ref));
+      Resolution resolution = getResolution(ref);
+      if (resolution != Resolution.SHARED)
+         return;
+      // a shared target keeps the context, to resolve the link again once it is invalidated
+      createTarget(link, new InitialContext(), resolution).call();
+   }
+
+   /**
+    * Invalidate the resolution of a link, in all proxies for it.
+    *
+    * @param link the link name
+    */
+   public static void invalidateLink(String link)
+   {
+      LINKS.invalidate(link);
+   }
+
+   /**
+    * Proxies linking to the unbound name must look it up again.
+    * And if a lazy ref got unbound, its link target is most likely going away as well.
+    *
+    * A link is matched by its exact name, either as given or as the full name
+    * of the unbound binding in its namespace.
+    */
+   public void unbound(Context context, String name, Object obj)
+   {
+      LINKS.invalidate(name);
+      String fullName = getNameInNamespace(context, name);
+      if (fullName != null && fullName.equals(name) == false)
+         LINKS.invalidate(fullName);
+
+      String link = getLink(obj);
+      if (link != null)
+      {
+         invalidateLink(link);
+         LazyInvocationMetrics.getInstance().removeLinkMetrics(link);
+      }
+   }
+
+   private static String getNameInNamespace(Context context, String name)
+   {
+      if (context == null)
+         return null;
+      try
+      {
+         String prefix = context.getNameInNamespace();
+         if (prefix == null || prefix.length() == 0)
+            return null;
+         return context.composeName(name, prefix);
+      }
+      catch (Exception e)
+      {
+         log.debug("Unable to get the full name of " + name + " in " + context, e);
+         return null;
+      }
+   }
+
+   /**
+    * Hand the bound lazy ref to the warm-up, if there is one.
+    */
+   public void bound(View view, Object obj)
+   {
+      if (warmup != null)
+         warmup.bound(view, obj);
+   }
+
+   public Dispatch getDispatch()
+   {
+      return dispatch;
+   }
+
+   public void setDispatch(Dispatch dispatch)
+   {
+      if (dispatch == null)
+         throw new IllegalArgumentException("Null dispatch");
+
+      this.dispatch = dispatch;
+   }
+
+   public Resolution getResolution()
+   {
+      return resolution;
+   }
+
+   /**
+    * Set how proxies resolve their target. Links to stateful beans are never {@link Resolution#SHARED}.
+    *
+    * @param resolution the resolution mode
+    */
+   public void setResolution(Resolution resolution)
+   {
+      if (resolution == null)
+         throw new IllegalArgumentException("Null resolution");
+
+      this.resolution = resolution;
+   }
+
+   public boolean isGenerateAtBind()
+   {
+      return generateAtBind;
+   }
+
+   /**
+    * Generate proxy classes when producing the lazy refs, instead of at lookup.
+    *
+    * @param generateAtBind true to generate at bind time
+    */
+   public void setGenerateAtBind(boolean generateAtBind)
+   {
+      this.generateAtBind = generateAtBind;
+   }
+
+   public BindListener getWarmup()
+   {
+      return warmup;
+   }
+
+   /**
+    * Set the warm-up which prepares lazy refs once they are bound,
+    * for instance a {@link LinkWarmup}.
+    *
+    * @param warmup the warm-up, null for none
+    */
+   public void setWarmup(BindListener warmup)
+   {
+      this.warmup = warmup;
    }
 
    public static class LazyObjectFactory implements ObjectFactory
@@ -74,22 +363,174 @@ public abstract class AbstractLazyProxyFactory implements ProxyFactory
             return null;
 
          String link = (String) addr.getContent();
+         Dispatch dispatch = getDispatch(ref);
          ClassLoader tccl = Thread.currentThread().getContextClassLoader(); // HACK?
-         Class<?> clazz = tccl.loadClass(ref.getClassName());
-
-         javassist.util.proxy.ProxyFactory factory = new javassist.util.proxy.ProxyFactory();
-         factory.setFilter(FINALIZE_FILTER);
-         if (clazz.isInterface())
-            factory.setInterfaces(new Class[]{clazz});
-         else
-            factory.setSuperclass(clazz);
-         Class<?> proxyClass = getProxyClass(factory);
+         LazyTarget target = createTarget(link, context, getResolution(ref));
+         Class<?> proxyClass = getBoundProxyClass(ref, tccl);
+         if (proxyClass == null)
+            proxyClass = getLazyProxyClass(tccl, ref.getClassName(), dispatch);
+         if (dispatch == Dispatch.GENERATED)
+            return proxyClass.getConstructor(Callable.class).newInstance(target);
+
          ProxyObject proxy = (ProxyObject) proxyClass.newInstance();
-         proxy.setHandler(new LazyHandler(link, context));
+         proxy.setHandler(new LazyHandler(target));
          return proxy;
       }
    }
 
+   protected static Dispatch getDispatch(Reference ref)
+   {
+      RefAddr addr = ref.get("dispatch");
+      return addr != null ? Dispatch.valueOf((String) addr.getContent()) : Dispatch.HANDLER;
+   }
+
+   protected static Resolution getResolution(Reference ref)
+   {
+      RefAddr addr = ref.get("resolution");
+      return addr != null ? Resolution.valueOf((String) addr.getContent()) : Resolution.DIRECT;
+   }
+
+   /**
+    * Get the proxy class generated at bind time, if the caller sees the same class.
+    *
+    * @param ref the lazy ref
+    * @param cl the class loader of the caller
+    * @return the proxy class or null if it must be looked up by class name
+    */
+   protected static Class<?> getBoundProxyClass(Reference ref, ClassLoader cl)
+   {
+      if (ref instanceof LazyLinkReference == false)
+         return null;
+
+      Class<?> proxyClass = ((LazyLinkReference) ref).getProxyClass();
+      if (proxyClass == null || cl == null || cl == proxyClass.getClassLoader())
+         return proxyClass;
+
+      // another deployment, might have its own copy of the class
+      try
+      {
+         Class<?> clazz = cl.loadClass(ref.getClassName());
+         return clazz.isAssignableFrom(proxyClass) ? proxyClass : null;
+      }
+      catch (ClassNotFoundException e)
+      {
+         return null;
+      }
+   }
+
+   /**
+    * Get the lazy proxy class for a class, generating it in its class loader if it is not cached yet.
+    *
+    * The cache is keyed by the defining class loader of the class, which is where the proxy class
+    * is defined. Direct dispatch classes have a fixed name, so they are generated one at a time.
+    *
+    * @param clazz the proxied class
+    * @param dispatch the dispatch mode
+    * @return the proxy class
+    */
+   protected static Class<?> getLazyProxyClass(Class<?> clazz, Dispatch dispatch)
+   {
+      ClassLoader cl = clazz.getClassLoader();
+      if (dispatch != Dispatch.GENERATED)
+      {
+         Class<?> proxyClass = PROXY_CLASSES.get(cl, clazz.getName());
+         if (proxyClass == null)
+            proxyClass = PROXY_CLASSES.put(cl, clazz.getName(), createProxyClass(clazz));
+         return proxyClass;
+      }
+
+      Class<?> proxyClass = DISPATCH_CLASSES.get(cl, clazz.getName());
+      if (proxyClass != null)
+         return proxyClass;
+      synchronized (DISPATCH_CLASSES)
+      {
+         proxyClass = DISPATCH_CLASSES.get(cl, clazz.getName());
+         if (proxyClass == null)
+            proxyClass = DISPATCH_CLASSES.put(cl, clazz.getName(), LazyDispatchGenerator.generate(clazz));
+         return proxyClass;
+      }
+   }
+
+   /**
+    * Get the lazy proxy class for a class, generating it if it is not cached yet.
+    *
+    * The class is only loaded the first time a class loader looks it up, after that the
+    * proxy class is taken from the cache by the class loader and class name.
+    *
+    * @param cl the class loader to load the class with
+    * @param className the name of the proxied class
+    * @param dispatch the dispatch mode
+    * @return the proxy class
+    * @throws ClassNotFoundException if the class cannot be loaded
+    */
+   protected static Class<?> getLazyProxyClass(ClassLoader cl, String className, Dispatch dispatch) throws ClassNotFoundException
+   {
+      ProxyClassCache cache = dispatch == Dispatch.GENERATED ? DISPATCH_CLASSES : PROXY_CLASSES;
+      Class<?> proxyClass = cache.getByLookup(cl, className);
+      if (proxyClass == null)
+      {
+         proxyClass = getLazyProxyClass(cl.loadClass(className), dispatch);
+         cache.putByLookup(cl, className, proxyClass);
+      }
+      return proxyClass;
+   }
+
+   /**
+    * Create the target of a lazy proxy.
+    *
+    * @param link the link name
+    * @param context the context to look up the link in
+    * @param resolution the resolution mode
+    * @return the lazy target
+    */
+   protected static LazyTarget createTarget(String link, Context context, Resolution resolution)
+   {
+      if (resolution == Resolution.SHARED)
+         return LINKS.getTarget(link, context);
+      if (resolution == Resolution.SINGLE_FLIGHT)
+         return new SingleFlightLazyTarget(link, context, LINKS.getGeneration(link));
+      return new LazyTarget(link, context, LINKS.getGeneration(link));
+   }
+
+   /**
+    * Get the cache of generated proxy classes.
+    *
+    * @return the proxy class cache
+    */
+   public static ProxyClassCache getProxyClassCache()
+   {
+      return PROXY_CLASSES;
+   }
+
+   /**
+    * Get the cache of generated direct dispatch classes.
+    *
+    * @return the dispatch class cache
+    */
+   public static ProxyClassCache getDispatchClassCache()
+   {
+      return DISPATCH_CLASSES;
+   }
+
+   /**
+    * Generate a lazy proxy class.
+    *
+    * @param clazz the interface or class to proxy
+    * @return the proxy class
+    */
+   protected static Class<?> createProxyClass(Class<?> clazz)
+   {
+      javassist.util.proxy.ProxyFactory factory = new javassist.util.proxy.ProxyFactory();
+      // we do our own caching
+      factory.setUseCache(false);
+      factory.setFilter(FINALIZE_FILTER);
+      if (clazz.isInterface())
+         factory.setInterfaces(new Class[]{clazz});
+      else
+         factory.setSuperclass(clazz);
+      return getProxyClass(factory);
+   }
+
    protected static Class<?> getProxyClass(javassist.util.proxy.ProxyFactory factory)
    {
       SecurityManager sm = System.getSecurityManager();
@@ -135,29 +576,79 @@ public abstract class AbstractLazyProxyFactory implements ProxyFactory
          }
       }
 
-      private String link;
-      private Context context;
-      private Object target;
+      private LazyTarget target;
+      private volatile LazyInvocationMetrics.LinkMetrics metrics;
+      private volatile ConcurrentMap<Method, LazyInvocationMetrics.Histogram> histograms;
 
       public LazyHandler(String link, Context context)
       {
-         this.link = link;
-         this.context = context;
+         this(createTarget(link, context, Resolution.DIRECT));
+      }
+
+      public LazyHandler(LazyTarget target)
+      {
+         this.target = target;
       }
 
       public Object invoke(Object self, Method method, Method proceed, Object[] args) throws Throwable
       {
          if (method.equals(METHOD_TO_STRING))
-            return "JNDI-link: " + link;
+            return target.toString();
          else if (method.equals(METHOD_EQUALS))
             return equals(args[0]);
          else if (method.equals(METHOD_HASH_CODE))
             return hashCode();
 
-         if (target == null)
-            target = context.lookup(link);
+         LazyInvocationMetrics.Histogram histogram = null;
+         if (LazyInvocationMetrics.getInstance().isEnabled())
+            histogram = getMetrics().count(getHistogram(method));
+         if (histogram == null)
+            return method.invoke(target.call(), args);
 
-         return method.invoke(target, args);
+         long start = System.nanoTime();
+         try
+         {
+            return method.invoke(target.call(), args);
+         }
+         finally
+         {
+            histogram.record(System.nanoTime() - start);
+         }
+      }
+
+      private LazyInvocationMetrics.LinkMetrics getMetrics()
+      {
+         // racy, but any instance will do
+         LazyInvocationMetrics.LinkMetrics metrics = this.metrics;
+         if (metrics == null || metrics.isRemoved())
+         {
+            // unbound and maybe bound again, the histograms went with the old metrics
+            histograms = null;
+            metrics = LazyInvocationMetrics.getInstance().getLinkMetrics(target.getLink());
+            this.metrics = metrics;
+         }
+         return metrics;
+      }
+
+      /**
+       * The histograms by method of this proxy, so the signature is only worked out once.
+       */
+      private LazyInvocationMetrics.Histogram getHistogram(Method method)
+      {
+         // racy, but any instance will do
+         ConcurrentMap<Method, LazyInvocationMetrics.Histogram> histograms = this.histograms;
+         if (histograms == null)
+         {
+            histograms = new ConcurrentHashMap<Method, LazyInvocationMetrics.Histogram>();
+            this.histograms = histograms;
+         }
+         LazyInvocationMetrics.Histogram histogram = histograms.get(method);
+         if (histogram == null)
+         {
+            histogram = getMetrics().getHistogram(method);
+            histograms.put(method, histogram);
+         }
+         return histogram;
       }
    }
 
@@ -0,0 +1,130 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.binder.impl;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jboss.ejb3.jndi.binder.impl.LazyInvocationMetrics.Histogram;
+
+/**
+ * Server wide histograms of the time spent binding, unbinding and producing proxies.
+ *
+ * Operations are recorded as bind and unbind for a whole binder, bind:NAMESPACE and
+ * unbind:NAMESPACE for a single name and produce:factory class for a single proxy.
+ *
+ * Disabled by default.
+ */
+public class BindingMetrics implements BindingMetricsMBean
+{
+   private static final BindingMetrics INSTANCE = new BindingMetrics();
+
+   private final ConcurrentMap<String, Histogram> operations = new ConcurrentHashMap<String, Histogram>();
+   private volatile boolean enabled;
+
+   public static BindingMetrics getInstance()
+   {
+      return INSTANCE;
+   }
+
+   public boolean isEnabled()
+   {
+      return enabled;
+   }
+
+   public void setEnabled(boolean enabled)
+   {
+      this.enabled = enabled;
+   }
+
+   /**
+    * Record the time of an operation.
+    *
+    * @param operation the operation
+    * @param nanos the time in nanoseconds
+    */
+   public void record(String operation, long nanos)
+   {
+      Histogram histogram = operations.get(operation);
+      if (histogram == null)
+      {
+         histogram = new Histogram();
+         Histogram previous = operations.putIfAbsent(operation, histogram);
+         if (previous != null)
+            histogram = previous;
+      }
+      histogram.record(nanos);
+   }
+
+   public String[] getOperations()
+   {
+      Map<String, Histogram> all = getAll();
+      return all.keySet().toArray(new String[all.size()]);
+   }
+
+   public long getCount(String operation)
+   {
+      Histogram histogram = operations.get(operation);
+      return histogram != null ? histogram.getSampleCount() : 0;
+   }
+
+   public double getMeanTime(String operation)
+   {
+      Histogram histogram = operations.get(operation);
+      return histogram != null ? histogram.getMean() : 0;
+   }
+
+   public long getTimePercentile(String operation, double percentile)
+   {
+      Histogram histogram = operations.get(operation);
+      return histogram != null ? histogram.getPercentile(percentile) : 0;
+   }
+
+   public String listMetrics()
+   {
+      StringBuilder sb = new StringBuilder();
+      for (Map.Entry<String, Histogram> entry : getAll().entrySet())
+      {
+         Histogram histogram = entry.getValue();
+         sb.append(entry.getKey());
+         sb.append(" count=").append(histogram.getSampleCount());
+         sb.append(" mean=").append((long) histogram.getMean()).append("ns");
+         sb.append(" p50=").append(histogram.getPercentile(50)).append("ns");
+         sb.append(" p99=").append(histogram.getPercentile(99)).append("ns");
+         sb.append("\n");
+      }
+      return sb.toString();
+   }
+
+   public void reset()
+   {
+      for (Histogram histogram : operations.values())
+         histogram.reset();
+   }
+
+   private Map<String, Histogram> getAll()
+   {
+      return new TreeMap<String, Histogram>(operations);
+   }
+}
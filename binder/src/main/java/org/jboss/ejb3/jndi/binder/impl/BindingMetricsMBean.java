@@ -0,0 +1,61 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.binder.impl;
+
+/**
+ * JMX view of the server wide binding metrics.
+ */
+public interface BindingMetricsMBean
+{
+   boolean isEnabled();
+
+   void setEnabled(boolean enabled);
+
+   /**
+    * Get the timed operations, such as bind, bind:GLOBAL or produce:factory class.
+    *
+    * @return the timed operations
+    */
+   String[] getOperations();
+
+   long getCount(String operation);
+
+   double getMeanTime(String operation);
+
+   /**
+    * Get a time percentile, as the upper bound of its histogram bucket.
+    *
+    * @param operation the operation
+    * @param percentile the percentile, between 0 and 100
+    * @return the time in nanoseconds
+    */
+   long getTimePercentile(String operation, double percentile);
+
+   /**
+    * Print all metrics.
+    *
+    * @return the metrics, one operation per line
+    */
+   String listMetrics();
+
+   void reset();
+}
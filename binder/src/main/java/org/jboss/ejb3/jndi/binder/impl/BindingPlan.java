@@ -0,0 +1,227 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright (c) 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.binder.impl;
+
+import javax.naming.CompositeName;
+import javax.naming.InvalidNameException;
+import javax.naming.Name;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The names an EJBBinder binds, worked out once.
+ *
+ * Every view gets an entry per namespace (EJB 3.1 4.4.1). A bean with a single view
+ * also gets the short alias entries without the business interface. Entries of a view
+ * are kept in binding order: global, app, module, each name followed by its alias.
+ */
+public final class BindingPlan
+{
+   public static enum Namespace
+   {
+      GLOBAL,
+      APP,
+      MODULE
+   }
+
+   private final List<Entry> entries;
+   private final Map<View, List<Entry>> viewEntries;
+
+   private BindingPlan(List<Entry> entries, Map<View, List<Entry>> viewEntries)
+   {
+      this.entries = entries;
+      this.viewEntries = viewEntries;
+   }
+
+   /**
+    * Get all entries, view by view.
+    *
+    * @return the read-only entries
+    */
+   public List<Entry> getEntries()
+   {
+      return entries;
+   }
+
+   /**
+    * Get the entries of a view.
+    *
+    * @param view the view
+    * @return the read-only entries, empty if the view is not part of the plan
+    */
+   public List<Entry> getEntries(View view)
+   {
+      List<Entry> result = viewEntries.get(view);
+      if(result == null)
+         return Collections.emptyList();
+      return result;
+   }
+
+   public int size()
+   {
+      return entries.size();
+   }
+
+   @Override
+   public String toString()
+   {
+      return "BindingPlan" + entries;
+   }
+
+   /**
+    * Builds a plan. Names are interned, the same module or application
+    * name is shared by all binders in a deployment.
+    */
+   public static class Builder
+   {
+      private final List<Entry> entries = new ArrayList<Entry>();
+      private final Map<View, List<Entry>> viewEntries = new IdentityHashMap<View, List<Entry>>();
+
+      /**
+       * Add the entry of a view.
+       *
+       * @param view the view
+       * @param namespace the namespace the name is in
+       * @param name the name relative to the namespace
+       * @param alias whether this is the single view alias
+       * @return this builder
+       */
+      public Builder add(View view, Namespace namespace, String name, boolean alias)
+      {
+         if(view == null)
+            throw new IllegalArgumentException("Null view");
+         if(namespace == null)
+            throw new IllegalArgumentException("Null namespace");
+         if(name == null)
+            throw new IllegalArgumentException("Null name");
+
+         Entry entry = new Entry(view, namespace, name.intern(), alias);
+         entries.add(entry);
+         List<Entry> list = viewEntries.get(view);
+         if(list == null)
+         {
+            list = new ArrayList<Entry>(6);
+            viewEntries.put(view, list);
+         }
+         list.add(entry);
+         return this;
+      }
+
+      public BindingPlan build()
+      {
+         Map<View, List<Entry>> map = new IdentityHashMap<View, List<Entry>>();
+         for(Map.Entry<View, List<Entry>> e : viewEntries.entrySet())
+            map.put(e.getKey(), Collections.unmodifiableList(new ArrayList<Entry>(e.getValue())));
+         return new BindingPlan(Collections.unmodifiableList(new ArrayList<Entry>(entries)), Collections.unmodifiableMap(map));
+      }
+   }
+
+   /**
+    * A single name to bind a view's proxy at.
+    */
+   public static final class Entry
+   {
+      private final View view;
+      private final Namespace namespace;
+      private final String name;
+      private final Name parsedName;
+      private final boolean alias;
+
+      Entry(View view, Namespace namespace, String name, boolean alias)
+      {
+         this.view = view;
+         this.namespace = namespace;
+         this.name = name;
+         this.parsedName = parse(name);
+         this.alias = alias;
+      }
+
+      /**
+       * Parse a name. Names without quotes or escapes, which are all names an EJBBinder
+       * makes, are just split on '/', which is a lot cheaper than parsing them.
+       */
+      private static Name parse(String name)
+      {
+         try
+         {
+            if(name.indexOf('\\') >= 0 || name.indexOf('"') >= 0 || name.indexOf('\'') >= 0)
+               return new CompositeName(name);
+
+            Name result = new CompositeName();
+            int start = 0;
+            int end;
+            while((end = name.indexOf('/', start)) >= 0)
+            {
+               result.add(name.substring(start, end));
+               start = end + 1;
+            }
+            result.add(name.substring(start));
+            return result;
+         }
+         catch(InvalidNameException e)
+         {
+            throw new IllegalArgumentException("Invalid name " + name, e);
+         }
+      }
+
+      public View getView()
+      {
+         return view;
+      }
+
+      public Namespace getNamespace()
+      {
+         return namespace;
+      }
+
+      public String getName()
+      {
+         return name;
+      }
+
+      /**
+       * Get the parsed name. Names are mutable, so this is a copy.
+       *
+       * @return the parsed name
+       */
+      public Name getParsedName()
+      {
+         return (Name) parsedName.clone();
+      }
+
+      public boolean isAlias()
+      {
+         return alias;
+      }
+
+      @Override
+      public String toString()
+      {
+         return namespace + ":" + name;
+      }
+   }
+}
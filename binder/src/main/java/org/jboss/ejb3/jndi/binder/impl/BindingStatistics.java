@@ -0,0 +1,166 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.binder.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The bindings of the binders in a deployment, with the time it took to produce and bind them.
+ */
+public class BindingStatistics implements BindingStatisticsMBean
+{
+   private final ConcurrentMap<String, Component> components = new ConcurrentHashMap<String, Component>();
+
+   /**
+    * Record a bound binder.
+    *
+    * @param component the component
+    * @param plan the binding plan
+    * @param views the bound views
+    * @param produceNanos the time spent producing proxies
+    * @param bindNanos the time spent binding, including producing proxies
+    */
+   public void bound(String component, BindingPlan plan, Collection<View> views, long produceNanos, long bindNanos)
+   {
+      if (component == null)
+         throw new IllegalArgumentException("Null component");
+      if (plan == null)
+         throw new IllegalArgumentException("Null plan");
+      if (views == null)
+         throw new IllegalArgumentException("Null views");
+
+      List<String> names = new ArrayList<String>(plan.size());
+      for (BindingPlan.Entry entry : plan.getEntries())
+         names.add(entry.toString());
+      List<String> types = new ArrayList<String>(views.size());
+      for (View view : views)
+         types.add(view.getBusinessInterface().getName() + "=" + view.getType());
+
+      Component previous = components.get(component);
+      long unbindNanos = previous != null ? previous.unbindNanos : 0;
+      components.put(component, new Component(names, types, produceNanos, bindNanos, unbindNanos));
+   }
+
+   /**
+    * Record an unbound binder.
+    *
+    * @param component the component
+    * @param unbindNanos the time spent unbinding
+    */
+   public void unbound(String component, long unbindNanos)
+   {
+      Component previous = components.get(component);
+      if (previous == null)
+         return;
+
+      List<String> none = Collections.emptyList();
+      components.put(component, new Component(none, previous.types, previous.produceNanos, previous.bindNanos, unbindNanos));
+   }
+
+   public String[] getComponents()
+   {
+      Map<String, Component> all = getAll();
+      return all.keySet().toArray(new String[all.size()]);
+   }
+
+   public String[] getBoundNames(String component)
+   {
+      Component c = components.get(component);
+      return c != null ? c.names.toArray(new String[c.names.size()]) : new String[0];
+   }
+
+   public String[] getViewTypes(String component)
+   {
+      Component c = components.get(component);
+      return c != null ? c.types.toArray(new String[c.types.size()]) : new String[0];
+   }
+
+   public long getProxyProductionTime(String component)
+   {
+      Component c = components.get(component);
+      return c != null ? c.produceNanos : 0;
+   }
+
+   public long getBindTime(String component)
+   {
+      Component c = components.get(component);
+      return c != null ? c.bindNanos : 0;
+   }
+
+   public long getUnbindTime(String component)
+   {
+      Component c = components.get(component);
+      return c != null ? c.unbindNanos : 0;
+   }
+
+   public String listStatistics()
+   {
+      StringBuilder sb = new StringBuilder();
+      for (Map.Entry<String, Component> entry : getAll().entrySet())
+      {
+         Component c = entry.getValue();
+         sb.append(entry.getKey());
+         sb.append(" views=").append(c.types);
+         sb.append(" names=").append(c.names.size());
+         sb.append(" produce=").append(c.produceNanos).append("ns");
+         sb.append(" bind=").append(c.bindNanos).append("ns");
+         sb.append(" unbind=").append(c.unbindNanos).append("ns");
+         sb.append("\n");
+         for (String name : c.names)
+            sb.append("  ").append(name).append("\n");
+      }
+      return sb.toString();
+   }
+
+   private Map<String, Component> getAll()
+   {
+      return new TreeMap<String, Component>(components);
+   }
+
+   /**
+    * The last recorded state of a binder, replaced as a whole.
+    */
+   private static class Component
+   {
+      private final List<String> names;
+      private final List<String> types;
+      private final long produceNanos;
+      private final long bindNanos;
+      private final long unbindNanos;
+
+      private Component(List<String> names, List<String> types, long produceNanos, long bindNanos, long unbindNanos)
+      {
+         this.names = names;
+         this.types = types;
+         this.produceNanos = produceNanos;
+         this.bindNanos = bindNanos;
+         this.unbindNanos = unbindNanos;
+      }
+   }
+}
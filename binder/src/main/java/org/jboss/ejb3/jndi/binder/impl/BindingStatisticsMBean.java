@@ -0,0 +1,76 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.binder.impl;
+
+/**
+ * JMX view of the bindings of a deployment.
+ */
+public interface BindingStatisticsMBean
+{
+   /**
+    * Get the bound components, by their java:global name.
+    *
+    * @return the components
+    */
+   String[] getComponents();
+
+   /**
+    * Get the names bound by a component, as namespace:name.
+    *
+    * @param component the component
+    * @return the bound names
+    */
+   String[] getBoundNames(String component);
+
+   /**
+    * Get the views of a component, as business interface=view type.
+    *
+    * @param component the component
+    * @return the view types
+    */
+   String[] getViewTypes(String component);
+
+   /**
+    * Get the time the last bind of a component spent producing proxies.
+    *
+    * @param component the component
+    * @return the time in nanoseconds
+    */
+   long getProxyProductionTime(String component);
+
+   /**
+    * Get the time the last bind of a component took, producing proxies included.
+    *
+    * @param component the component
+    * @return the time in nanoseconds
+    */
+   long getBindTime(String component);
+
+   long getUnbindTime(String component);
+
+   /**
+    * Print all statistics.
+    *
+    * @return the statistics, one component per line followed by its names
+    */
+   String listStatistics();
+}
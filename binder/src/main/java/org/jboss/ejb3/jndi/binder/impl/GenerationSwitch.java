@@ -0,0 +1,363 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright (c) 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.binder.impl;
+
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.LinkRef;
+import javax.naming.Name;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingException;
+import javax.naming.RefAddr;
+import javax.naming.Reference;
+import javax.naming.StringRefAddr;
+import javax.naming.spi.NamingManager;
+import javax.naming.spi.ObjectFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jboss.ejb3.jndi.binder.EJBBinder;
+import org.jboss.logging.Logger;
+
+/**
+ * Serves the names of a deployment from one generation, while the next one is bound.
+ *
+ * The names themselves are bound once, as references which resolve through the switch.
+ * The binders of a new deployment stage their values into a shadow generation, while
+ * the current generation keeps serving. Cutover then swaps the whole shadow generation in
+ * at once. Afterwards the old generation is retired in the background: names the new
+ * generation no longer has are unbound and the old binders' unbind listeners learn
+ * about every value which went away.
+ *
+ * Lookups of names which are not in the current generation yet fall back to the shadow
+ * generation, so a first deployment or an added bean is visible before cutover. During
+ * a redeploy, lookups made before cutover still see the old generation.
+ *
+ * Switches are kept by id until a retirement leaves them without any names, so the id
+ * has to stay the same across redeploys.
+ *
+ * An undeploy keeps the names served until the retirement delay has passed, so a redeploy
+ * can take them over. Until then lookups still get the values of the undeployed generation,
+ * which might be proxies of stopped containers. Keep the delay short.
+ */
+public class GenerationSwitch
+{
+   private static final Logger log = Logger.getLogger(GenerationSwitch.class);
+
+   private static final String SWITCH = "generation-switch";
+   private static final String KEY = "generation-key";
+
+   private static final ConcurrentMap<String, GenerationSwitch> switches = new ConcurrentHashMap<String, GenerationSwitch>();
+
+   private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+   {
+      public Thread newThread(Runnable r)
+      {
+         Thread thread = new Thread(r, "EJBBinder-generations");
+         thread.setDaemon(true);
+         return thread;
+      }
+   });
+
+   private final String id;
+   private final AtomicReference<Generation> current = new AtomicReference<Generation>(new Generation(0));
+   private Generation shadow = new Generation(1);
+   private ScheduledFuture<?> retirement;
+   private boolean pruned;
+
+   private GenerationSwitch(String id)
+   {
+      this.id = id;
+   }
+
+   /**
+    * Get the switch with an id, created if needed.
+    *
+    * @param id the id
+    * @return the switch
+    */
+   public static GenerationSwitch getSwitch(String id)
+   {
+      if (id == null)
+         throw new IllegalArgumentException("Null id");
+
+      synchronized (switches)
+      {
+         GenerationSwitch result = switches.get(id);
+         if (result == null)
+         {
+            result = new GenerationSwitch(id);
+            switches.put(id, result);
+         }
+         return result;
+      }
+   }
+
+   public String getId()
+   {
+      return id;
+   }
+
+   /**
+    * Get the number of the serving generation, which starts at 0 and goes up by one on every cutover.
+    *
+    * @return the generation number
+    */
+   public int getGeneration()
+   {
+      return current.get().number;
+   }
+
+   /**
+    * Stage a value into the shadow generation.
+    *
+    * @param key the key of the name, the same across generations
+    * @param ctx the context the name is bound in
+    * @param entry the plan entry of the name
+    * @param value the value
+    * @param binder the binder of the value
+    * @return the reference to bind at the name
+    */
+   public synchronized Reference stage(String key, Context ctx, BindingPlan.Entry entry, Object value, EJBBinder binder)
+   {
+      if (key == null)
+         throw new IllegalArgumentException("Null key");
+
+      // got before the last retirement pruned it
+      if (pruned)
+      {
+         synchronized (switches)
+         {
+            GenerationSwitch other = switches.get(id);
+            if (other != null && other != this)
+               throw new IllegalStateException("Generation switch " + id + " was replaced");
+            switches.put(id, this);
+         }
+         pruned = false;
+      }
+      shadow.records.put(key, new Record(ctx, entry, value, binder));
+      Reference ref = new Reference(entry.getView().getBusinessInterface().getName(), new StringRefAddr(SWITCH, id), GenerationObjectFactory.class.getName(), null);
+      ref.add(new StringRefAddr(KEY, key));
+      return ref;
+   }
+
+   /**
+    * Get the current value of a name.
+    *
+    * @param key the key of the name
+    * @return the value
+    * @throws NameNotFoundException if neither the current nor the shadow generation has the name
+    */
+   public Object resolve(String key) throws NameNotFoundException
+   {
+      Record record = current.get().records.get(key);
+      if (record == null)
+      {
+         synchronized (this)
+         {
+            record = shadow.records.get(key);
+         }
+      }
+      if (record == null)
+         throw new NameNotFoundException(key + " not in generation " + getGeneration() + " of " + id);
+      return record.value;
+   }
+
+   /**
+    * Serve the shadow generation from now on, and retire the previous one in the background.
+    *
+    * @return the future retirement of the previous generation
+    */
+   public Future<?> cutover()
+   {
+      final Generation old;
+      synchronized (this)
+      {
+         if (retirement != null)
+         {
+            retirement.cancel(false);
+            retirement = null;
+         }
+         Generation next = shadow;
+         shadow = new Generation(next.number + 1);
+         old = current.getAndSet(next);
+      }
+      return scheduler.submit(new Runnable()
+      {
+         public void run()
+         {
+            retire(old);
+         }
+      });
+   }
+
+   /**
+    * Retire the current generation after a delay, unless there is a cutover first.
+    * This is what an undeploy does, the names stay until a redeploy had time to take over.
+    * Once the retirement leaves the switch without any names, the switch is dropped.
+    *
+    * @param delay the delay in milliseconds
+    * @return the future retirement
+    */
+   public synchronized Future<?> retire(long delay)
+   {
+      if (retirement != null)
+         retirement.cancel(false);
+      retirement = scheduler.schedule(new Runnable()
+      {
+         public void run()
+         {
+            Generation old;
+            synchronized (GenerationSwitch.this)
+            {
+               retirement = null;
+               Generation empty = new Generation(current.get().number);
+               old = current.getAndSet(empty);
+            }
+            retire(old);
+            prune();
+         }
+      }, delay, TimeUnit.MILLISECONDS);
+      return retirement;
+   }
+
+   /**
+    * Drop the switch if no generation has any names left.
+    */
+   private synchronized void prune()
+   {
+      if (current.get().records.isEmpty() == false || shadow.records.isEmpty() == false)
+         return;
+      synchronized (switches)
+      {
+         switches.remove(id, this);
+      }
+      pruned = true;
+   }
+
+   private void retire(Generation old)
+   {
+      for (Map.Entry<String, Record> e : old.records.entrySet())
+      {
+         Record record = e.getValue();
+         try
+         {
+            // decided and done under the lock, so a binder staging the same name either keeps it or binds it again
+            synchronized (this)
+            {
+               boolean unbind = !isServed(current.get(), e.getKey(), record.ctx) && !isServed(shadow, e.getKey(), record.ctx);
+               record.binder.retire(record.ctx, record.entry, record.value, unbind);
+            }
+         }
+         catch (NamingException ex)
+         {
+            log.warn("Failed to retire " + record.entry.getName() + " of generation " + old.number + " of " + id, ex);
+         }
+         catch (RuntimeException ex)
+         {
+            log.warn("Failed to retire " + record.entry.getName() + " of generation " + old.number + " of " + id, ex);
+         }
+      }
+   }
+
+   private static boolean isServed(Generation generation, String key, Context ctx)
+   {
+      Record record = generation.records.get(key);
+      return record != null && record.ctx == ctx;
+   }
+
+   /**
+    * Check whether a reference was made by a switch for a key.
+    *
+    * @param obj the bound object
+    * @param ref the reference
+    * @return true if both resolve the same name through the same switch
+    */
+   public static boolean isSame(Object obj, Reference ref)
+   {
+      return obj instanceof Reference && GenerationObjectFactory.class.getName().equals(((Reference) obj).getFactoryClassName()) && ref.equals(obj);
+   }
+
+   private static class Generation
+   {
+      final int number;
+      final Map<String, Record> records = Collections.synchronizedMap(new HashMap<String, Record>());
+
+      Generation(int number)
+      {
+         this.number = number;
+      }
+   }
+
+   private static class Record
+   {
+      final Context ctx;
+      final BindingPlan.Entry entry;
+      final Object value;
+      final EJBBinder binder;
+
+      Record(Context ctx, BindingPlan.Entry entry, Object value, EJBBinder binder)
+      {
+         this.ctx = ctx;
+         this.entry = entry;
+         this.value = value;
+         this.binder = binder;
+      }
+   }
+
+   public static class GenerationObjectFactory implements ObjectFactory
+   {
+      public Object getObjectInstance(Object obj, Name name, Context context, Hashtable<?, ?> environment) throws Exception
+      {
+         if (obj == null || obj instanceof Reference == false)
+            return null;
+
+         Reference ref = (Reference) obj;
+         RefAddr switchAddr = ref.get(SWITCH);
+         RefAddr keyAddr = ref.get(KEY);
+         if (switchAddr == null || keyAddr == null)
+            return null;
+
+         GenerationSwitch generations = switches.get((String) switchAddr.getContent());
+         if (generations == null)
+            throw new NameNotFoundException("No generations of " + switchAddr.getContent());
+         Object value = generations.resolve((String) keyAddr.getContent());
+         if (value instanceof LinkRef)
+            return new InitialContext(environment).lookup(((LinkRef) value).getLinkName());
+         if (value instanceof Reference)
+            return NamingManager.getObjectInstance(value, name, context, environment);
+         return value;
+      }
+   }
+}
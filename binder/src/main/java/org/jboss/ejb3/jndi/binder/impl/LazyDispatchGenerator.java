@@ -0,0 +1,362 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ejb3.jndi.binder.impl;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import javassist.CannotCompileException;
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.Bytecode;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.DuplicateMemberException;
+import javassist.bytecode.ExceptionsAttribute;
+import javassist.bytecode.FieldInfo;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+import javassist.util.proxy.FactoryHelper;
+
+/**
+ * Generates lazy proxy classes which dispatch straight to the target.
+ *
+ * For every business method the generated class contains a method which casts the
+ * resolved target to the proxied type and invokes the same method on it. There is
+ * no reflection involved and, once the target is resolved, no allocation either.
+ *
+ * The generated class has a single constructor taking the {@link Callable} which
+ * resolves the target, so it only depends on JDK types.
+ */
+public class LazyDispatchGenerator
+{
+   /** The suffix of generated class names */
+   public static final String SUFFIX = "$$LazyDispatch";
+
+   private static final String FIELD = "_lazyTarget";
+   private static final String CALLABLE = Callable.class.getName();
+   private static final String CALLABLE_DESC = "Ljava/util/concurrent/Callable;";
+
+   /**
+    * Generate and define a direct dispatch proxy class.
+    *
+    * @param clazz the interface or class to proxy
+    * @return the proxy class
+    */
+   public static Class<?> generate(final Class<?> clazz)
+   {
+      SecurityManager sm = System.getSecurityManager();
+      if (sm == null)
+         return define(clazz, createClassFile(clazz));
+      else
+         return AccessController.doPrivileged(new PrivilegedAction<Class<?>>()
+         {
+            public Class<?> run()
+            {
+               return define(clazz, createClassFile(clazz));
+            }
+         });
+   }
+
+   /**
+    * Define a generated proxy class next to the proxied class.
+    *
+    * @param clazz the interface or class to proxy
+    * @param classFile the proxy class file
+    * @return the proxy class
+    */
+   protected static Class<?> define(Class<?> clazz, ClassFile classFile)
+   {
+      ClassLoader loader = clazz.getClassLoader();
+      if (loader == null)
+         loader = LazyDispatchGenerator.class.getClassLoader();
+      // defined before, for instance before its cache entry was cleared
+      Class<?> existing = findDefined(loader, classFile.getName());
+      if (existing != null)
+         return existing;
+      try
+      {
+         return FactoryHelper.toClass(classFile, loader, clazz.getProtectionDomain());
+      }
+      catch (CannotCompileException e)
+      {
+         throw new RuntimeException("Cannot define lazy proxy for " + clazz, e);
+      }
+   }
+
+   private static Class<?> findDefined(ClassLoader loader, String name)
+   {
+      try
+      {
+         Class<?> existing = Class.forName(name, false, loader);
+         return existing.getClassLoader() == loader ? existing : null;
+      }
+      catch (ClassNotFoundException e)
+      {
+         return null;
+      }
+   }
+
+   /**
+    * Create the class file of the direct dispatch proxy.
+    *
+    * @param clazz the interface or class to proxy
+    * @return the proxy class file
+    */
+   public static ClassFile createClassFile(Class<?> clazz)
+   {
+      try
+      {
+         return createClassFile0(clazz);
+      }
+      catch (DuplicateMemberException e)
+      {
+         throw new RuntimeException("Cannot generate lazy proxy for " + clazz, e);
+      }
+   }
+
+   private static ClassFile createClassFile0(Class<?> clazz) throws DuplicateMemberException
+   {
+      String proxyName = getProxyClassName(clazz);
+      String superName = clazz.isInterface() ? Object.class.getName() : clazz.getName();
+      ClassFile cf = new ClassFile(false, proxyName, superName);
+      // no stack map tables needed
+      cf.setMajorVersion(ClassFile.JAVA_5);
+      cf.setAccessFlags(AccessFlag.PUBLIC | AccessFlag.SUPER);
+      if (clazz.isInterface())
+         cf.setInterfaces(new String[]{clazz.getName()});
+      ConstPool cp = cf.getConstPool();
+
+      FieldInfo field = new FieldInfo(cp, FIELD, CALLABLE_DESC);
+      field.setAccessFlags(AccessFlag.PRIVATE | AccessFlag.FINAL);
+      cf.addField(field);
+
+      addConstructor(cf, proxyName, superName);
+      addObjectMethods(cf, proxyName);
+
+      Set<String> done = new HashSet<String>();
+      for (Method method : clazz.getMethods())
+      {
+         int modifiers = method.getModifiers();
+         if (Modifier.isStatic(modifiers) || Modifier.isFinal(modifiers) || method.isBridge() || isObjectMethod(method))
+            continue;
+         String desc = getDescriptor(method.getParameterTypes(), method.getReturnType());
+         // the same method can be inherited through more than one interface
+         if (done.add(method.getName() + desc) == false)
+            continue;
+
+         addDispatchMethod(cf, proxyName, clazz, method, desc);
+      }
+      return cf;
+   }
+
+   /**
+    * Get the name of the proxy class generated for a class.
+    *
+    * @param clazz the interface or class to proxy
+    * @return the proxy class name
+    */
+   public static String getProxyClassName(Class<?> clazz)
+   {
+      String name = clazz.getName();
+      // can't define classes in the java packages
+      if (name.startsWith("java."))
+         name = LazyDispatchGenerator.class.getPackage().getName() + "." + name;
+      return name + SUFFIX;
+   }
+
+   private static void addConstructor(ClassFile cf, String proxyName, String superName) throws DuplicateMemberException
+   {
+      ConstPool cp = cf.getConstPool();
+      MethodInfo mi = new MethodInfo(cp, MethodInfo.nameInit, "(" + CALLABLE_DESC + ")V");
+      mi.setAccessFlags(AccessFlag.PUBLIC);
+      Bytecode code = new Bytecode(cp, 0, 2);
+      code.addAload(0);
+      code.addInvokespecial(superName, MethodInfo.nameInit, "()V");
+      code.addAload(0);
+      code.addAload(1);
+      code.addPutfield(proxyName, FIELD, CALLABLE_DESC);
+      code.addOpcode(Opcode.RETURN);
+      mi.setCodeAttribute(code.toCodeAttribute());
+      cf.addMethod(mi);
+   }
+
+   private static void addObjectMethods(ClassFile cf, String proxyName) throws DuplicateMemberException
+   {
+      ConstPool cp = cf.getConstPool();
+
+      // toString describes the link
+      MethodInfo mi = new MethodInfo(cp, "toString", "()Ljava/lang/String;");
+      mi.setAccessFlags(AccessFlag.PUBLIC);
+      Bytecode code = new Bytecode(cp, 0, 1);
+      code.addAload(0);
+      code.addGetfield(proxyName, FIELD, CALLABLE_DESC);
+      code.addInvokevirtual(Object.class.getName(), "toString", "()Ljava/lang/String;");
+      code.addOpcode(Opcode.ARETURN);
+      mi.setCodeAttribute(code.toCodeAttribute());
+      cf.addMethod(mi);
+
+      // equals and hashCode are identity based
+      mi = new MethodInfo(cp, "equals", "(Ljava/lang/Object;)Z");
+      mi.setAccessFlags(AccessFlag.PUBLIC);
+      code = new Bytecode(cp, 0, 2);
+      code.addAload(0);
+      code.addAload(1);
+      code.addOpcode(Opcode.IF_ACMPNE);
+      code.addIndex(5);
+      code.addIconst(1);
+      code.addOpcode(Opcode.IRETURN);
+      code.addIconst(0);
+      code.addOpcode(Opcode.IRETURN);
+      mi.setCodeAttribute(code.toCodeAttribute());
+      cf.addMethod(mi);
+
+      mi = new MethodInfo(cp, "hashCode", "()I");
+      mi.setAccessFlags(AccessFlag.PUBLIC);
+      code = new Bytecode(cp, 0, 1);
+      code.addAload(0);
+      code.addInvokestatic(System.class.getName(), "identityHashCode", "(Ljava/lang/Object;)I");
+      code.addOpcode(Opcode.IRETURN);
+      mi.setCodeAttribute(code.toCodeAttribute());
+      cf.addMethod(mi);
+   }
+
+   private static void addDispatchMethod(ClassFile cf, String proxyName, Class<?> clazz, Method method, String desc) throws DuplicateMemberException
+   {
+      ConstPool cp = cf.getConstPool();
+      MethodInfo mi = new MethodInfo(cp, method.getName(), desc);
+      mi.setAccessFlags(AccessFlag.PUBLIC);
+      Class<?>[] exceptionTypes = method.getExceptionTypes();
+      if (exceptionTypes.length > 0)
+      {
+         String[] exceptions = new String[exceptionTypes.length];
+         for (int i = 0; i < exceptions.length; i++)
+            exceptions[i] = exceptionTypes[i].getName();
+         ExceptionsAttribute ea = new ExceptionsAttribute(cp);
+         ea.setExceptions(exceptions);
+         mi.setExceptionsAttribute(ea);
+      }
+
+      Bytecode code = new Bytecode(cp, 0, 0);
+      // ((Type) _lazyTarget.call()).method(args)
+      code.addAload(0);
+      code.addGetfield(proxyName, FIELD, CALLABLE_DESC);
+      code.addInvokeinterface(CALLABLE, "call", "()Ljava/lang/Object;", 1);
+      code.addCheckcast(clazz.getName());
+      int slot = 1;
+      for (Class<?> type : method.getParameterTypes())
+         slot += addLoad(code, slot, type);
+      if (clazz.isInterface())
+         code.addInvokeinterface(clazz.getName(), method.getName(), desc, slot);
+      else
+         code.addInvokevirtual(clazz.getName(), method.getName(), desc);
+      code.addOpcode(getReturnOpcode(method.getReturnType()));
+      code.setMaxLocals(slot);
+      mi.setCodeAttribute(code.toCodeAttribute());
+      cf.addMethod(mi);
+   }
+
+   private static int addLoad(Bytecode code, int slot, Class<?> type)
+   {
+      if (type == Long.TYPE)
+      {
+         code.addLload(slot);
+         return 2;
+      }
+      if (type == Double.TYPE)
+      {
+         code.addDload(slot);
+         return 2;
+      }
+      if (type == Float.TYPE)
+         code.addFload(slot);
+      else if (type.isPrimitive())
+         code.addIload(slot);
+      else
+         code.addAload(slot);
+      return 1;
+   }
+
+   private static int getReturnOpcode(Class<?> type)
+   {
+      if (type == Void.TYPE)
+         return Opcode.RETURN;
+      if (type == Long.TYPE)
+         return Opcode.LRETURN;
+      if (type == Double.TYPE)
+         return Opcode.DRETURN;
+      if (type == Float.TYPE)
+         return Opcode.FRETURN;
+      if (type.isPrimitive())
+         return Opcode.IRETURN;
+      return Opcode.ARETURN;
+   }
+
+   private static String getDescriptor(Class<?>[] parameterTypes, Class<?> returnType)
+   {
+      StringBuilder sb = new StringBuilder("(");
+      for (Class<?> type : parameterTypes)
+         sb.append(getDescriptor(type));
+      sb.append(')');
+      sb.append(getDescriptor(returnType));
+      return sb.toString();
+   }
+
+   private static String getDescriptor(Class<?> type)
+   {
+      if (type == Void.TYPE)
+         return "V";
+      if (type == Boolean.TYPE)
+         return "Z";
+      if (type == Byte.TYPE)
+         return "B";
+      if (type == Character.TYPE)
+         return "C";
+      if (type == Short.TYPE)
+         return "S";
+      if (type == Integer.TYPE)
+         return "I";
+      if (type == Long.TYPE)
+         return "J";
+      if (type == Float.TYPE)
+         return "F";
+      if (type == Double.TYPE)
+         return "D";
+      if (type.isArray())
+         return type.getName().replace('.', '/');
+      return "L" + type.getName().replace('.', '/') + ";";
+   }
+
+   private static boolean isObjectMethod(Method method)
+   {
+      String name = method.getName();
+      Class<?>[] parameterTypes = method.getParameterTypes();
+      if (parameterTypes.length == 0)
+         return "toString".equals(name) || "hashCode".equals(name) || "finalize".equals(name);
+      return parameterTypes.length == 1 && parameterTypes[0] == Object.class && "equals".equals(name);
+   }
+}
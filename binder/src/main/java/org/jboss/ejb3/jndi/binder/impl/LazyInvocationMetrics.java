@@ -0,0 +1,368 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ejb3.jndi.binder.impl;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per link and method invocation counts and latency histograms of lazy proxies.
+ *
+ * Counters are striped by thread and kept in preallocated arrays, so recording
+ * an invocation does not allocate and hardly contends. Invocations are always
+ * counted, but only 1 in sample rate of them is timed.
+ *
+ * Methods are kept by their signature, so the metrics do not hold on to the
+ * classes of a deployment. The metrics of a link go once its lazy ref is unbound,
+ * proxies invoked after that start over with new ones.
+ *
+ * Only proxies with {@link AbstractLazyProxyFactory.Dispatch#HANDLER} dispatch are
+ * measured, generated dispatch proxies invoke their target directly and are not seen here.
+ *
+ * Disabled by default.
+ */
+public class LazyInvocationMetrics implements LazyInvocationMetricsMBean
+{
+   private static final LazyInvocationMetrics INSTANCE = new LazyInvocationMetrics();
+
+   private final ConcurrentMap<String, LinkMetrics> links = new ConcurrentHashMap<String, LinkMetrics>();
+   private volatile boolean enabled;
+   private volatile int sampleRate = 1;
+
+   public static LazyInvocationMetrics getInstance()
+   {
+      return INSTANCE;
+   }
+
+   public boolean isEnabled()
+   {
+      return enabled;
+   }
+
+   public void setEnabled(boolean enabled)
+   {
+      this.enabled = enabled;
+   }
+
+   public int getSampleRate()
+   {
+      return sampleRate;
+   }
+
+   public void setSampleRate(int sampleRate)
+   {
+      if (sampleRate < 1)
+         throw new IllegalArgumentException("Sample rate must be positive: " + sampleRate);
+
+      this.sampleRate = sampleRate;
+   }
+
+   /**
+    * Get the metrics of a link.
+    *
+    * @param link the link
+    * @return the link metrics
+    */
+   public LinkMetrics getLinkMetrics(String link)
+   {
+      LinkMetrics metrics = links.get(link);
+      if (metrics == null)
+      {
+         metrics = new LinkMetrics();
+         LinkMetrics previous = links.putIfAbsent(link, metrics);
+         if (previous != null)
+            metrics = previous;
+      }
+      return metrics;
+   }
+
+   /**
+    * Drop the metrics of a link.
+    *
+    * @param link the link
+    */
+   public void removeLinkMetrics(String link)
+   {
+      LinkMetrics metrics = links.remove(link);
+      if (metrics != null)
+         metrics.removed = true;
+   }
+
+   public String[] getMethods()
+   {
+      Map<String, Histogram> all = getAll();
+      return all.keySet().toArray(new String[all.size()]);
+   }
+
+   public long getInvocationCount(String link, String method)
+   {
+      Histogram histogram = getHistogram(link, method);
+      return histogram != null ? histogram.getCount() : 0;
+   }
+
+   public long getSampleCount(String link, String method)
+   {
+      Histogram histogram = getHistogram(link, method);
+      return histogram != null ? histogram.getSampleCount() : 0;
+   }
+
+   public double getMeanLatency(String link, String method)
+   {
+      Histogram histogram = getHistogram(link, method);
+      return histogram != null ? histogram.getMean() : 0;
+   }
+
+   public long getLatencyPercentile(String link, String method, double percentile)
+   {
+      Histogram histogram = getHistogram(link, method);
+      return histogram != null ? histogram.getPercentile(percentile) : 0;
+   }
+
+   public String listMetrics()
+   {
+      StringBuilder sb = new StringBuilder();
+      for (Map.Entry<String, Histogram> entry : getAll().entrySet())
+      {
+         Histogram histogram = entry.getValue();
+         sb.append(entry.getKey());
+         sb.append(" count=").append(histogram.getCount());
+         sb.append(" sampled=").append(histogram.getSampleCount());
+         sb.append(" mean=").append((long) histogram.getMean()).append("ns");
+         sb.append(" p50=").append(histogram.getPercentile(50)).append("ns");
+         sb.append(" p99=").append(histogram.getPercentile(99)).append("ns");
+         sb.append("\n");
+      }
+      return sb.toString();
+   }
+
+   public void reset()
+   {
+      // proxies hold on to their link metrics, so zero them rather than dropping them
+      for (LinkMetrics metrics : links.values())
+      {
+         for (Histogram histogram : metrics.methods.values())
+            histogram.reset();
+      }
+   }
+
+   private Histogram getHistogram(String link, String method)
+   {
+      LinkMetrics metrics = links.get(link);
+      if (metrics == null)
+         return null;
+
+      return metrics.methods.get(method);
+   }
+
+   private Map<String, Histogram> getAll()
+   {
+      Map<String, Histogram> all = new TreeMap<String, Histogram>();
+      for (Map.Entry<String, LinkMetrics> link : links.entrySet())
+      {
+         for (Map.Entry<String, Histogram> method : link.getValue().methods.entrySet())
+            all.put(link.getKey() + "#" + method.getKey(), method.getValue());
+      }
+      return all;
+   }
+
+   private static String getName(Method method)
+   {
+      StringBuilder sb = new StringBuilder(method.getName()).append('(');
+      Class<?>[] types = method.getParameterTypes();
+      for (int i = 0; i < types.length; i++)
+      {
+         if (i > 0)
+            sb.append(',');
+         sb.append(types[i].getName());
+      }
+      return sb.append(')').toString();
+   }
+
+   /**
+    * The metrics of all methods invoked through a link.
+    */
+   public class LinkMetrics
+   {
+      private final ConcurrentMap<String, Histogram> methods = new ConcurrentHashMap<String, Histogram>();
+      private volatile boolean removed;
+
+      /**
+       * Whether these metrics were dropped, holders should get the link metrics again.
+       *
+       * @return true if removed
+       */
+      public boolean isRemoved()
+      {
+         return removed;
+      }
+
+      /**
+       * Get the histogram of a method.
+       *
+       * @param method the method
+       * @return the histogram
+       */
+      public Histogram getHistogram(Method method)
+      {
+         String name = getName(method);
+         Histogram histogram = methods.get(name);
+         if (histogram == null)
+         {
+            histogram = new Histogram();
+            Histogram previous = methods.putIfAbsent(name, histogram);
+            if (previous != null)
+               histogram = previous;
+         }
+         return histogram;
+      }
+
+      /**
+       * Count an invocation.
+       *
+       * @param histogram the histogram of the method
+       * @return the histogram to record the latency in, or null if this invocation is not sampled
+       */
+      public Histogram count(Histogram histogram)
+      {
+         return histogram.count(sampleRate) ? histogram : null;
+      }
+   }
+
+   /**
+    * Striped counters and a log2 latency histogram.
+    */
+   public static class Histogram
+   {
+      private static final int STRIPES;
+      private static final int BUCKETS = 48;
+      private static final int COUNT = 0;
+      private static final int SAMPLES = 1;
+      private static final int TOTAL = 2;
+      private static final int HISTOGRAM = 3;
+      // keep stripes on separate cache lines
+      private static final int STRIDE = (HISTOGRAM + BUCKETS + 7) & ~7;
+
+      static
+      {
+         int stripes = 1;
+         int processors = Math.min(Runtime.getRuntime().availableProcessors(), 8);
+         while (stripes < processors)
+            stripes <<= 1;
+         STRIPES = stripes;
+      }
+
+      private final AtomicLongArray cells = new AtomicLongArray(STRIPES * STRIDE);
+
+      private static int stripe()
+      {
+         return ((int) Thread.currentThread().getId() & (STRIPES - 1)) * STRIDE;
+      }
+
+      boolean count(int sampleRate)
+      {
+         long n = cells.incrementAndGet(stripe() + COUNT);
+         if ((sampleRate & (sampleRate - 1)) == 0)
+            return (n & (sampleRate - 1)) == 0;
+         return n % sampleRate == 0;
+      }
+
+      /**
+       * Record a latency.
+       *
+       * @param nanos the latency in nanoseconds
+       */
+      public void record(long nanos)
+      {
+         if (nanos < 0)
+            nanos = 0;
+         int bucket = Math.min(64 - Long.numberOfLeadingZeros(nanos), BUCKETS - 1);
+         int offset = stripe();
+         cells.incrementAndGet(offset + SAMPLES);
+         cells.addAndGet(offset + TOTAL, nanos);
+         cells.incrementAndGet(offset + HISTOGRAM + bucket);
+      }
+
+      public long getCount()
+      {
+         return sum(COUNT);
+      }
+
+      public long getSampleCount()
+      {
+         return sum(SAMPLES);
+      }
+
+      public double getMean()
+      {
+         long samples = getSampleCount();
+         return samples > 0 ? (double) sum(TOTAL) / samples : 0;
+      }
+
+      /**
+       * Get a percentile, as the upper bound of its bucket.
+       *
+       * @param percentile the percentile, between 0 and 100
+       * @return the latency in nanoseconds
+       */
+      public long getPercentile(double percentile)
+      {
+         long[] buckets = new long[BUCKETS];
+         long samples = 0;
+         for (int i = 0; i < BUCKETS; i++)
+         {
+            buckets[i] = sum(HISTOGRAM + i);
+            samples += buckets[i];
+         }
+         if (samples == 0)
+            return 0;
+
+         long threshold = (long) Math.ceil(samples * percentile / 100);
+         long seen = 0;
+         for (int i = 0; i < BUCKETS; i++)
+         {
+            seen += buckets[i];
+            if (seen >= threshold && buckets[i] > 0)
+               return 1L << i;
+         }
+         return 1L << (BUCKETS - 1);
+      }
+
+      void reset()
+      {
+         for (int i = 0; i < cells.length(); i++)
+            cells.set(i, 0);
+      }
+
+      private long sum(int index)
+      {
+         long sum = 0;
+         for (int i = 0; i < STRIPES; i++)
+            sum += cells.get(i * STRIDE + index);
+         return sum;
+      }
+   }
+}
@@ -0,0 +1,74 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ejb3.jndi.binder.impl;
+
+/**
+ * JMX view of the lazy proxy invocation metrics, only proxies with handler dispatch are measured.
+ */
+public interface LazyInvocationMetricsMBean
+{
+   boolean isEnabled();
+
+   void setEnabled(boolean enabled);
+
+   /**
+    * Get the sample rate, the latency of 1 in rate invocations is measured.
+    *
+    * @return the sample rate
+    */
+   int getSampleRate();
+
+   void setSampleRate(int sampleRate);
+
+   /**
+    * Get the instrumented methods, as link#method.
+    *
+    * @return the instrumented methods
+    */
+   String[] getMethods();
+
+   long getInvocationCount(String link, String method);
+
+   long getSampleCount(String link, String method);
+
+   double getMeanLatency(String link, String method);
+
+   /**
+    * Get a latency percentile, as the upper bound of its histogram bucket.
+    *
+    * @param link the link
+    * @param method the method
+    * @param percentile the percentile, between 0 and 100
+    * @return the latency in nanoseconds
+    */
+   long getLatencyPercentile(String link, String method, double percentile);
+
+   /**
+    * Print all metrics.
+    *
+    * @return the metrics, one method per line
+    */
+   String listMetrics();
+
+   void reset();
+}
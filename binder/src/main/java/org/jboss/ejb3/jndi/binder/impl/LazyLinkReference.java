@@ -0,0 +1,55 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ejb3.jndi.binder.impl;
+
+import javax.naming.RefAddr;
+import javax.naming.Reference;
+
+/**
+ * A lazy link ref which already carries its proxy class, generated at bind time.
+ *
+ * The proxy class is transient, a copy which went through serialization
+ * simply falls back to generating it at lookup.
+ */
+public class LazyLinkReference extends Reference
+{
+   private static final long serialVersionUID = 1L;
+
+   private transient Class<?> proxyClass;
+
+   public LazyLinkReference(String className, RefAddr addr, String factory, Class<?> proxyClass)
+   {
+      super(className, addr, factory, null);
+      this.proxyClass = proxyClass;
+   }
+
+   /**
+    * Get the proxy class.
+    *
+    * @return the proxy class or null if not known
+    */
+   public Class<?> getProxyClass()
+   {
+      return proxyClass;
+   }
+}
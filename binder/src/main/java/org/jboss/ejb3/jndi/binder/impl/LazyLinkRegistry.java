@@ -0,0 +1,159 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ejb3.jndi.binder.impl;
+
+import javax.naming.Context;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Generations of all lazy links, and the lazy targets shared by all proxies for the same link.
+ *
+ * A shared link is resolved once for all its proxies, until it is invalidated. Links are
+ * resolved against the context of the first proxy to ask for them, so this is meant
+ * for links which are absolute names. It is not meant for links to stateful beans, of which
+ * every proxy must get a session of its own.
+ *
+ * Links are only ever invalidated by their exact name. A generation is only held on to
+ * as long as some proxy holds it, after which its entry is dropped.
+ */
+public class LazyLinkRegistry
+{
+   private final ConcurrentMap<String, GenerationRef> generations = new ConcurrentHashMap<String, GenerationRef>();
+   private final ReferenceQueue<LinkGeneration> queue = new ReferenceQueue<LinkGeneration>();
+   private final ConcurrentMap<String, LazyTarget> targets = new ConcurrentHashMap<String, LazyTarget>();
+
+   /**
+    * Get the generation of a link.
+    *
+    * @param link the link name
+    * @return the generation
+    */
+   public LinkGeneration getGeneration(String link)
+   {
+      expunge();
+      while (true)
+      {
+         GenerationRef ref = generations.get(link);
+         LinkGeneration generation = ref != null ? ref.get() : null;
+         if (generation != null)
+            return generation;
+
+         generation = new LinkGeneration();
+         GenerationRef newRef = new GenerationRef(link, generation, queue);
+         if (ref == null)
+         {
+            if (generations.putIfAbsent(link, newRef) == null)
+               return generation;
+         }
+         else if (generations.replace(link, ref, newRef))
+         {
+            return generation;
+         }
+      }
+   }
+
+   /**
+    * Get the shared target for a link.
+    *
+    * @param link the link name
+    * @param context the context to resolve the link in, if it is not yet known
+    * @return the shared target
+    */
+   public LazyTarget getTarget(String link, Context context)
+   {
+      LazyTarget target = targets.get(link);
+      if (target == null)
+      {
+         target = new SingleFlightLazyTarget(link, context, getGeneration(link));
+         LazyTarget previous = targets.putIfAbsent(link, target);
+         if (previous != null)
+            target = previous;
+      }
+      return target;
+   }
+
+   /**
+    * Invalidate the resolution of a link, for instance because its target got unbound.
+    *
+    * @param link the link name
+    * @return true if the link was known
+    */
+   public boolean invalidate(String link)
+   {
+      expunge();
+      targets.remove(link);
+      GenerationRef ref = generations.get(link);
+      LinkGeneration generation = ref != null ? ref.get() : null;
+      if (generation == null)
+         return false;
+
+      // proxies still holding on to a target must look up again
+      generation.increment();
+      return true;
+   }
+
+   /**
+    * Invalidate all links.
+    */
+   public void clear()
+   {
+      for (String link : generations.keySet())
+         invalidate(link);
+   }
+
+   /**
+    * The number of links for which a generation is held.
+    *
+    * @return the number of links
+    */
+   public int size()
+   {
+      expunge();
+      return generations.size();
+   }
+
+   /**
+    * Drop the entries of generations no proxy holds any more.
+    */
+   private void expunge()
+   {
+      GenerationRef ref;
+      while ((ref = (GenerationRef) queue.poll()) != null)
+         generations.remove(ref.link, ref);
+   }
+
+   private static class GenerationRef extends WeakReference<LinkGeneration>
+   {
+      private final String link;
+
+      GenerationRef(String link, LinkGeneration generation, ReferenceQueue<LinkGeneration> queue)
+      {
+         super(generation, queue);
+         this.link = link;
+      }
+   }
+}
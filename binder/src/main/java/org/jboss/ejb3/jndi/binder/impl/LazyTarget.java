@@ -0,0 +1,142 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ejb3.jndi.binder.impl;
+
+import javax.naming.Context;
+import javax.naming.NamingException;
+
+import java.util.concurrent.Callable;
+
+/**
+ * The target of a lazy link, looked up on first use.
+ *
+ * It implements {@link Callable} so generated proxy classes only depend on JDK types
+ * and can be defined in any deployment class loader.
+ *
+ * If it is given the {@link LinkGeneration} of its link, a resolved target only serves
+ * as long as the generation did not move on, after that the link is looked up again.
+ */
+public class LazyTarget implements Callable<Object>
+{
+   private String link;
+   private Context context;
+   private LinkGeneration generation;
+   private Resolved resolved;
+
+   public LazyTarget(String link, Context context)
+   {
+      this(link, context, null);
+   }
+
+   public LazyTarget(String link, Context context, LinkGeneration generation)
+   {
+      this.link = link;
+      this.context = context;
+      this.generation = generation;
+   }
+
+   /**
+    * Get the target, looking it up if needed.
+    *
+    * @return the target
+    * @throws NamingException for any error looking up the link
+    */
+   public Object call() throws NamingException
+   {
+      Resolved current = resolved;
+      if (isCurrent(current))
+         return current.target;
+
+      // read before the lookup, so an unbind during the lookup is not missed
+      int resolvedIn = currentGeneration();
+      Object target = lookup();
+      resolved = new Resolved(target, resolvedIn);
+      return target;
+   }
+
+   /**
+    * Look up the link.
+    *
+    * @return the link target
+    * @throws NamingException for any error looking up the link
+    */
+   protected Object lookup() throws NamingException
+   {
+      return context.lookup(link);
+   }
+
+   /**
+    * Get the current generation of the link.
+    *
+    * @return the generation, 0 if it is not tracked
+    */
+   protected int currentGeneration()
+   {
+      return generation != null ? generation.get() : 0;
+   }
+
+   /**
+    * Is the resolved target still usable.
+    *
+    * @param current the resolved target, can be null
+    * @return true if it is resolved and its generation is current
+    */
+   protected boolean isCurrent(Resolved current)
+   {
+      return current != null && (generation == null || current.generation == generation.get());
+   }
+
+   /**
+    * Forget the target, the next call looks up the link again.
+    */
+   public void invalidate()
+   {
+      resolved = null;
+   }
+
+   public String getLink()
+   {
+      return link;
+   }
+
+   @Override
+   public String toString()
+   {
+      return "JNDI-link: " + link;
+   }
+
+   /**
+    * A target together with the generation it was resolved in.
+    */
+   protected static class Resolved
+   {
+      final Object target;
+      final int generation;
+
+      Resolved(Object target, int generation)
+      {
+         this.target = target;
+         this.generation = generation;
+      }
+   }
+}
@@ -0,0 +1,136 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright (c) 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.binder.impl;
+
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.LinkRef;
+import javax.naming.NamingException;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Resolves a link once at bind time, so the target can be bound directly
+ * instead of a {@link LinkRef} which is walked on every lookup.
+ *
+ * A flattened binding does not follow its target, it has to be bound again
+ * when the target changes. That is left to whoever binds it: the binder rebinds
+ * on redeploy, and whatever depends on the binder is restarted along with it.
+ */
+public class LinkFlattener
+{
+   private static final Logger log = Logger.getLogger(LinkFlattener.class);
+
+   /**
+    * Resolve a link, falling back to a link ref if it cannot be resolved yet.
+    *
+    * @param linkName the link name
+    * @return the link target or a link ref
+    */
+   public Object flatten(String linkName)
+   {
+      Object target;
+      try
+      {
+         target = lookup(linkName);
+      }
+      catch (NamingException e)
+      {
+         if (log.isDebugEnabled())
+            log.debug("Cannot flatten " + linkName + ", binding a link ref", e);
+         return new LinkRef(linkName);
+      }
+      // nothing sensible to bind under another name
+      if (target == null || target instanceof Context)
+         return new LinkRef(linkName);
+      return target;
+   }
+
+   /**
+    * Take one hop out of a link: if the name holds a link itself, link to its target
+    * instead, otherwise take what is bound under it. Unlike {@link #flatten(String)} the
+    * final link is never followed, so every lookup of a stateful bean still gets a new
+    * session.
+    *
+    * @param linkName the link name
+    * @return the bound object or a link ref
+    */
+   public Object shorten(String linkName)
+   {
+      Object bound;
+      try
+      {
+         bound = lookupLink(linkName);
+      }
+      catch (NamingException e)
+      {
+         if (log.isDebugEnabled())
+            log.debug("Cannot shorten " + linkName + ", binding a link ref", e);
+         return new LinkRef(linkName);
+      }
+      if (bound instanceof LinkRef)
+         return bound;
+      if (bound == null || bound instanceof Context)
+         return new LinkRef(linkName);
+      return bound;
+   }
+
+   /**
+    * Look up the final target of a link.
+    *
+    * @param linkName the link name
+    * @return the target
+    * @throws NamingException for any error looking up the link
+    */
+   protected Object lookup(String linkName) throws NamingException
+   {
+      Context context = new InitialContext();
+      try
+      {
+         return context.lookup(linkName);
+      }
+      finally
+      {
+         context.close();
+      }
+   }
+
+   /**
+    * Look up what is bound under a name, without following a link bound there.
+    *
+    * @param linkName the link name
+    * @return the bound object
+    * @throws NamingException for any error looking up the name
+    */
+   protected Object lookupLink(String linkName) throws NamingException
+   {
+      Context context = new InitialContext();
+      try
+      {
+         return context.lookupLink(linkName);
+      }
+      finally
+      {
+         context.close();
+      }
+   }
+}
@@ -0,0 +1,58 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ejb3.jndi.binder.impl;
+
+/**
+ * Generation of a link, bumped whenever its binding goes away.
+ *
+ * Lazy targets remember the generation they resolved the link in and
+ * look it up again once it moved on, so checking costs a single volatile read.
+ */
+public class LinkGeneration
+{
+   private volatile int value;
+
+   /**
+    * Get the current generation.
+    *
+    * @return the generation
+    */
+   public int get()
+   {
+      return value;
+   }
+
+   /**
+    * Move on to the next generation, which makes all resolved targets stale.
+    */
+   public synchronized void increment()
+   {
+      value++;
+   }
+
+   @Override
+   public String toString()
+   {
+      return "generation " + value;
+   }
+}
@@ -0,0 +1,256 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ejb3.jndi.binder.impl;
+
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.LinkRef;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.ejb3.jndi.binder.spi.BindListener;
+import org.jboss.logging.Logger;
+
+/**
+ * Warms up bound links in the background, so the first business call
+ * does not pay for proxy class generation and the link walk.
+ *
+ * Lazy refs get their proxy class generated for the business interface of the view
+ * and their link resolved if the target is shared, link refs get their link looked up.
+ * This runs on a bounded executor, whatever does not fit into its queue is simply skipped.
+ *
+ * Views of stateful beans must not be handed over, looking them up creates a session.
+ */
+public class LinkWarmup implements BindListener, LinkWarmupMBean
+{
+   private static final Logger log = Logger.getLogger(LinkWarmup.class);
+
+   private final ThreadPoolExecutor executor;
+
+   private final AtomicLong scheduled = new AtomicLong();
+   private final AtomicLong completed = new AtomicLong();
+   private final AtomicLong failed = new AtomicLong();
+   private final AtomicLong rejected = new AtomicLong();
+   private final Object lock = new Object();
+   private volatile long lastCompletionTime;
+
+   public LinkWarmup()
+   {
+      this(2, 1024);
+   }
+
+   public LinkWarmup(int threads, int capacity)
+   {
+      if (threads < 1)
+         throw new IllegalArgumentException("Threads must be positive: " + threads);
+      if (capacity < 1)
+         throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+
+      executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(capacity), new WarmupThreadFactory());
+      executor.allowCoreThreadTimeOut(true);
+   }
+
+   public void bound(View view, final Object obj)
+   {
+      if (AbstractLazyProxyFactory.getLink(obj) != null)
+      {
+         final Class<?> businessInterface = view.getBusinessInterface();
+         submit(obj, new Task()
+         {
+            public void run() throws Exception
+            {
+               AbstractLazyProxyFactory.prepare(obj, businessInterface);
+            }
+         });
+      }
+      else if (obj instanceof LinkRef)
+      {
+         submit(obj, new Task()
+         {
+            public void run() throws Exception
+            {
+               Context context = new InitialContext();
+               try
+               {
+                  context.lookup(((LinkRef) obj).getLinkName());
+               }
+               finally
+               {
+                  context.close();
+               }
+            }
+         });
+      }
+   }
+
+   /**
+    * Stop warming up, pending tasks are dropped.
+    */
+   public void stop()
+   {
+      executor.shutdownNow();
+   }
+
+   /**
+    * Wait until all scheduled tasks are done.
+    *
+    * @param timeout the maximum time to wait
+    * @param unit the time unit
+    * @return true if the warm-up is complete
+    * @throws InterruptedException if interrupted while waiting
+    */
+   public boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException
+   {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      synchronized (lock)
+      {
+         while (isComplete() == false)
+         {
+            long left = deadline - System.nanoTime();
+            if (left <= 0)
+               return false;
+            TimeUnit.NANOSECONDS.timedWait(lock, left);
+         }
+         return true;
+      }
+   }
+
+   public long getScheduled()
+   {
+      return scheduled.get();
+   }
+
+   public long getCompleted()
+   {
+      return completed.get();
+   }
+
+   public long getFailed()
+   {
+      return failed.get();
+   }
+
+   /**
+    * Get the number of skipped tasks, because the queue was full.
+    *
+    * @return the number of rejected tasks
+    */
+   public long getRejected()
+   {
+      return rejected.get();
+   }
+
+   public long getPending()
+   {
+      return scheduled.get() - completed.get() - failed.get();
+   }
+
+   /**
+    * Is everything scheduled so far warmed up.
+    *
+    * @return true if nothing is pending
+    */
+   public boolean isComplete()
+   {
+      return getPending() == 0;
+   }
+
+   /**
+    * Get the time the warm-up was last complete.
+    *
+    * @return the time in millis, 0 if it never ran
+    */
+   public long getLastCompletionTime()
+   {
+      return lastCompletionTime;
+   }
+
+   private void submit(final Object obj, final Task task)
+   {
+      scheduled.incrementAndGet();
+      try
+      {
+         executor.execute(new Runnable()
+         {
+            public void run()
+            {
+               try
+               {
+                  task.run();
+                  completed.incrementAndGet();
+               }
+               catch (Throwable t)
+               {
+                  failed.incrementAndGet();
+                  log.debug("Failed to warm up " + obj, t);
+               }
+               done();
+            }
+         });
+      }
+      catch (RejectedExecutionException e)
+      {
+         scheduled.decrementAndGet();
+         rejected.incrementAndGet();
+         if (log.isTraceEnabled())
+            log.trace("Skipping warm up of " + obj + ", queue is full");
+      }
+   }
+
+   private void done()
+   {
+      if (isComplete() == false)
+         return;
+
+      lastCompletionTime = System.currentTimeMillis();
+      if (log.isDebugEnabled())
+         log.debug("Warm up complete: " + completed.get() + " completed, " + failed.get() + " failed, " + rejected.get() + " rejected");
+      synchronized (lock)
+      {
+         lock.notifyAll();
+      }
+   }
+
+   private interface Task
+   {
+      void run() throws Exception;
+   }
+
+   private static class WarmupThreadFactory implements ThreadFactory
+   {
+      private final AtomicInteger count = new AtomicInteger();
+
+      public Thread newThread(Runnable r)
+      {
+         Thread thread = new Thread(r, "LinkWarmup-" + count.incrementAndGet());
+         thread.setDaemon(true);
+         return thread;
+      }
+   }
+}
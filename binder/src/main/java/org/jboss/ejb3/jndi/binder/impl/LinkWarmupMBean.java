@@ -0,0 +1,57 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.binder.impl;
+
+/**
+ * JMX view of the progress of the link warm-up.
+ */
+public interface LinkWarmupMBean
+{
+   long getScheduled();
+
+   long getCompleted();
+
+   long getFailed();
+
+   /**
+    * Get the number of skipped tasks, because the queue was full.
+    *
+    * @return the number of rejected tasks
+    */
+   long getRejected();
+
+   long getPending();
+
+   /**
+    * Is everything scheduled so far warmed up.
+    *
+    * @return true if nothing is pending
+    */
+   boolean isComplete();
+
+   /**
+    * Get the time the warm-up was last complete.
+    *
+    * @return the time in millis, 0 if it never ran
+    */
+   long getLastCompletionTime();
+}
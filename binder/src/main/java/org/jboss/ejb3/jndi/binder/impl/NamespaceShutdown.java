@@ -0,0 +1,231 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright (c) 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.binder.impl;
+
+import javax.naming.CompositeName;
+import javax.naming.Context;
+import javax.naming.Name;
+import javax.naming.NameClassPair;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jboss.ejb3.jndi.binder.EJBBinder;
+import org.jboss.logging.Logger;
+
+/**
+ * Drops the names of a whole deployment at once, when all of it is stopping.
+ *
+ * Once shutdown has begun, a stopping binder only tells its unbind listeners and hands
+ * its names to the shutdown, instead of unbinding every name. When the last binder of the
+ * deployment is stopped, every subcontext which holds nothing but names of the deployment
+ * is unbound with a single operation, names of others are left alone. The names in
+ * java:module are left to the module context.
+ */
+public class NamespaceShutdown
+{
+   private static final Logger log = Logger.getLogger(NamespaceShutdown.class);
+
+   private boolean stopping;
+   private final Set<EJBBinder> binders = new HashSet<EJBBinder>();
+   private final Map<Context, Set<Name>> detachedNames = new IdentityHashMap<Context, Set<Name>>();
+
+   /**
+    * The whole deployment is stopping, binders stopped from now on are detached.
+    */
+   public synchronized void begin()
+   {
+      stopping = true;
+   }
+
+   /**
+    * The deployment keeps running after all, binders stopped from now on unbind their names.
+    */
+   public synchronized void cancel()
+   {
+      stopping = false;
+   }
+
+   public synchronized boolean isStopping()
+   {
+      return stopping;
+   }
+
+   /**
+    * Register a bound binder.
+    *
+    * @param binder the binder
+    */
+   public synchronized void register(EJBBinder binder)
+   {
+      if (binder == null)
+         throw new IllegalArgumentException("Null binder");
+
+      binders.add(binder);
+   }
+
+   /**
+    * Detach a stopped binder. Once it was the last binder, all names are unbound.
+    *
+    * @param binder the binder
+    * @param names the names the binder has bound, by root context
+    */
+   public void detach(EJBBinder binder, Map<Context, Set<Name>> names)
+   {
+      if (binder == null)
+         throw new IllegalArgumentException("Null binder");
+      if (names == null)
+         throw new IllegalArgumentException("Null names");
+
+      Map<Context, Set<Name>> detached;
+      synchronized (this)
+      {
+         binders.remove(binder);
+         for (Map.Entry<Context, Set<Name>> entry : names.entrySet())
+         {
+            Set<Name> set = detachedNames.get(entry.getKey());
+            if (set == null)
+            {
+               set = new LinkedHashSet<Name>();
+               detachedNames.put(entry.getKey(), set);
+            }
+            set.addAll(entry.getValue());
+         }
+         if (binders.isEmpty() == false)
+            return;
+
+         detached = new IdentityHashMap<Context, Set<Name>>(detachedNames);
+         detachedNames.clear();
+      }
+
+      for (Map.Entry<Context, Set<Name>> entry : detached.entrySet())
+      {
+         Node root = new Node();
+         for (Name name : entry.getValue())
+            root.add(name);
+         try
+         {
+            unbind(entry.getKey(), root, true);
+         }
+         catch (NamingException e)
+         {
+            log.warn("Failed to unbind the names of the deployment under " + entry.getKey(), e);
+         }
+      }
+   }
+
+   /**
+    * Unbind the names below a context. Subcontexts holding only names of the deployment
+    * are left to the caller, so the topmost of them goes with a single unbind.
+    *
+    * @param ctx the context
+    * @param node the names of the deployment below the context
+    * @param root whether ctx is a root context, which is never unbound as a whole
+    * @return true if the context holds nothing but names of the deployment
+    * @throws NamingException for any error listing or looking up a subcontext
+    */
+   private static boolean unbind(Context ctx, Node node, boolean root) throws NamingException
+   {
+      Set<String> bound = new HashSet<String>();
+      NamingEnumeration<NameClassPair> list = ctx.list("");
+      try
+      {
+         while (list.hasMore())
+            bound.add(list.next().getName());
+      }
+      finally
+      {
+         list.close();
+      }
+
+      boolean exclusive = !root && node.children.keySet().containsAll(bound);
+      List<Name> owned = new ArrayList<Name>();
+      for (Map.Entry<String, Node> child : node.children.entrySet())
+      {
+         // already gone
+         if (!bound.contains(child.getKey()))
+            continue;
+         Name name = new CompositeName().add(child.getKey());
+         if (child.getValue().children.isEmpty())
+         {
+            owned.add(name);
+            continue;
+         }
+         Object obj = ctx.lookup(name);
+         if (obj instanceof Context && unbind((Context) obj, child.getValue(), false))
+            owned.add(name);
+         else
+            exclusive = false;
+      }
+      if (exclusive)
+         return true;
+
+      for (Name name : owned)
+      {
+         try
+         {
+            ctx.unbind(name);
+         }
+         catch (NameNotFoundException e)
+         {
+            // already gone
+         }
+         catch (NamingException e)
+         {
+            log.warn("Failed to unbind " + name + " under " + ctx, e);
+         }
+      }
+      return false;
+   }
+
+   /**
+    * The names of the deployment below a context, by atomic name.
+    */
+   private static class Node
+   {
+      final Map<String, Node> children = new LinkedHashMap<String, Node>();
+
+      void add(Name name)
+      {
+         Node node = this;
+         for (int i = 0; i < name.size(); i++)
+         {
+            Node child = node.children.get(name.get(i));
+            if (child == null)
+            {
+               child = new Node();
+               node.children.put(name.get(i), child);
+            }
+            node = child;
+         }
+      }
+   }
+}
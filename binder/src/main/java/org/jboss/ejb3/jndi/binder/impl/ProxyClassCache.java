@@ -0,0 +1,148 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ejb3.jndi.binder.impl;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cache of generated proxy classes, keyed by class loader and the name of the proxied class.
+ *
+ * The class loaders are weakly referenced, so an undeployed class loader can still be collected.
+ * The proxy classes are weakly referenced as well, they are kept alive by their defining class loader.
+ *
+ * Besides the defining class loader of the proxied class, a proxy class can be remembered under
+ * the class loader a lookup started in, so the next lookup from there does not load the class.
+ */
+public class ProxyClassCache
+{
+   private final Map<ClassLoader, ConcurrentMap<String, WeakReference<Class<?>>>> cache = new WeakHashMap<ClassLoader, ConcurrentMap<String, WeakReference<Class<?>>>>();
+   private final Map<ClassLoader, ConcurrentMap<String, WeakReference<Class<?>>>> lookups = new WeakHashMap<ClassLoader, ConcurrentMap<String, WeakReference<Class<?>>>>();
+
+   /**
+    * Get a cached proxy class.
+    *
+    * @param loader the class loader
+    * @param className the proxied class name
+    * @return the proxy class or null if not cached
+    */
+   public Class<?> get(ClassLoader loader, String className)
+   {
+      return get(cache, loader, className);
+   }
+
+   /**
+    * Get a proxy class remembered under the class loader a lookup started in.
+    *
+    * @param loader the class loader of the lookup
+    * @param className the proxied class name
+    * @return the proxy class or null if not remembered
+    */
+   public Class<?> getByLookup(ClassLoader loader, String className)
+   {
+      return get(lookups, loader, className);
+   }
+
+   /**
+    * Remember a proxy class under the class loader a lookup started in. A class loader
+    * always loads the same class for a name, so the proxy class stays the right one.
+    *
+    * @param loader the class loader of the lookup
+    * @param className the proxied class name
+    * @param proxyClass the proxy class
+    */
+   public void putByLookup(ClassLoader loader, String className, Class<?> proxyClass)
+   {
+      getClasses(lookups, loader, true).put(className, new WeakReference<Class<?>>(proxyClass));
+   }
+
+   /**
+    * Cache a proxy class, unless another one was cached in the meantime.
+    *
+    * @param loader the class loader
+    * @param className the proxied class name
+    * @param proxyClass the proxy class
+    * @return the cached proxy class
+    */
+   public Class<?> put(ClassLoader loader, String className, Class<?> proxyClass)
+   {
+      ConcurrentMap<String, WeakReference<Class<?>>> classes = getClasses(cache, loader, true);
+      WeakReference<Class<?>> ref = new WeakReference<Class<?>>(proxyClass);
+      while (true)
+      {
+         WeakReference<Class<?>> previous = classes.putIfAbsent(className, ref);
+         if (previous == null)
+            return proxyClass;
+
+         Class<?> cached = previous.get();
+         if (cached != null)
+            return cached;
+
+         // collected, replace the stale entry
+         if (classes.replace(className, previous, ref))
+            return proxyClass;
+      }
+   }
+
+   /**
+    * Remove all cached proxy classes.
+    */
+   public void clear()
+   {
+      synchronized (cache)
+      {
+         cache.clear();
+      }
+      synchronized (lookups)
+      {
+         lookups.clear();
+      }
+   }
+
+   private static Class<?> get(Map<ClassLoader, ConcurrentMap<String, WeakReference<Class<?>>>> map, ClassLoader loader, String className)
+   {
+      ConcurrentMap<String, WeakReference<Class<?>>> classes = getClasses(map, loader, false);
+      if (classes == null)
+         return null;
+
+      WeakReference<Class<?>> ref = classes.get(className);
+      return ref != null ? ref.get() : null;
+   }
+
+   private static ConcurrentMap<String, WeakReference<Class<?>>> getClasses(Map<ClassLoader, ConcurrentMap<String, WeakReference<Class<?>>>> map, ClassLoader loader, boolean create)
+   {
+      synchronized (map)
+      {
+         ConcurrentMap<String, WeakReference<Class<?>>> classes = map.get(loader);
+         if (classes == null && create)
+         {
+            classes = new ConcurrentHashMap<String, WeakReference<Class<?>>>();
+            map.put(loader, classes);
+         }
+         return classes;
+      }
+   }
+}
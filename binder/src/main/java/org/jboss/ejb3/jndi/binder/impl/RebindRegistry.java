@@ -0,0 +1,204 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright (c) 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.binder.impl;
+
+import javax.naming.NamingException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.ejb3.jndi.binder.EJBBinder;
+import org.jboss.logging.Logger;
+
+/**
+ * Keeps the names of stopped binders bound for a while, so a redeploy of the
+ * same bean can rebind just the difference instead of everything.
+ *
+ * A stopped binder is retained under its key, the java:global name of its bean. A redeploy
+ * is recognized by a new binder of the same application, module and bean claiming it within
+ * the grace period, it then takes the names over. Otherwise the retained binder is released,
+ * which unbinds its names as a plain stop would have. So a plain undeploy keeps serving its
+ * names, through the proxies of the stopped containers, until the grace period is over.
+ */
+public class RebindRegistry
+{
+   private static final Logger log = Logger.getLogger(RebindRegistry.class);
+
+   private final long gracePeriod;
+   private final ScheduledExecutorService scheduler;
+   private final Map<String, Retained> retained = new HashMap<String, Retained>();
+
+   /**
+    * @param gracePeriod the time in milliseconds a stopped binder is retained
+    */
+   public RebindRegistry(long gracePeriod)
+   {
+      if (gracePeriod < 0)
+         throw new IllegalArgumentException("Grace period cannot be negative: " + gracePeriod);
+
+      this.gracePeriod = gracePeriod;
+      this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+      {
+         public Thread newThread(Runnable r)
+         {
+            Thread thread = new Thread(r, "EJBBinder-release");
+            thread.setDaemon(true);
+            return thread;
+         }
+      });
+   }
+
+   /**
+    * Retain a stopped binder. A binder retained earlier under the same key is released.
+    *
+    * @param key the key
+    * @param binder the stopped binder
+    */
+   public void retain(final String key, EJBBinder binder)
+   {
+      if (key == null)
+         throw new IllegalArgumentException("Null key");
+      if (binder == null)
+         throw new IllegalArgumentException("Null binder");
+
+      final Retained entry = new Retained(binder);
+      Retained previous;
+      synchronized (retained)
+      {
+         previous = retained.put(key, entry);
+         entry.release = scheduler.schedule(new Runnable()
+         {
+            public void run()
+            {
+               synchronized (retained)
+               {
+                  if (retained.get(key) != entry)
+                     return;
+                  retained.remove(key);
+               }
+               release(entry.binder);
+            }
+         }, gracePeriod, TimeUnit.MILLISECONDS);
+      }
+      if (previous != null)
+      {
+         previous.release.cancel(false);
+         release(previous.binder);
+      }
+   }
+
+   /**
+    * Take over a retained binder.
+    *
+    * @param key the key
+    * @return the retained binder or null if there is none
+    */
+   public EJBBinder claim(String key)
+   {
+      if (key == null)
+         throw new IllegalArgumentException("Null key");
+
+      Retained entry;
+      synchronized (retained)
+      {
+         entry = retained.remove(key);
+      }
+      if (entry == null)
+         return null;
+      entry.release.cancel(false);
+      return entry.binder;
+   }
+
+   /**
+    * Get the number of retained binders.
+    *
+    * @return the number of retained binders
+    */
+   public int getRetained()
+   {
+      synchronized (retained)
+      {
+         return retained.size();
+      }
+   }
+
+   /**
+    * Release all retained binders now.
+    */
+   public void releaseAll()
+   {
+      List<Retained> entries;
+      synchronized (retained)
+      {
+         entries = new ArrayList<Retained>(retained.values());
+         retained.clear();
+      }
+      for (Retained entry : entries)
+      {
+         entry.release.cancel(false);
+         release(entry.binder);
+      }
+   }
+
+   /**
+    * Release all retained binders and stop releasing in the background.
+    */
+   public void stop()
+   {
+      releaseAll();
+      scheduler.shutdown();
+   }
+
+   private static void release(EJBBinder binder)
+   {
+      try
+      {
+         binder.release();
+      }
+      catch (NamingException e)
+      {
+         log.warn("Failed to release " + binder, e);
+      }
+      catch (RuntimeException e)
+      {
+         log.warn("Failed to release " + binder, e);
+      }
+   }
+
+   private static class Retained
+   {
+      final EJBBinder binder;
+      ScheduledFuture<?> release;
+
+      Retained(EJBBinder binder)
+      {
+         this.binder = binder;
+      }
+   }
+}
@@ -0,0 +1,171 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ejb3.jndi.binder.impl;
+
+import javax.naming.Context;
+import javax.naming.NamingException;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A lazy target which is looked up exactly once, however many threads hit it at the same time.
+ *
+ * The first thread to install an in-flight marker does the lookup, the others spin
+ * briefly and then wait for its outcome. The target is published through an atomic
+ * reference, so once resolved a call costs a single volatile read, plus one for the
+ * link generation if that is tracked.
+ *
+ * If the lookup fails, the waiting threads get the failure as well and the next call
+ * tries again. The same happens after {@link #invalidate()}, a lookup in flight at that
+ * moment still serves its waiters but is not published.
+ */
+public class SingleFlightLazyTarget extends LazyTarget
+{
+   private static final int SPINS = 64;
+
+   /** null, a Flight in progress or the Resolved target */
+   private final AtomicReference<Object> holder = new AtomicReference<Object>();
+
+   public SingleFlightLazyTarget(String link, Context context)
+   {
+      super(link, context);
+   }
+
+   public SingleFlightLazyTarget(String link, Context context, LinkGeneration generation)
+   {
+      super(link, context, generation);
+   }
+
+   @Override
+   public Object call() throws NamingException
+   {
+      Object current = holder.get();
+      if (current instanceof Resolved && isCurrent((Resolved) current))
+         return ((Resolved) current).target;
+
+      return resolve();
+   }
+
+   @Override
+   public void invalidate()
+   {
+      Object current = holder.get();
+      if (current != null)
+         holder.compareAndSet(current, null);
+   }
+
+   private Object resolve() throws NamingException
+   {
+      while (true)
+      {
+         Object current = holder.get();
+         if (current instanceof Flight)
+            return ((Flight) current).await(getLink());
+         if (current != null && isCurrent((Resolved) current))
+            return ((Resolved) current).target;
+
+         // nothing resolved yet or stale
+         Flight flight = new Flight();
+         if (holder.compareAndSet(current, flight) == false)
+            continue;
+
+         try
+         {
+            int resolvedIn = currentGeneration();
+            Object target = lookup();
+            // unless invalidated in the meantime
+            holder.compareAndSet(flight, new Resolved(target, resolvedIn));
+            flight.land(target, null);
+            return target;
+         }
+         catch (NamingException e)
+         {
+            holder.compareAndSet(flight, null);
+            flight.land(null, e);
+            throw e;
+         }
+         catch (RuntimeException e)
+         {
+            holder.compareAndSet(flight, null);
+            flight.land(null, e);
+            throw e;
+         }
+         catch (Error e)
+         {
+            // land anyway, or every later caller waits for good
+            holder.compareAndSet(flight, null);
+            flight.land(null, e);
+            throw e;
+         }
+      }
+   }
+
+   /**
+    * A lookup in progress.
+    */
+   private static class Flight
+   {
+      private final CountDownLatch latch = new CountDownLatch(1);
+      private volatile boolean landed;
+      private Object target;
+      private Throwable failure;
+
+      void land(Object target, Throwable failure)
+      {
+         this.target = target;
+         this.failure = failure;
+         landed = true;
+         latch.countDown();
+      }
+
+      Object await(String link) throws NamingException
+      {
+         for (int i = 0; i < SPINS && landed == false; i++)
+            Thread.yield();
+
+         boolean interrupted = false;
+         while (landed == false)
+         {
+            try
+            {
+               latch.await();
+            }
+            catch (InterruptedException e)
+            {
+               interrupted = true;
+            }
+         }
+         if (interrupted)
+            Thread.currentThread().interrupt();
+
+         if (failure != null)
+         {
+            NamingException e = new NamingException("Failed to resolve JNDI-link: " + link);
+            e.setRootCause(failure);
+            throw e;
+         }
+         return target;
+      }
+   }
+}
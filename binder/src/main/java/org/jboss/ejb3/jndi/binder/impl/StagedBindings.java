@@ -0,0 +1,190 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright (c) 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.binder.impl;
+
+import javax.naming.Context;
+import javax.naming.Name;
+import javax.naming.NamingException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.logging.Logger;
+import org.jboss.util.naming.Util;
+
+/**
+ * Bindings staged privately and published together, one namespace after the other,
+ * with a rollback on failure.
+ *
+ * JNDI has no way to bind several names atomically. Publishing binds every name on its own,
+ * so a lookup may see part of the names while it runs, but if any bind fails everything
+ * published so far is unbound again. The parent contexts of all names in a namespace are
+ * resolved (or created) once, after that every name costs a single bind into its parent.
+ */
+public class StagedBindings
+{
+   private static final Logger log = Logger.getLogger(StagedBindings.class);
+
+   private final Map<Context, List<Binding>> staged = new LinkedHashMap<Context, List<Binding>>();
+   private final List<Binding> published = new ArrayList<Binding>();
+
+   /**
+    * Stage a binding.
+    *
+    * @param ctx the context
+    * @param name the name relative to ctx
+    * @param obj the object to bind
+    */
+   public void stage(Context ctx, String name, Object obj)
+   {
+      if (name == null)
+         throw new IllegalArgumentException("Null name");
+
+      stage(new Binding(ctx, name, null, obj));
+   }
+
+   /**
+    * Stage a binding for an already parsed name.
+    *
+    * @param ctx the context
+    * @param name the name relative to ctx
+    * @param obj the object to bind
+    */
+   public void stage(Context ctx, Name name, Object obj)
+   {
+      if (name == null)
+         throw new IllegalArgumentException("Null name");
+
+      stage(new Binding(ctx, name.toString(), name, obj));
+   }
+
+   private synchronized void stage(Binding binding)
+   {
+      Context ctx = binding.ctx;
+      if (ctx == null)
+         throw new IllegalArgumentException("Null context");
+
+      List<Binding> bindings = staged.get(ctx);
+      if (bindings == null)
+      {
+         bindings = new ArrayList<Binding>();
+         staged.put(ctx, bindings);
+      }
+      bindings.add(binding);
+   }
+
+   /**
+    * Publish all staged bindings, in the order their namespaces were first staged.
+    *
+    * @throws NamingException if a bind fails, after unbinding everything published
+    */
+   public synchronized void publish() throws NamingException
+   {
+      try
+      {
+         for (Map.Entry<Context, List<Binding>> entry : staged.entrySet())
+            publish(entry.getKey(), entry.getValue());
+         staged.clear();
+      }
+      catch (NamingException e)
+      {
+         rollback();
+         throw e;
+      }
+      catch (RuntimeException e)
+      {
+         rollback();
+         throw e;
+      }
+   }
+
+   /**
+    * Get the number of staged bindings which are not yet published.
+    *
+    * @return the number of staged bindings
+    */
+   public synchronized int size()
+   {
+      int size = 0;
+      for (List<Binding> bindings : staged.values())
+         size += bindings.size();
+      return size;
+   }
+
+   @SuppressWarnings({"deprecation"})
+   private void publish(Context ctx, List<Binding> bindings) throws NamingException
+   {
+      Map<Name, Context> parents = new HashMap<Name, Context>();
+      for (Binding binding : bindings)
+      {
+         Name name = binding.parsed != null ? binding.parsed : ctx.getNameParser("").parse(binding.name);
+         Name parentName = name.getPrefix(name.size() - 1);
+         Context parent = parents.get(parentName);
+         if (parent == null)
+         {
+            parent = parentName.isEmpty() ? ctx : Util.createSubcontext(ctx, parentName);
+            parents.put(parentName, parent);
+         }
+         if (log.isDebugEnabled())
+            log.debug("Binding " + binding.obj + " at " + binding.name + " under " + ctx);
+         parent.bind(name.get(name.size() - 1), binding.obj);
+         published.add(binding);
+      }
+   }
+
+   private void rollback()
+   {
+      for (int i = published.size() - 1; i >= 0; i--)
+      {
+         Binding binding = published.get(i);
+         try
+         {
+            binding.ctx.unbind(binding.name);
+         }
+         catch (NamingException e)
+         {
+            log.warn("Failed to roll back " + binding.name + " under " + binding.ctx, e);
+         }
+      }
+      published.clear();
+      staged.clear();
+   }
+
+   private static class Binding
+   {
+      final Context ctx;
+      final String name;
+      final Name parsed;
+      final Object obj;
+
+      Binding(Context ctx, String name, Name parsed, Object obj)
+      {
+         this.ctx = ctx;
+         this.name = name;
+         this.parsed = parsed;
+         this.obj = obj;
+      }
+   }
+}
@@ -0,0 +1,42 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright (c) 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.binder.spi;
+
+import javax.naming.Context;
+
+/**
+ * Gets told about names unbound by an {@link org.jboss.ejb3.jndi.binder.EJBBinder}.
+ *
+ * A proxy factory implementing this interface is notified automatically
+ * by the binders it produces proxies for.
+ */
+public interface UnbindListener
+{
+   /**
+    * A name was unbound.
+    *
+    * @param context the context the name was bound in
+    * @param name the name relative to the context
+    * @param obj the object which was bound
+    */
+   void unbound(Context context, String name, Object obj);
+}
@@ -0,0 +1,69 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ejb3.jndi.binder.test.common;
+
+/**
+ * Minimal micro benchmark support.
+ *
+ * Benchmarks are not run as part of the test suite, run them through their main method.
+ */
+public abstract class AbstractBenchmark
+{
+   /**
+    * A single benchmarked operation.
+    */
+   public interface Operation
+   {
+      void run() throws Exception;
+   }
+
+   /**
+    * Run an operation, first to warm up and then measured.
+    *
+    * @param name the name to report
+    * @param warmup the number of warm up iterations
+    * @param iterations the number of measured iterations
+    * @param operation the operation
+    * @return the average time per operation in nanoseconds
+    * @throws Exception for any error
+    */
+   protected static double measure(String name, int warmup, int iterations, Operation operation) throws Exception
+   {
+      for (int i = 0; i < warmup; i++)
+         operation.run();
+
+      long start = System.nanoTime();
+      for (int i = 0; i < iterations; i++)
+         operation.run();
+      long time = System.nanoTime() - start;
+
+      double avg = (double) time / iterations;
+      report(name, avg);
+      return avg;
+   }
+
+   protected static void report(String name, double nanosPerOp)
+   {
+      System.out.println(String.format("%-50s %12.1f ns/op", name, nanosPerOp));
+   }
+}
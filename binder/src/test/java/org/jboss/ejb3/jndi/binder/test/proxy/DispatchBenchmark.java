@@ -0,0 +1,102 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ejb3.jndi.binder.test.proxy;
+
+import javax.naming.Context;
+import javax.naming.InitialContext;
+
+import org.jboss.ejb3.jndi.binder.impl.AbstractLazyProxyFactory;
+import org.jboss.ejb3.jndi.binder.impl.LazyInvocationMetrics;
+import org.jboss.ejb3.jndi.binder.test.common.AbstractBenchmark;
+import org.jboss.ejb3.jndi.binder.test.common.AbstractNamingTestCase;
+
+/**
+ * Business call latency through a resolved lazy proxy, reflective handler versus generated dispatch.
+ */
+public class DispatchBenchmark extends AbstractBenchmark
+{
+   private static int sink;
+
+   public static void main(String[] args) throws Exception
+   {
+      AbstractNamingTestCase.beforeClass();
+      try
+      {
+         Context context = new InitialContext();
+         context.bind("dispatch-target", new BizIfaceImpl());
+         AbstractLazyProxyFactory factory = new DummyLazyProxyFactory();
+         context.bind("dispatch-handler", factory.lazyLinkRef(BizIface.class.getName(), "dispatch-target"));
+         factory.setDispatch(AbstractLazyProxyFactory.Dispatch.GENERATED);
+         context.bind("dispatch-generated", factory.lazyLinkRef(BizIface.class.getName(), "dispatch-target"));
+
+         final BizIface direct = new BizIfaceImpl();
+         final BizIface handler = (BizIface) context.lookup("dispatch-handler");
+         final BizIface generated = (BizIface) context.lookup("dispatch-generated");
+
+         for (int i = 0; i < 3; i++)
+         {
+            measure("direct call", 1000000, 10000000, new Operation()
+            {
+               public void run()
+               {
+                  sink += direct.calculate((sink & 7) + 1);
+               }
+            });
+            measure("lazy proxy, handler dispatch", 1000000, 10000000, new Operation()
+            {
+               public void run()
+               {
+                  sink += handler.calculate((sink & 7) + 1);
+               }
+            });
+            measure("lazy proxy, generated dispatch", 1000000, 10000000, new Operation()
+            {
+               public void run()
+               {
+                  sink += generated.calculate((sink & 7) + 1);
+               }
+            });
+         }
+
+         LazyInvocationMetrics metrics = LazyInvocationMetrics.getInstance();
+         metrics.setEnabled(true);
+         for (int rate : new int[]{1, 64})
+         {
+            metrics.setSampleRate(rate);
+            measure("lazy proxy, handler dispatch, metrics 1/" + rate, 1000000, 10000000, new Operation()
+            {
+               public void run()
+               {
+                  sink += handler.calculate((sink & 7) + 1);
+               }
+            });
+         }
+         metrics.setEnabled(false);
+         System.out.println("(" + sink + ")");
+      }
+      finally
+      {
+         AbstractNamingTestCase.afterClass();
+      }
+   }
+}
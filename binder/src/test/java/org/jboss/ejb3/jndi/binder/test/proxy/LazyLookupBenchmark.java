@@ -0,0 +1,58 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ejb3.jndi.binder.test.proxy;
+
+import javax.naming.Reference;
+
+import org.jboss.ejb3.jndi.binder.impl.AbstractLazyProxyFactory;
+import org.jboss.ejb3.jndi.binder.test.common.AbstractBenchmark;
+
+/**
+ * Lookup latency of a lazy link, with a cold and a warm proxy class cache.
+ */
+public class LazyLookupBenchmark extends AbstractBenchmark
+{
+   public static void main(String[] args) throws Exception
+   {
+      AbstractLazyProxyFactory factory = new DummyLazyProxyFactory();
+      final Reference ref = (Reference) factory.lazyLinkRef(BizIface.class.getName(), "old-test");
+      final AbstractLazyProxyFactory.LazyObjectFactory of = new AbstractLazyProxyFactory.LazyObjectFactory();
+
+      measure("lookup, cold proxy class cache", 10, 200, new Operation()
+      {
+         public void run() throws Exception
+         {
+            AbstractLazyProxyFactory.getProxyClassCache().clear();
+            of.getObjectInstance(ref, null, null, null);
+         }
+      });
+
+      measure("lookup, warm proxy class cache", 10000, 100000, new Operation()
+      {
+         public void run() throws Exception
+         {
+            of.getObjectInstance(ref, null, null, null);
+         }
+      });
+   }
+}
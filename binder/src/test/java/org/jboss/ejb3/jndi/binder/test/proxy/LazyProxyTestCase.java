@@ -25,9 +25,25 @@ package org.jboss.ejb3.jndi.binder.test.proxy;
 import javax.naming.Context;
 import javax.naming.Reference;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.jboss.ejb3.jndi.binder.impl.AbstractLazyProxyFactory;
+import org.jboss.ejb3.jndi.binder.impl.LazyInvocationMetrics;
+import org.jboss.ejb3.jndi.binder.impl.LazyLinkReference;
+import org.jboss.ejb3.jndi.binder.impl.LinkWarmup;
+import org.jboss.ejb3.jndi.binder.impl.SingleFlightLazyTarget;
+import org.jboss.ejb3.jndi.binder.impl.View;
 import org.jboss.ejb3.jndi.binder.test.common.AbstractNamingTestCase;
 
+import javassist.util.proxy.ProxyObject;
+
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -71,4 +87,441 @@ public class LazyProxyTestCase extends AbstractNamingTestCase
       Assert.assertEquals(30, bii.calculate(3));
       Assert.assertTrue(TrackingOF.hit);
    }
+
+   @Test
+   public void testProxyClassCached() throws Exception
+   {
+      AbstractLazyProxyFactory factory = new DummyLazyProxyFactory();
+      Context context = createContext();
+
+      Reference ref = new Reference(BizIfaceImpl.class.getName(), TrackingOF.class.getName(), null);
+      context.bind("cached-old-test", ref);
+      context.bind("cached-test", factory.lazyLinkRef(BizIface.class.getName(), "cached-old-test"));
+
+      Object first = context.lookup("cached-test");
+      Object second = context.lookup("cached-test");
+      Assert.assertNotSame(first, second);
+      Assert.assertSame(first.getClass(), second.getClass());
+      Assert.assertEquals(40, ((BizIface) second).calculate(4));
+   }
+
+   @Test
+   public void testGeneratedDispatch() throws Exception
+   {
+      AbstractLazyProxyFactory factory = new DummyLazyProxyFactory();
+      factory.setDispatch(AbstractLazyProxyFactory.Dispatch.GENERATED);
+      Context context = createContext();
+
+      Reference ref = new Reference(BizIfaceImpl.class.getName(), TrackingOF.class.getName(), null);
+      context.bind("generated-old-test", ref);
+      TrackingOF.hit = false;
+
+      // test interface
+      context.bind("generated-test", factory.lazyLinkRef(BizIface.class.getName(), "generated-old-test"));
+      Object object = context.lookup("generated-test");
+      Assert.assertTrue(object instanceof BizIface);
+      Assert.assertFalse(object instanceof ProxyObject);
+      Assert.assertEquals("JNDI-link: generated-old-test", object.toString());
+      Assert.assertFalse(TrackingOF.hit);
+      Assert.assertEquals(20, ((BizIface) object).calculate(2));
+      Assert.assertTrue(TrackingOF.hit);
+
+      TrackingOF.hit = false;
+
+      // test impl
+      context.bind("generated-impl-test", factory.lazyLinkRef(BizIfaceImpl.class.getName(), "generated-old-test"));
+      object = context.lookup("generated-impl-test");
+      Assert.assertTrue(object instanceof BizIfaceImpl);
+      Assert.assertFalse(TrackingOF.hit);
+      Assert.assertEquals(30, ((BizIfaceImpl) object).calculate(3));
+      Assert.assertTrue(TrackingOF.hit);
+   }
+
+   /**
+    * The direct dispatch class lives next to the interface, whichever class loader looks it up.
+    */
+   @Test
+   public void testGeneratedDispatchAcrossLoaders() throws Exception
+   {
+      AbstractLazyProxyFactory factory = new DummyLazyProxyFactory();
+      factory.setDispatch(AbstractLazyProxyFactory.Dispatch.GENERATED);
+      Context context = createContext();
+      context.bind("loaders-old-test", new BizIfaceImpl());
+      context.bind("loaders-test", factory.lazyLinkRef(BizIface.class.getName(), "loaders-old-test"));
+
+      Thread thread = Thread.currentThread();
+      ClassLoader previous = thread.getContextClassLoader();
+      try
+      {
+         Object first = context.lookup("loaders-test");
+         // another loader which sees the same interface, like a second war in an ear
+         thread.setContextClassLoader(new URLClassLoader(new URL[0], BizIface.class.getClassLoader()));
+         Object second = context.lookup("loaders-test");
+         Assert.assertSame(first.getClass(), second.getClass());
+
+         // the class is already defined, so it is found again instead of defined twice
+         AbstractLazyProxyFactory.getDispatchClassCache().clear();
+         Object third = context.lookup("loaders-test");
+         Assert.assertSame(first.getClass(), third.getClass());
+         Assert.assertEquals(50, ((BizIface) third).calculate(5));
+      }
+      finally
+      {
+         thread.setContextClassLoader(previous);
+      }
+   }
+
+   @Test
+   public void testSingleFlightResolution() throws Exception
+   {
+      AbstractLazyProxyFactory factory = new DummyLazyProxyFactory();
+      factory.setResolution(AbstractLazyProxyFactory.Resolution.SINGLE_FLIGHT);
+      Context context = createContext();
+
+      context.bind("single-flight-old-test", new Reference(BizIfaceImpl.class.getName(), CountingOF.class.getName(), null));
+      context.bind("single-flight-test", factory.lazyLinkRef(BizIface.class.getName(), "single-flight-old-test"));
+      final BizIface bi = (BizIface) context.lookup("single-flight-test");
+
+      CountingOF.count.set(0);
+      CountingOF.delay = 50;
+      try
+      {
+         int threads = 16;
+         final CountDownLatch start = new CountDownLatch(1);
+         final AtomicInteger failures = new AtomicInteger();
+         Thread[] workers = new Thread[threads];
+         for (int i = 0; i < threads; i++)
+         {
+            workers[i] = new Thread()
+            {
+               @Override
+               public void run()
+               {
+                  try
+                  {
+                     start.await();
+                     if (bi.calculate(5) != 50)
+                        failures.incrementAndGet();
+                  }
+                  catch (Throwable t)
+                  {
+                     failures.incrementAndGet();
+                  }
+               }
+            };
+            workers[i].start();
+         }
+         start.countDown();
+         for (Thread worker : workers)
+            worker.join();
+
+         Assert.assertEquals(0, failures.get());
+         Assert.assertEquals(1, CountingOF.count.get());
+      }
+      finally
+      {
+         CountingOF.delay = 0;
+      }
+   }
+
+   /**
+    * An error in the lookup must not leave the next callers waiting for good.
+    */
+   @Test(timeout = 10000)
+   public void testSingleFlightError() throws Exception
+   {
+      final AtomicInteger lookups = new AtomicInteger();
+      Context context = (Context) Proxy.newProxyInstance(Context.class.getClassLoader(), new Class<?>[]{Context.class}, new InvocationHandler()
+      {
+         public Object invoke(Object proxy, Method method, Object[] args)
+         {
+            if (method.getName().equals("lookup") == false)
+               return null;
+            if (lookups.incrementAndGet() == 1)
+               throw new NoClassDefFoundError("single-flight-error-test");
+            return "target";
+         }
+      });
+      SingleFlightLazyTarget target = new SingleFlightLazyTarget("single-flight-error-test", context);
+      try
+      {
+         target.call();
+         Assert.fail("Should have failed");
+      }
+      catch (NoClassDefFoundError e)
+      {
+         // good
+      }
+      Assert.assertEquals("target", target.call());
+      Assert.assertEquals(2, lookups.get());
+   }
+
+   @Test
+   public void testSharedResolution() throws Exception
+   {
+      AbstractLazyProxyFactory factory = new DummyLazyProxyFactory();
+      factory.setResolution(AbstractLazyProxyFactory.Resolution.SHARED);
+      Context context = createContext();
+
+      context.bind("shared-old-test", new Reference(BizIfaceImpl.class.getName(), CountingOF.class.getName(), null));
+      Object ref = factory.lazyLinkRef(BizIface.class.getName(), "shared-old-test");
+      context.bind("shared-test", ref);
+
+      CountingOF.count.set(0);
+      BizIface first = (BizIface) context.lookup("shared-test");
+      BizIface second = (BizIface) context.lookup("shared-test");
+      Assert.assertEquals(50, first.calculate(5));
+      Assert.assertEquals(50, second.calculate(5));
+      Assert.assertEquals(1, CountingOF.count.get());
+
+      // unbinding the lazy ref drops the shared resolution
+      context.unbind("shared-test");
+      factory.unbound(context, "shared-test", ref);
+      Assert.assertEquals(50, first.calculate(5));
+      Assert.assertEquals(2, CountingOF.count.get());
+   }
+
+   @Test
+   public void testSharedResolutionStateful() throws Exception
+   {
+      AbstractLazyProxyFactory factory = new DummyLazyProxyFactory();
+      factory.setResolution(AbstractLazyProxyFactory.Resolution.SHARED);
+      Context context = createContext();
+
+      context.bind("stateful-old-test", new Reference(BizIfaceImpl.class.getName(), CountingOF.class.getName(), null));
+      context.bind("stateful-test", factory.lazyLinkRef(BizIface.class, "stateful-old-test", true));
+
+      CountingOF.count.set(0);
+      BizIface first = (BizIface) context.lookup("stateful-test");
+      BizIface second = (BizIface) context.lookup("stateful-test");
+      Assert.assertEquals(50, first.calculate(5));
+      Assert.assertEquals(50, second.calculate(5));
+      // a session per proxy
+      Assert.assertEquals(2, CountingOF.count.get());
+      Assert.assertEquals(50, first.calculate(5));
+      Assert.assertEquals(2, CountingOF.count.get());
+   }
+
+   @Test
+   public void testUnbindInvalidation() throws Exception
+   {
+      AbstractLazyProxyFactory factory = new DummyLazyProxyFactory();
+      Context context = createContext();
+
+      context.bind("unbind-old-test", new Reference(BizIfaceImpl.class.getName(), CountingOF.class.getName(), null));
+      context.bind("unbind-test", factory.lazyLinkRef(BizIface.class.getName(), "unbind-old-test"));
+      BizIface bi = (BizIface) context.lookup("unbind-test");
+
+      CountingOF.count.set(0);
+      Assert.assertEquals(50, bi.calculate(5));
+      Assert.assertEquals(50, bi.calculate(5));
+      Assert.assertEquals(1, CountingOF.count.get());
+
+      // some other name does not matter
+      factory.unbound(context, "unbind-other-test", null);
+      Assert.assertEquals(50, bi.calculate(5));
+      Assert.assertEquals(1, CountingOF.count.get());
+
+      // the link target went away, look it up again
+      factory.unbound(context, "unbind-old-test", null);
+      Assert.assertEquals(50, bi.calculate(5));
+      Assert.assertEquals(50, bi.calculate(5));
+      Assert.assertEquals(2, CountingOF.count.get());
+   }
+
+   @Test
+   public void testUnbindInvalidationExactName() throws Exception
+   {
+      AbstractLazyProxyFactory factory = new DummyLazyProxyFactory();
+      Context context = createContext();
+
+      Context app = context.createSubcontext("exact-app");
+      app.bind("exact-old-test", new Reference(BizIfaceImpl.class.getName(), CountingOF.class.getName(), null));
+      context.bind("exact-test", factory.lazyLinkRef(BizIface.class.getName(), "exact-app/exact-old-test"));
+      BizIface bi = (BizIface) context.lookup("exact-test");
+
+      CountingOF.count.set(0);
+      Assert.assertEquals(50, bi.calculate(5));
+      Assert.assertEquals(1, CountingOF.count.get());
+
+      // the same name in some other context does not matter
+      factory.unbound(createContext(), "exact-old-test", null);
+      Assert.assertEquals(50, bi.calculate(5));
+      Assert.assertEquals(1, CountingOF.count.get());
+
+      factory.unbound(context, "exact-app/exact-old-test", null);
+      Assert.assertEquals(50, bi.calculate(5));
+      Assert.assertEquals(2, CountingOF.count.get());
+   }
+
+   @Test
+   public void testWarmup() throws Exception
+   {
+      LinkWarmup warmup = new LinkWarmup(1, 16);
+      AbstractLazyProxyFactory factory = new DummyLazyProxyFactory();
+      factory.setDispatch(AbstractLazyProxyFactory.Dispatch.GENERATED);
+      factory.setResolution(AbstractLazyProxyFactory.Resolution.SHARED);
+      factory.setWarmup(warmup);
+      try
+      {
+         iniCtx.bind("warmup-old-test", new Reference(BizIfaceImpl.class.getName(), CountingOF.class.getName(), null));
+         Object ref = factory.lazyLinkRef(BizIface.class.getName(), "warmup-old-test");
+         iniCtx.bind("warmup-test", ref);
+
+         CountingOF.count.set(0);
+         factory.bound(new View(BizIface.class, View.Type.BUSINESS_LOCAL, null), ref);
+         Assert.assertTrue(warmup.awaitCompletion(10, TimeUnit.SECONDS));
+         Assert.assertEquals(1, warmup.getCompleted());
+         Assert.assertEquals(0, warmup.getFailed());
+         Assert.assertEquals(1, CountingOF.count.get());
+         Assert.assertNotNull(AbstractLazyProxyFactory.getDispatchClassCache().get(BizIface.class.getClassLoader(), BizIface.class.getName()));
+
+         // the first call finds everything in place
+         BizIface bi = (BizIface) iniCtx.lookup("warmup-test");
+         Assert.assertEquals(50, bi.calculate(5));
+         Assert.assertEquals(1, CountingOF.count.get());
+
+         // the shared target resolves again through the context of the warm-up
+         factory.unbound(iniCtx, "warmup-old-test", null);
+         Assert.assertEquals(50, bi.calculate(5));
+         Assert.assertEquals(2, CountingOF.count.get());
+      }
+      finally
+      {
+         warmup.stop();
+         iniCtx.unbind("warmup-test");
+         iniCtx.unbind("warmup-old-test");
+      }
+   }
+
+   @Test
+   public void testWarmupWithoutSharedTarget() throws Exception
+   {
+      LinkWarmup warmup = new LinkWarmup(1, 16);
+      AbstractLazyProxyFactory factory = new DummyLazyProxyFactory();
+      factory.setWarmup(warmup);
+      try
+      {
+         iniCtx.bind("warmup-direct-old-test", new Reference(BizIfaceImpl.class.getName(), CountingOF.class.getName(), null));
+         Object ref = factory.lazyLinkRef(BizIface.class.getName(), "warmup-direct-old-test");
+
+         CountingOF.count.set(0);
+         AbstractLazyProxyFactory.getProxyClassCache().clear();
+         factory.bound(new View(BizIface.class, View.Type.BUSINESS_LOCAL, null), ref);
+         Assert.assertTrue(warmup.awaitCompletion(10, TimeUnit.SECONDS));
+         Assert.assertEquals(1, warmup.getCompleted());
+         // only the proxy class, no proxy would use the target
+         Assert.assertNotNull(AbstractLazyProxyFactory.getProxyClassCache().get(BizIface.class.getClassLoader(), BizIface.class.getName()));
+         Assert.assertEquals(0, CountingOF.count.get());
+      }
+      finally
+      {
+         warmup.stop();
+         iniCtx.unbind("warmup-direct-old-test");
+      }
+   }
+
+   @Test
+   public void testLookupLoaderCache() throws Exception
+   {
+      final AtomicInteger loads = new AtomicInteger();
+      ClassLoader counting = new ClassLoader(BizIface.class.getClassLoader())
+      {
+         @Override
+         public Class<?> loadClass(String name) throws ClassNotFoundException
+         {
+            if (name.equals(BizIface.class.getName()))
+               loads.incrementAndGet();
+            return super.loadClass(name);
+         }
+      };
+      AbstractLazyProxyFactory factory = new DummyLazyProxyFactory();
+      Context context = createContext();
+      context.bind("lookup-loader-old-test", new BizIfaceImpl());
+      context.bind("lookup-loader-test", factory.lazyLinkRef(BizIface.class.getName(), "lookup-loader-old-test"));
+
+      ClassLoader previous = Thread.currentThread().getContextClassLoader();
+      Thread.currentThread().setContextClassLoader(counting);
+      try
+      {
+         BizIface first = (BizIface) context.lookup("lookup-loader-test");
+         BizIface second = (BizIface) context.lookup("lookup-loader-test");
+         Assert.assertSame(first.getClass(), second.getClass());
+         // only the first lookup from the class loader loads the class
+         Assert.assertEquals(1, loads.get());
+         Assert.assertEquals(50, second.calculate(5));
+      }
+      finally
+      {
+         Thread.currentThread().setContextClassLoader(previous);
+      }
+   }
+
+   @Test
+   public void testGenerateAtBind() throws Exception
+   {
+      AbstractLazyProxyFactory factory = new DummyLazyProxyFactory();
+      factory.setGenerateAtBind(true);
+      Context context = createContext();
+
+      AbstractLazyProxyFactory.getProxyClassCache().clear();
+      Object ref = factory.lazyLinkRef(BizIface.class, "bind-time-old-test");
+      Assert.assertTrue(ref instanceof LazyLinkReference);
+      Class<?> proxyClass = ((LazyLinkReference) ref).getProxyClass();
+      Assert.assertNotNull(proxyClass);
+      Assert.assertSame(proxyClass, AbstractLazyProxyFactory.getProxyClassCache().get(BizIface.class.getClassLoader(), BizIface.class.getName()));
+
+      context.bind("bind-time-old-test", new BizIfaceImpl());
+      context.bind("bind-time-test", ref);
+      BizIface bi = (BizIface) context.lookup("bind-time-test");
+      Assert.assertSame(proxyClass, bi.getClass());
+      Assert.assertEquals(50, bi.calculate(5));
+   }
+
+   @Test
+   public void testInvocationMetrics() throws Exception
+   {
+      AbstractLazyProxyFactory factory = new DummyLazyProxyFactory();
+      Context context = createContext();
+
+      context.bind("metrics-old-test", new BizIfaceImpl());
+      Object ref = factory.lazyLinkRef(BizIface.class.getName(), "metrics-old-test");
+      context.bind("metrics-test", ref);
+      BizIface bi = (BizIface) context.lookup("metrics-test");
+
+      LazyInvocationMetrics metrics = LazyInvocationMetrics.getInstance();
+      metrics.setEnabled(true);
+      metrics.setSampleRate(4);
+      try
+      {
+         for (int i = 0; i < 16; i++)
+            bi.calculate(i);
+
+         Assert.assertEquals(16, metrics.getInvocationCount("metrics-old-test", "calculate(int)"));
+         Assert.assertEquals(4, metrics.getSampleCount("metrics-old-test", "calculate(int)"));
+         Assert.assertTrue(metrics.getLatencyPercentile("metrics-old-test", "calculate(int)", 99) > 0);
+         Assert.assertTrue(metrics.listMetrics().contains("metrics-old-test#calculate(int)"));
+
+         metrics.reset();
+         bi.calculate(1);
+         Assert.assertEquals(1, metrics.getInvocationCount("metrics-old-test", "calculate(int)"));
+
+         // the metrics go with the lazy ref
+         context.unbind("metrics-test");
+         factory.unbound(context, "metrics-test", ref);
+         Assert.assertEquals(0, metrics.getInvocationCount("metrics-old-test", "calculate(int)"));
+         Assert.assertFalse(metrics.listMetrics().contains("metrics-old-test"));
+
+         // bound again, a proxy from before counts in the new metrics
+         context.bind("metrics-test", ref);
+         bi.calculate(1);
+         Assert.assertEquals(1, metrics.getInvocationCount("metrics-old-test", "calculate(int)"));
+      }
+      finally
+      {
+         metrics.setEnabled(false);
+         metrics.setSampleRate(1);
+         metrics.reset();
+      }
+   }
 }
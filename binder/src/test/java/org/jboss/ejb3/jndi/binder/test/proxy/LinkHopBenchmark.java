@@ -0,0 +1,99 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.binder.test.proxy;
+
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.LinkRef;
+
+import org.jboss.ejb3.jndi.binder.impl.LinkFlattener;
+import org.jboss.ejb3.jndi.binder.test.common.AbstractBenchmark;
+import org.jboss.ejb3.jndi.binder.test.common.AbstractNamingTestCase;
+
+/**
+ * Lookup latency of an EJB reference, through a chain of link refs versus a flattened link.
+ */
+public class LinkHopBenchmark extends AbstractBenchmark
+{
+   public static void main(String[] args) throws Exception
+   {
+      AbstractNamingTestCase.beforeClass();
+      try
+      {
+         final Context context = new InitialContext();
+         // the policy name bound by the container
+         context.bind("hop-target", new BizIfaceImpl());
+         // what the binder binds under the global name
+         context.bind("hop-global", new LinkRef("hop-target"));
+         context.bind("hop-flat-global", new LinkFlattener().flatten("hop-target"));
+         // what the ENC binds for an @EJB
+         context.bind("hop-enc", new LinkRef("hop-global"));
+         context.bind("hop-flat-enc", new LinkRef("hop-flat-global"));
+         // what a flattening EJB reference binds
+         context.bind("hop-short-enc", new LinkFlattener().shorten("hop-global"));
+         context.bind("hop-short-flat-enc", new LinkFlattener().shorten("hop-flat-global"));
+
+         for (int i = 0; i < 3; i++)
+         {
+            measure("lookup target, 0 link hops", 100000, 1000000, new Operation()
+            {
+               public void run() throws Exception
+               {
+                  context.lookup("hop-target");
+               }
+            });
+            measure("lookup ENC, 2 link hops", 100000, 1000000, new Operation()
+            {
+               public void run() throws Exception
+               {
+                  context.lookup("hop-enc");
+               }
+            });
+            measure("lookup ENC, flattened, 1 link hop", 100000, 1000000, new Operation()
+            {
+               public void run() throws Exception
+               {
+                  context.lookup("hop-flat-enc");
+               }
+            });
+            measure("lookup ENC, shortened, 1 link hop", 100000, 1000000, new Operation()
+            {
+               public void run() throws Exception
+               {
+                  context.lookup("hop-short-enc");
+               }
+            });
+            measure("lookup ENC, flattened and shortened, 0 link hops", 100000, 1000000, new Operation()
+            {
+               public void run() throws Exception
+               {
+                  context.lookup("hop-short-flat-enc");
+               }
+            });
+         }
+      }
+      finally
+      {
+         AbstractNamingTestCase.afterClass();
+      }
+   }
+}
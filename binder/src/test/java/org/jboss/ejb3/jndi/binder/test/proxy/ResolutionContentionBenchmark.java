@@ -0,0 +1,107 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+
+package org.jboss.ejb3.jndi.binder.test.proxy;
+
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.Reference;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.jboss.ejb3.jndi.binder.impl.AbstractLazyProxyFactory;
+import org.jboss.ejb3.jndi.binder.test.common.AbstractBenchmark;
+import org.jboss.ejb3.jndi.binder.test.common.AbstractNamingTestCase;
+
+/**
+ * A burst of threads hitting a cold lazy proxy, direct versus single flight resolution.
+ */
+public class ResolutionContentionBenchmark extends AbstractBenchmark
+{
+   private static final int THREADS = 64;
+   private static final int ROUNDS = 200;
+
+   public static void main(String[] args) throws Exception
+   {
+      AbstractNamingTestCase.beforeClass();
+      ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+      try
+      {
+         Context context = new InitialContext();
+         context.bind("contention-target", new Reference(BizIfaceImpl.class.getName(), CountingOF.class.getName(), null));
+         CountingOF.delay = 1;
+
+         for (AbstractLazyProxyFactory.Resolution resolution : AbstractLazyProxyFactory.Resolution.values())
+         {
+            AbstractLazyProxyFactory factory = new DummyLazyProxyFactory();
+            factory.setResolution(resolution);
+            context.rebind("contention-test", factory.lazyLinkRef(BizIface.class.getName(), "contention-target"));
+
+            CountingOF.count.set(0);
+            long start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++)
+               burst(executor, (BizIface) context.lookup("contention-test"));
+            long time = System.nanoTime() - start;
+
+            report(THREADS + " threads on a cold proxy, " + resolution, (double) time / ROUNDS);
+            System.out.println(String.format("%-50s %12.1f lookups/proxy", "", (double) CountingOF.count.get() / ROUNDS));
+         }
+      }
+      finally
+      {
+         executor.shutdown();
+         AbstractNamingTestCase.afterClass();
+      }
+   }
+
+   private static void burst(ExecutorService executor, final BizIface proxy) throws InterruptedException
+   {
+      final CountDownLatch start = new CountDownLatch(1);
+      final CountDownLatch done = new CountDownLatch(THREADS);
+      for (int i = 0; i < THREADS; i++)
+      {
+         executor.execute(new Runnable()
+         {
+            public void run()
+            {
+               try
+               {
+                  start.await();
+                  proxy.calculate(1);
+               }
+               catch (InterruptedException e)
+               {
+                  Thread.currentThread().interrupt();
+               }
+               finally
+               {
+                  done.countDown();
+               }
+            }
+         });
+      }
+      start.countDown();
+      done.await();
+   }
+}
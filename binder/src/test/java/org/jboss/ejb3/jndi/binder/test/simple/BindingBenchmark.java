@@ -0,0 +1,146 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright (c) 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.binder.test.simple;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.LinkRef;
+
+import org.jboss.ejb3.jndi.binder.EJBBinder;
+import org.jboss.ejb3.jndi.binder.impl.View;
+import org.jboss.ejb3.jndi.binder.metadata.SessionBeanType;
+import org.jboss.ejb3.jndi.binder.spi.ProxyFactory;
+import org.jboss.ejb3.jndi.binder.test.common.AbstractBenchmark;
+import org.jboss.ejb3.jndi.binder.test.common.AbstractNamingTestCase;
+import org.jboss.reloaded.naming.spi.JavaEEApplication;
+import org.jboss.reloaded.naming.spi.JavaEEModule;
+
+/**
+ * Time to bind and unbind all binders of a synthetic deployment.
+ *
+ * The proxies are links to the global JNDI name of the container, as the legacy
+ * proxy factory produces them. The metadata are plain stubs, mocks would record
+ * every one of the many invocations.
+ */
+public class BindingBenchmark extends AbstractBenchmark
+{
+   private static final int BEANS = 3000;
+
+   private static class LinkProxyFactory implements ProxyFactory
+   {
+      public Object produce(View view)
+      {
+         return new LinkRef("benchApp/" + view.getMetadata().getName() + "/local-" + view.getBusinessInterface().getName());
+      }
+   }
+
+   public static void main(String[] args) throws Exception
+   {
+      AbstractNamingTestCase.beforeClass();
+      try
+      {
+         Context global = (Context) new InitialContext().lookup("java:global");
+         final List<EJBBinder> binders = createBinders(global);
+
+         for (int i = 0; i < 3; i++)
+         {
+            measure(BEANS + " binders, direct", 1, 5, new Operation()
+            {
+               public void run() throws Exception
+               {
+                  for (EJBBinder binder : binders)
+                     binder.setRollbackOnFailure(false);
+                  bindAll(binders);
+               }
+            });
+            measure(BEANS + " binders, rollback on failure", 1, 5, new Operation()
+            {
+               public void run() throws Exception
+               {
+                  for (EJBBinder binder : binders)
+                     binder.setRollbackOnFailure(true);
+                  bindAll(binders);
+               }
+            });
+         }
+      }
+      finally
+      {
+         AbstractNamingTestCase.afterClass();
+      }
+   }
+
+   private static void bindAll(List<EJBBinder> binders) throws Exception
+   {
+      for (EJBBinder binder : binders)
+         binder.bind();
+      for (EJBBinder binder : binders)
+         binder.unbind();
+   }
+
+   private static List<EJBBinder> createBinders(Context global) throws Exception
+   {
+      JavaEEApplication app = stub(JavaEEApplication.class, "getName", "benchApp", "getContext", global.createSubcontext("benchAppContext"),
+            "isEnterpriseApplicationArchive", true);
+      JavaEEModule module = stub(JavaEEModule.class, "getName", "benchModule", "getContext", global.createSubcontext("benchModuleContext"),
+            "getApplication", app);
+
+      ProxyFactory proxyFactory = new LinkProxyFactory();
+      List<EJBBinder> binders = new ArrayList<EJBBinder>();
+      for (int i = 0; i < BEANS; i++)
+      {
+         SessionBeanType bean = stub(SessionBeanType.class, "getEJBClass", BindingBenchmark.class, "getName", "Bean" + i,
+               "getModule", module, "isLocalBean", true);
+
+         EJBBinder binder = new EJBBinder(bean);
+         binder.setGlobalContext(global);
+         binder.setProxyFactory(proxyFactory);
+         binders.add(binder);
+      }
+      return binders;
+   }
+
+   private static <T> T stub(Class<T> type, Object... results)
+   {
+      final Map<String, Object> values = new HashMap<String, Object>();
+      for (int i = 0; i < results.length; i += 2)
+         values.put((String) results[i], results[i + 1]);
+      return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, new InvocationHandler()
+      {
+         public Object invoke(Object proxy, Method method, Object[] args)
+         {
+            Object value = values.get(method.getName());
+            if (value == null && method.getReturnType() == boolean.class)
+               return false;
+            return value;
+         }
+      }));
+   }
+}
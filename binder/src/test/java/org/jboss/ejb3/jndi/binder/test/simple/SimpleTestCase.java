@@ -23,18 +23,46 @@ package org.jboss.ejb3.jndi.binder.test.simple;
 
 import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 
 import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
 import java.util.EventListener;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.naming.CompositeName;
+import javax.naming.Context;
+import javax.naming.LinkRef;
+import javax.naming.Name;
+import javax.naming.NameNotFoundException;
 import javax.naming.NamingException;
 
 import org.jboss.ejb3.jndi.binder.EJBBinder;
+import org.jboss.ejb3.jndi.binder.impl.BindingMetrics;
+import org.jboss.ejb3.jndi.binder.impl.BindingPlan;
+import org.jboss.ejb3.jndi.binder.impl.BindingStatistics;
+import org.jboss.ejb3.jndi.binder.impl.GenerationSwitch;
+import org.jboss.ejb3.jndi.binder.impl.LinkFlattener;
+import org.jboss.ejb3.jndi.binder.impl.NamespaceShutdown;
+import org.jboss.ejb3.jndi.binder.impl.RebindRegistry;
 import org.jboss.ejb3.jndi.binder.impl.View;
 import org.jboss.ejb3.jndi.binder.metadata.SessionBeanType;
 import org.jboss.ejb3.jndi.binder.spi.ProxyFactory;
+import org.jboss.ejb3.jndi.binder.spi.UnbindListener;
 import org.jboss.ejb3.jndi.binder.test.common.AbstractNamingTestCase;
 import org.jboss.reloaded.naming.CurrentComponent;
 import org.jboss.reloaded.naming.spi.JavaEEApplication;
@@ -195,4 +223,800 @@ public class SimpleTestCase extends AbstractNamingTestCase
          binder.unbind();
       }
    }
+
+   /**
+    * Tests that unbind listeners get told about every unbound name
+    */
+   @Test
+   public void testUnbindListener() throws Exception
+   {
+      JavaEEApplication app = mock(JavaEEApplication.class);
+      doReturn("testApp").when(app).getName();
+      doReturn(createContext()).when(app).getContext();
+      doReturn(true).when(app).isEnterpriseApplicationArchive();
+      JavaEEModule module = mock(JavaEEModule.class);
+      doReturn("testModule").when(module).getName();
+      doReturn(createContext()).when(module).getContext();
+      doReturn(app).when(module).getApplication();
+
+      SessionBeanType bean = mock(SessionBeanType.class);
+      doReturn(SimpleTestCase.class).when(bean).getEJBClass();
+      doReturn("TestBean").when(bean).getName();
+      doReturn(module).when(bean).getModule();
+      doReturn(true).when(bean).isLocalBean();
+
+      final List<String> unbound = new ArrayList<String>();
+      EJBBinder binder = new EJBBinder(bean);
+      binder.setGlobalContext(javaGlobal);
+      binder.setProxyFactory(new MyProxyFactory());
+      binder.addUnbindListener(new UnbindListener()
+      {
+         public void unbound(Context context, String name, Object obj)
+         {
+            assertEquals("TestBean#" + SimpleTestCase.class.getName(), obj);
+            unbound.add(name);
+         }
+      });
+      binder.bind();
+      binder.unbind();
+
+      assertEquals(asList("TestBean!" + SimpleTestCase.class.getName(), "TestBean",
+            "testModule/TestBean!" + SimpleTestCase.class.getName(), "testModule/TestBean",
+            "testApp/testModule/TestBean!" + SimpleTestCase.class.getName(), "testApp/testModule/TestBean"), unbound);
+   }
+
+   /**
+    * Tests that a link is resolved once and the target is bound directly
+    */
+   @Test
+   public void testLinkFlattening() throws Exception
+   {
+      Object target = new Object();
+      iniCtx.bind("flatten-target", target);
+      try
+      {
+         LinkFlattener flattener = new LinkFlattener();
+         assertSame(target, flattener.flatten("flatten-target"));
+
+         // not there yet, keep the link
+         Object obj = flattener.flatten("flatten-missing");
+         assertTrue(obj instanceof LinkRef);
+         assertEquals("flatten-missing", ((LinkRef) obj).getLinkName());
+
+         // a link is shortened by one hop, not followed to the end
+         iniCtx.bind("flatten-global", new LinkRef("flatten-target"));
+         obj = flattener.shorten("flatten-global");
+         assertTrue(obj instanceof LinkRef);
+         assertEquals("flatten-target", ((LinkRef) obj).getLinkName());
+         assertSame(target, flattener.shorten("flatten-target"));
+         obj = flattener.shorten("flatten-missing");
+         assertEquals("flatten-missing", ((LinkRef) obj).getLinkName());
+      }
+      finally
+      {
+         iniCtx.unbind("flatten-target");
+         iniCtx.unbind("flatten-global");
+      }
+   }
+
+   private static SessionBeanType createSingleViewBean(String beanName) throws NamingException
+   {
+      return createSingleViewBean(beanName, createModule());
+   }
+
+   /**
+    * A module testModule in the application testApp, each with a context of its own.
+    */
+   private static JavaEEModule createModule() throws NamingException
+   {
+      JavaEEApplication app = mock(JavaEEApplication.class);
+      doReturn("testApp").when(app).getName();
+      doReturn(createContext()).when(app).getContext();
+      doReturn(true).when(app).isEnterpriseApplicationArchive();
+      JavaEEModule module = mock(JavaEEModule.class);
+      doReturn("testModule").when(module).getName();
+      doReturn(createContext()).when(module).getContext();
+      doReturn(app).when(module).getApplication();
+      return module;
+   }
+
+   private static SessionBeanType createSingleViewBean(String beanName, JavaEEModule module)
+   {
+      SessionBeanType bean = mock(SessionBeanType.class);
+      doReturn(SimpleTestCase.class).when(bean).getEJBClass();
+      doReturn(beanName).when(bean).getName();
+      doReturn(module).when(bean).getModule();
+      doReturn(true).when(bean).isLocalBean();
+      return bean;
+   }
+
+   /**
+    * Tests that staged bindings end up under the same names
+    */
+   @Test
+   public void testStagedBindings() throws Exception
+   {
+      SessionBeanType bean = createSingleViewBean("StagedBean");
+      EJBBinder binder = new EJBBinder(bean);
+      binder.setGlobalContext(javaGlobal);
+      binder.setProxyFactory(new MyProxyFactory());
+      binder.setRollbackOnFailure(true);
+      binder.bind();
+
+      CurrentComponent.push(bean);
+      try
+      {
+         String expected = "StagedBean#" + SimpleTestCase.class.getName();
+
+         assertEquals(expected, iniCtx.lookup("java:global/testApp/testModule/StagedBean!" + SimpleTestCase.class.getName()));
+         assertEquals(expected, iniCtx.lookup("java:app/testModule/StagedBean!" + SimpleTestCase.class.getName()));
+         assertEquals(expected, iniCtx.lookup("java:module/StagedBean!" + SimpleTestCase.class.getName()));
+         assertEquals(expected, iniCtx.lookup("java:global/testApp/testModule/StagedBean"));
+         assertEquals(expected, iniCtx.lookup("java:app/testModule/StagedBean"));
+         assertEquals(expected, iniCtx.lookup("java:module/StagedBean"));
+      }
+      finally
+      {
+         CurrentComponent.pop();
+
+         binder.unbind();
+      }
+   }
+
+   /**
+    * Tests that nothing stays bound if publishing fails halfway
+    */
+   @Test
+   public void testStagedBindingsRollback() throws Exception
+   {
+      SessionBeanType bean = createSingleViewBean("RollbackBean");
+      // the module namespace is published last, make it fail there
+      bean.getModule().getContext().bind("RollbackBean", "taken");
+
+      EJBBinder binder = new EJBBinder(bean);
+      binder.setGlobalContext(javaGlobal);
+      binder.setProxyFactory(new MyProxyFactory());
+      binder.setRollbackOnFailure(true);
+      try
+      {
+         binder.bind();
+         fail("Should have failed on the taken name");
+      }
+      catch (NamingException e)
+      {
+         // expected
+      }
+
+      try
+      {
+         iniCtx.lookup("java:global/testApp/testModule/RollbackBean");
+         fail("Global binding should have been rolled back");
+      }
+      catch (NameNotFoundException e)
+      {
+         // expected
+      }
+      assertEquals("taken", bean.getModule().getContext().lookup("RollbackBean"));
+   }
+
+   /**
+    * Tests that the binding plan holds every name of a single view bean, in binding order
+    */
+   @Test
+   public void testBindingPlan() throws Exception
+   {
+      SessionBeanType bean = createSingleViewBean("PlannedBean");
+      EJBBinder binder = new EJBBinder(bean);
+      BindingPlan plan = binder.getPlan();
+      String view = "PlannedBean!" + SimpleTestCase.class.getName();
+      List<String> names = new ArrayList<String>();
+      for (BindingPlan.Entry entry : plan.getEntries())
+         names.add(entry.getNamespace() + ":" + entry.getName() + (entry.isAlias() ? "*" : ""));
+      assertEquals(asList("GLOBAL:testApp/testModule/" + view, "GLOBAL:testApp/testModule/PlannedBean*",
+            "APP:testModule/" + view, "APP:testModule/PlannedBean*",
+            "MODULE:" + view, "MODULE:PlannedBean*"), names);
+      assertEquals(3, plan.getEntries().get(0).getParsedName().size());
+
+      try
+      {
+         plan.getEntries().clear();
+         fail("The plan should be read-only");
+      }
+      catch (UnsupportedOperationException e)
+      {
+         // good
+      }
+
+      binder.setGlobalContext(javaGlobal);
+      binder.setProxyFactory(new MyProxyFactory());
+      binder.bind();
+      Context[] contexts = { javaGlobal, bean.getModule().getApplication().getContext(), bean.getModule().getContext() };
+      for (BindingPlan.Entry entry : plan.getEntries())
+         assertEquals("PlannedBean#" + SimpleTestCase.class.getName(), contexts[entry.getNamespace().ordinal()].lookup(entry.getName()));
+      binder.unbind();
+   }
+
+   /**
+    * Tests that retained names are not combined with a namespace shutdown, which would never see its last binder
+    */
+   @Test
+   public void testFastShutdownWithRebind() throws Exception
+   {
+      RebindRegistry registry = new RebindRegistry(60000);
+      try
+      {
+         EJBBinder binder = new EJBBinder(createSingleViewBean("RetainedBean"));
+         binder.setGlobalContext(javaGlobal);
+         binder.setProxyFactory(new MyProxyFactory());
+         binder.setRebindRegistry(registry);
+         binder.setNamespaceShutdown(new NamespaceShutdown());
+         try
+         {
+            binder.bind();
+            fail("Should have been refused");
+         }
+         catch (IllegalStateException e)
+         {
+            // good
+         }
+      }
+      finally
+      {
+         registry.stop();
+      }
+   }
+
+   /**
+    * Tests that subclasses overriding the deprecated per namespace hooks are still called
+    */
+   @Test
+   @SuppressWarnings({"deprecation"})
+   public void testDeprecatedHooks() throws Exception
+   {
+      final List<String> calls = new ArrayList<String>();
+      SessionBeanType bean = createSingleViewBean("HookedBean");
+      EJBBinder binder = new EJBBinder(bean)
+      {
+         @Override
+         protected void bindApp(View view, Object proxy) throws NamingException
+         {
+            calls.add("bindApp");
+            super.bindApp(view, proxy);
+         }
+
+         @Override
+         protected void unbindApp(View view) throws NamingException
+         {
+            calls.add("unbindApp");
+            super.unbindApp(view);
+         }
+
+         @Override
+         protected void bindModule(View view, Object proxy) throws NamingException
+         {
+            // skip java:module
+            calls.add("bindModule");
+         }
+      };
+      binder.setGlobalContext(javaGlobal);
+      binder.setProxyFactory(new MyProxyFactory());
+      binder.bind();
+      assertEquals(asList("bindApp", "bindModule"), calls);
+
+      String expected = "HookedBean#" + SimpleTestCase.class.getName();
+      assertEquals(expected, javaGlobal.lookup("testApp/testModule/HookedBean"));
+      assertEquals(expected, bean.getModule().getApplication().getContext().lookup("testModule/HookedBean"));
+      try
+      {
+         bean.getModule().getContext().lookup("HookedBean");
+         fail("java:module should have been skipped");
+      }
+      catch (NameNotFoundException e)
+      {
+         // good
+      }
+
+      EJBBinder next = new EJBBinder(bean)
+      {
+         @Override
+         protected void bindApp(View view, Object proxy) throws NamingException
+         {
+            calls.add("rebindApp");
+            super.bindApp(view, proxy);
+         }
+      };
+      next.setGlobalContext(javaGlobal);
+      next.setProxyFactory(new MyProxyFactory());
+      next.rebind(binder);
+      assertEquals(asList("bindApp", "bindModule", "rebindApp"), calls);
+      assertEquals(expected, bean.getModule().getApplication().getContext().lookup("testModule/HookedBean"));
+      assertEquals(expected, bean.getModule().getContext().lookup("HookedBean"));
+
+      next.unbind();
+   }
+
+   /**
+    * Tests that plan names are parsed into their components, also when they need more than a split
+    */
+   @Test
+   public void testPlanParsedNames() throws Exception
+   {
+      View view = new EJBBinder(createSingleViewBean("ParsedBean")).getPlan().getEntries().get(0).getView();
+      BindingPlan plan = new BindingPlan.Builder()
+         .add(view, BindingPlan.Namespace.GLOBAL, "testApp/testModule/ParsedBean", false)
+         .add(view, BindingPlan.Namespace.GLOBAL, "testApp/\"quoted/name\"", false)
+         .build();
+      assertEquals(new CompositeName("testApp/testModule/ParsedBean"), plan.getEntries().get(0).getParsedName());
+      assertEquals(new CompositeName("testApp/\"quoted/name\""), plan.getEntries().get(1).getParsedName());
+      assertEquals(2, plan.getEntries().get(1).getParsedName().size());
+   }
+
+   /**
+    * Tests that the views of a bean walk to their shared parent context once, until unbind
+    */
+   @Test
+   public void testSubcontextCache() throws Exception
+   {
+      SessionBeanType bean = createSingleViewBean("MultiViewBean");
+      doReturn(asList(Runnable.class, EventListener.class)).when(bean).getBusinessLocals();
+      doReturn(false).when(bean).isLocalBean();
+      final AtomicInteger lookups = new AtomicInteger();
+      Context global = (Context) Proxy.newProxyInstance(Context.class.getClassLoader(), new Class<?>[] { Context.class }, new InvocationHandler()
+      {
+         public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+         {
+            if (method.getName().equals("lookup"))
+               lookups.incrementAndGet();
+            try
+            {
+               return method.invoke(javaGlobal, args);
+            }
+            catch (InvocationTargetException e)
+            {
+               throw e.getCause();
+            }
+         }
+      });
+
+      EJBBinder binder = new EJBBinder(bean);
+      binder.setGlobalContext(global);
+      binder.setProxyFactory(new MyProxyFactory());
+      binder.bind();
+      assertEquals(1, lookups.get());
+      assertEquals("MultiViewBean#" + EventListener.class.getName(), iniCtx.lookup("java:global/testApp/testModule/MultiViewBean!" + EventListener.class.getName()));
+
+      // released on unbind, so a rebind walks again
+      binder.unbind();
+      binder.bind();
+      assertEquals(2, lookups.get());
+      binder.unbind();
+   }
+
+   /**
+    * Tests that a redeployed bean only rebinds the difference with the stopped binder
+    */
+   @Test
+   public void testIncrementalRebind() throws Exception
+   {
+      JavaEEModule module = createModule();
+      SessionBeanType oldBean = createSingleViewBean("RebindBean", module);
+      doReturn(asList(Runnable.class, EventListener.class)).when(oldBean).getBusinessLocals();
+      doReturn(false).when(oldBean).isLocalBean();
+      SessionBeanType newBean = createSingleViewBean("RebindBean", module);
+      doReturn(asList(Runnable.class, Callable.class)).when(newBean).getBusinessLocals();
+      doReturn(false).when(newBean).isLocalBean();
+
+      RebindRegistry registry = new RebindRegistry(60000);
+      try
+      {
+         EJBBinder oldBinder = new EJBBinder(oldBean);
+         oldBinder.setGlobalContext(javaGlobal);
+         oldBinder.setProxyFactory(new MyProxyFactory());
+         oldBinder.setRebindRegistry(registry);
+         final List<String> unbound = new ArrayList<String>();
+         oldBinder.addUnbindListener(new UnbindListener()
+         {
+            public void unbound(Context ctx, String name, Object obj)
+            {
+               unbound.add(name);
+            }
+         });
+         oldBinder.bind();
+
+         // stopping keeps the names
+         oldBinder.unbind();
+         assertEquals(1, registry.getRetained());
+         String prefix = "testApp/testModule/RebindBean!";
+         assertEquals("RebindBean#" + Runnable.class.getName(), javaGlobal.lookup(prefix + Runnable.class.getName()));
+
+         EJBBinder newBinder = new EJBBinder(newBean);
+         newBinder.setGlobalContext(javaGlobal);
+         newBinder.setProxyFactory(new ProxyFactory()
+         {
+            public Object produce(View view)
+            {
+               return "new " + view.getBusinessInterface().getName();
+            }
+         });
+         newBinder.setRebindRegistry(registry);
+         newBinder.bind();
+         assertEquals(0, registry.getRetained());
+
+         assertEquals("new " + Runnable.class.getName(), javaGlobal.lookup(prefix + Runnable.class.getName()));
+         assertEquals("new " + Callable.class.getName(), javaGlobal.lookup(prefix + Callable.class.getName()));
+         try
+         {
+            javaGlobal.lookup(prefix + EventListener.class.getName());
+            fail("Should have been unbound");
+         }
+         catch (NameNotFoundException e)
+         {
+            // good
+         }
+         // the old values of all names, rebound or removed, are gone
+         assertEquals(6, unbound.size());
+         assertTrue(unbound.contains(prefix + EventListener.class.getName()));
+         assertTrue(unbound.contains(prefix + Runnable.class.getName()));
+
+         newBinder.unbind();
+         assertEquals(1, registry.getRetained());
+      }
+      finally
+      {
+         registry.stop();
+      }
+      assertEquals(0, registry.getRetained());
+      try
+      {
+         javaGlobal.lookup("testApp/testModule/RebindBean!" + Runnable.class.getName());
+         fail("Should have been released");
+      }
+      catch (NameNotFoundException e)
+      {
+         // good
+      }
+   }
+
+   /**
+    * Tests that a redeploy into a new module takes the names over, while the names left
+    * in the torn down contexts of the previous module do not fail it
+    */
+   @Test
+   public void testRebindIntoNewModule() throws Exception
+   {
+      SessionBeanType oldBean = createSingleViewBean("MovedBean");
+      doReturn(asList(Runnable.class, EventListener.class)).when(oldBean).getBusinessLocals();
+      doReturn(false).when(oldBean).isLocalBean();
+      SessionBeanType newBean = createSingleViewBean("MovedBean", createModule());
+      doReturn(asList(Runnable.class)).when(newBean).getBusinessLocals();
+      doReturn(false).when(newBean).isLocalBean();
+      String prefix = "testApp/testModule/MovedBean!";
+
+      RebindRegistry registry = new RebindRegistry(60000);
+      try
+      {
+         EJBBinder oldBinder = new EJBBinder(oldBean);
+         oldBinder.setGlobalContext(javaGlobal);
+         oldBinder.setProxyFactory(new MyProxyFactory());
+         oldBinder.setRebindRegistry(registry);
+         oldBinder.bind();
+         oldBinder.unbind();
+         assertEquals(1, registry.getRetained());
+
+         // the java:module context of the previous deployment is torn down
+         JavaEEModule oldModule = oldBean.getModule();
+         Context tornDown = mock(Context.class);
+         doThrow(new NamingException("Torn down")).when(tornDown).unbind(any(Name.class));
+         doReturn(tornDown).when(oldModule).getContext();
+
+         EJBBinder newBinder = new EJBBinder(newBean);
+         newBinder.setGlobalContext(javaGlobal);
+         newBinder.setProxyFactory(new MyProxyFactory());
+         newBinder.setRebindRegistry(registry);
+         newBinder.bind();
+         assertEquals(0, registry.getRetained());
+
+         assertEquals("MovedBean#" + Runnable.class.getName(), javaGlobal.lookup(prefix + Runnable.class.getName()));
+         assertEquals("MovedBean#" + Runnable.class.getName(), moduleContext(newBean).lookup("MovedBean!" + Runnable.class.getName()));
+         try
+         {
+            javaGlobal.lookup(prefix + EventListener.class.getName());
+            fail("Should have been unbound");
+         }
+         catch (NameNotFoundException e)
+         {
+            // good
+         }
+      }
+      finally
+      {
+         registry.stop();
+      }
+   }
+
+   /**
+    * Tests that the names of an undeploy which is not followed by a redeploy are unbound after the grace period
+    */
+   @Test
+   public void testRebindGracePeriodExpires() throws Exception
+   {
+      RebindRegistry registry = new RebindRegistry(50);
+      try
+      {
+         EJBBinder binder = new EJBBinder(createSingleViewBean("ExpiredBean"));
+         binder.setGlobalContext(javaGlobal);
+         binder.setProxyFactory(new MyProxyFactory());
+         binder.setRebindRegistry(registry);
+         binder.bind();
+
+         binder.unbind();
+         String name = "testApp/testModule/ExpiredBean";
+         assertEquals("ExpiredBean#" + SimpleTestCase.class.getName(), javaGlobal.lookup(name));
+
+         // released in the background
+         long deadline = System.currentTimeMillis() + 10000;
+         while (true)
+         {
+            try
+            {
+               javaGlobal.lookup(name);
+            }
+            catch (NameNotFoundException e)
+            {
+               break;
+            }
+            if (System.currentTimeMillis() > deadline)
+               fail("Should have been released");
+            Thread.sleep(10);
+         }
+         assertEquals(0, registry.getRetained());
+      }
+      finally
+      {
+         registry.stop();
+      }
+   }
+
+   private static class ColorProxyFactory implements ProxyFactory
+   {
+      private final String color;
+
+      ColorProxyFactory(String color)
+      {
+         this.color = color;
+      }
+
+      public Object produce(View view)
+      {
+         return color;
+      }
+   }
+
+   /**
+    * Tests that a redeploy binds into a shadow generation, which takes over at cutover
+    */
+   @Test
+   public void testBlueGreen() throws Exception
+   {
+      String id = "testBlueGreen-" + System.nanoTime();
+      GenerationSwitch generations = GenerationSwitch.getSwitch(id);
+      JavaEEModule module = createModule();
+      SessionBeanType blueBean = createSingleViewBean("ColorBean", module);
+      SessionBeanType greenBean = createSingleViewBean("ColorBean", module);
+      String name = "testApp/testModule/ColorBean";
+
+      EJBBinder blue = new EJBBinder(blueBean);
+      blue.setGlobalContext(javaGlobal);
+      blue.setProxyFactory(new ColorProxyFactory("blue"));
+      blue.setGenerationSwitch(generations);
+      final List<Object> retired = new ArrayList<Object>();
+      blue.addUnbindListener(new UnbindListener()
+      {
+         public void unbound(Context ctx, String name, Object obj)
+         {
+            synchronized (retired)
+            {
+               retired.add(obj);
+            }
+         }
+      });
+      blue.bind();
+      // visible before the first cutover
+      assertEquals("blue", javaGlobal.lookup(name));
+      generations.cutover().get(5, TimeUnit.SECONDS);
+      assertEquals(1, generations.getGeneration());
+
+      // redeploy, the old generation keeps serving
+      blue.unbind();
+      assertEquals("blue", javaGlobal.lookup(name));
+      EJBBinder green = new EJBBinder(greenBean);
+      green.setGlobalContext(javaGlobal);
+      green.setProxyFactory(new ColorProxyFactory("green"));
+      green.setGenerationSwitch(generations);
+      green.bind();
+      assertEquals("blue", javaGlobal.lookup(name));
+      assertEquals("blue", moduleContext(blueBean).lookup("ColorBean"));
+
+      Future<?> retirement = generations.cutover();
+      assertEquals("green", javaGlobal.lookup(name));
+      assertEquals("green", moduleContext(blueBean).lookup("ColorBean"));
+      // all six blue values are retired in the background, the names stay
+      retirement.get(5, TimeUnit.SECONDS);
+      assertEquals(asList("blue", "blue", "blue", "blue", "blue", "blue"), retired);
+      assertEquals("green", javaGlobal.lookup(name));
+
+      // undeploy, the switch goes with the names
+      green.unbind();
+      generations.retire(0).get(5, TimeUnit.SECONDS);
+      try
+      {
+         javaGlobal.lookupLink(name);
+         fail(name + " should have been unbound");
+      }
+      catch (NameNotFoundException e)
+      {
+         // good
+      }
+      GenerationSwitch next = GenerationSwitch.getSwitch(id);
+      assertNotSame(generations, next);
+      next.retire(0).get(5, TimeUnit.SECONDS);
+   }
+
+   /**
+    * Tests that a deployment wide shutdown drops the names once the last binder stops,
+    * while every binder still tells its unbind listeners.
+    */
+   @Test
+   public void testFastShutdown() throws Exception
+   {
+      JavaEEModule module = createModule();
+      SessionBeanType bean1 = createSingleViewBean("FastBean1", module);
+      SessionBeanType bean2 = createSingleViewBean("FastBean2", module);
+
+      NamespaceShutdown shutdown = new NamespaceShutdown();
+      final List<String> unbound = new ArrayList<String>();
+      UnbindListener listener = new UnbindListener()
+      {
+         public void unbound(Context ctx, String name, Object obj)
+         {
+            unbound.add(name);
+         }
+      };
+      EJBBinder binder1 = new EJBBinder(bean1);
+      EJBBinder binder2 = new EJBBinder(bean2);
+      for (EJBBinder binder : asList(binder1, binder2))
+      {
+         binder.setGlobalContext(javaGlobal);
+         binder.setProxyFactory(new MyProxyFactory());
+         binder.setNamespaceShutdown(shutdown);
+         binder.addUnbindListener(listener);
+         binder.bind();
+      }
+
+      // a single binder stopping outside a shutdown still unbinds its names, and can bind again
+      binder1.unbind();
+      assertEquals(6, unbound.size());
+      binder1.bind();
+      unbound.clear();
+
+      shutdown.begin();
+      binder1.unbind();
+      assertEquals(6, unbound.size());
+      assertEquals("FastBean1#" + SimpleTestCase.class.getName(), javaGlobal.lookup("testApp/testModule/FastBean1"));
+
+      // the shutdown is cancelled, the detached names are replaced
+      shutdown.cancel();
+      binder1.bind();
+      assertEquals("FastBean1#" + SimpleTestCase.class.getName(), javaGlobal.lookup("testApp/testModule/FastBean1"));
+      unbound.clear();
+
+      // a name bound by someone else stays
+      Object other = new Object();
+      javaGlobal.bind("testApp/other", other);
+      shutdown.begin();
+      binder1.unbind();
+      binder2.unbind();
+      assertEquals(12, unbound.size());
+      assertSame(other, javaGlobal.lookup("testApp/other"));
+      javaGlobal.unbind("testApp/other");
+      assertTrue(unbound.contains("testApp/testModule/FastBean2"));
+      try
+      {
+         javaGlobal.lookup("testApp/testModule/FastBean1");
+         fail("Should have been unbound");
+      }
+      catch (NameNotFoundException e)
+      {
+         // good
+      }
+      // the module subcontext in java:app holds nothing else, it goes at once
+      try
+      {
+         bean1.getModule().getApplication().getContext().lookup("testModule");
+         fail("Should have been unbound");
+      }
+      catch (NameNotFoundException e)
+      {
+         // good
+      }
+   }
+
+   /**
+    * Tests that the binder reports its names and timings
+    */
+   @Test
+   public void testBindingStatistics() throws Exception
+   {
+      SessionBeanType bean = createSingleViewBean("StatisticsBean");
+      BindingStatistics statistics = new BindingStatistics();
+      BindingMetrics metrics = BindingMetrics.getInstance();
+      metrics.setEnabled(true);
+      try
+      {
+         long binds = metrics.getCount("bind");
+         EJBBinder binder = new EJBBinder(bean);
+         binder.setGlobalContext(javaGlobal);
+         binder.setProxyFactory(new MyProxyFactory());
+         binder.setStatistics(statistics);
+         binder.bind();
+
+         String component = "testApp/testModule/StatisticsBean";
+         assertEquals(asList(component), asList(statistics.getComponents()));
+         assertEquals(6, statistics.getBoundNames(component).length);
+         assertTrue(asList(statistics.getBoundNames(component)).contains("GLOBAL:" + component));
+         assertEquals(asList(SimpleTestCase.class.getName() + "=" + View.Type.LOCAL_BEAN), asList(statistics.getViewTypes(component)));
+         assertTrue(statistics.getBindTime(component) >= statistics.getProxyProductionTime(component));
+         assertEquals(binds + 1, metrics.getCount("bind"));
+         assertTrue(metrics.getCount("bind:GLOBAL") >= 2);
+         assertTrue(metrics.getCount("produce:" + MyProxyFactory.class.getName()) >= 1);
+
+         binder.unbind();
+         assertEquals(0, statistics.getBoundNames(component).length);
+         assertTrue(metrics.getCount("unbind:MODULE") >= 2);
+      }
+      finally
+      {
+         metrics.setEnabled(false);
+      }
+   }
+
+   /**
+    * Tests that proxies produced while staging are accounted to the binder
+    */
+   @Test
+   public void testStagedBindingStatistics() throws Exception
+   {
+      SessionBeanType bean = createSingleViewBean("StagedStatisticsBean");
+      BindingStatistics statistics = new BindingStatistics();
+      EJBBinder binder = new EJBBinder(bean);
+      binder.setGlobalContext(javaGlobal);
+      binder.setProxyFactory(new ProxyFactory()
+      {
+         public Object produce(View view)
+         {
+            try
+            {
+               Thread.sleep(20);
+            }
+            catch (InterruptedException e)
+            {
+               Thread.currentThread().interrupt();
+            }
+            return "Staged";
+         }
+      });
+      binder.setStatistics(statistics);
+      binder.setRollbackOnFailure(true);
+      binder.bind();
+
+      String component = "testApp/testModule/StagedStatisticsBean";
+      assertTrue(statistics.getProxyProductionTime(component) >= TimeUnit.MILLISECONDS.toNanos(20));
+      assertEquals("Staged", javaGlobal.lookup(component));
+      binder.unbind();
+   }
+
+   private static Context moduleContext(SessionBeanType bean)
+   {
+      return bean.getModule().getContext();
+   }
 }
@@ -30,14 +30,20 @@ import org.jboss.beans.metadata.spi.builder.BeanMetaDataBuilder;
 import org.jboss.deployers.spi.DeploymentException;
 import org.jboss.deployers.structure.spi.DeploymentUnit;
 import org.jboss.ejb3.jndi.binder.EJBBinder;
+import org.jboss.ejb3.jndi.binder.impl.BindingStatistics;
+import org.jboss.ejb3.jndi.binder.impl.BindingStatisticsMBean;
+import org.jboss.ejb3.jndi.binder.impl.GenerationSwitch;
+import org.jboss.ejb3.jndi.binder.impl.NamespaceShutdown;
+import org.jboss.ejb3.jndi.binder.impl.RebindRegistry;
 import org.jboss.ejb3.jndi.binder.metadata.SessionBeanType;
-import org.jboss.ejb3.jndi.binder.spi.ProxyFactory;
+import org.jboss.ejb3.jndi.binder.spi.BindListener;
 import org.jboss.ejb3.jndi.deployers.metadata.SessionBeanTypeWrapper;
 import org.jboss.ejb3.jndi.deployers.proxy.LegacyProxyFactory;
 import org.jboss.ejb3.jndi.deployers.resolver.DependencyBuilder;
 import org.jboss.metadata.ejb.jboss.JBossEnterpriseBeanMetaData;
 import org.jboss.metadata.ejb.jboss.JBossSessionBeanMetaData;
 import org.jboss.reloaded.naming.deployers.javaee.JavaEEComponentInformer;
+import org.jboss.logging.Logger;
 import org.jboss.reloaded.naming.spi.JavaEEComponent;
 
 /**
@@ -46,8 +52,18 @@ import org.jboss.reloaded.naming.spi.JavaEEComponent;
  */
 public class EJBBinderDeployer extends AbstractJavaEEComponentDeployer
 {
+   private static final Logger log = Logger.getLogger(EJBBinderDeployer.class);
+
+   private static final String CUTOVER_BUILDER = GenerationCutover.class.getName() + ".builder";
+   private static final String SHUTDOWN_BUILDER = FastShutdown.class.getName() + ".builder";
+
    private List<DependencyBuilder> builders = new CopyOnWriteArrayList<DependencyBuilder>();
-   private ProxyFactory legacy = new LegacyProxyFactory();
+   private LegacyProxyFactory legacy = new LegacyProxyFactory();
+   private boolean rollbackOnFailure;
+   private RebindRegistry rebindRegistry;
+   private long blueGreenGracePeriod;
+   private boolean fastShutdown;
+   private boolean bindingStatistics;
 
    public EJBBinderDeployer(JavaEEComponentInformer informer)
    {
@@ -98,6 +114,17 @@ public class EJBBinderDeployer extends AbstractJavaEEComponentDeployer
       builder.addConstructorParameter(SessionBeanType.class.getName(), builder.createInject(sessionBeanTypeName));
       builder.addPropertyMetaData("globalContext", builder.createInject("NameSpaces", "globalContext"));
       builder.addPropertyMetaData("proxyFactory", legacy);
+      if (rollbackOnFailure)
+         builder.addPropertyMetaData("rollbackOnFailure", rollbackOnFailure);
+      if (rebindRegistry != null)
+         builder.addPropertyMetaData("rebindRegistry", rebindRegistry);
+      if (blueGreenGracePeriod > 0)
+         builder.addPropertyMetaData("generationSwitch", getGenerationSwitch(unit, beanInstanceName));
+      if (bindingStatistics)
+         builder.addPropertyMetaData("statistics", builder.createInject(getStatisticsName(unit)));
+      // the generation switch and the rebind registry unbind the names themselves
+      if (fastShutdown && blueGreenGracePeriod == 0 && rebindRegistry == null)
+         builder.addPropertyMetaData("namespaceShutdown", getNamespaceShutdown(unit, beanInstanceName));
       builder.setStart("bind");
       builder.setStop("unbind");
 
@@ -107,6 +134,176 @@ public class EJBBinderDeployer extends AbstractJavaEEComponentDeployer
       unit.getParent().addAttachment(beanInstanceName, builder.getBeanMetaData());
    }
 
+   /**
+    * Set an optional warm-up, which gets every bound view once its binder is started.
+    *
+    * @param warmup the warm-up, null for none
+    */
+   public void setWarmup(BindListener warmup)
+   {
+      legacy.setWarmup(warmup);
+   }
+
+   /**
+    * Bind the targets of the EJB links directly, instead of link refs.
+    *
+    * @param flattenLinks true to flatten links
+    */
+   public void setFlattenLinks(boolean flattenLinks)
+   {
+      legacy.setFlattenLinks(flattenLinks);
+   }
+
+   /**
+    * Let a binder unbind the names it bound so far when binding one of them fails.
+    *
+    * @param rollbackOnFailure true to roll back on failure
+    */
+   public void setRollbackOnFailure(boolean rollbackOnFailure)
+   {
+      this.rollbackOnFailure = rollbackOnFailure;
+   }
+
+   /**
+    * Keep the names of a stopped binder for a while, so a redeploy only rebinds what changed.
+    * A redeploy is recognized by a deployment of the same name binding the same bean again
+    * within the grace period.
+    *
+    * A plain undeploy keeps serving the names for the grace period as well, with proxies of
+    * the stopped containers, so keep it just long enough for a redeploy. Fast shutdown does
+    * not apply while there is a grace period.
+    *
+    * @param gracePeriod the time in milliseconds the names are kept, 0 to unbind right away
+    */
+   public void setRebindGracePeriod(long gracePeriod)
+   {
+      if (gracePeriod < 0)
+         throw new IllegalArgumentException("Grace period cannot be negative: " + gracePeriod);
+
+      if (rebindRegistry != null)
+         rebindRegistry.stop();
+      this.rebindRegistry = gracePeriod > 0 ? new RebindRegistry(gracePeriod) : null;
+   }
+
+   /**
+    * Let a redeploy bind into a shadow generation, while the previous deployment keeps serving
+    * until the new one is started and takes over at once.
+    *
+    * A plain undeploy keeps serving the names for the grace period as well, with proxies of
+    * the stopped containers, so keep it just long enough for a redeploy. Fast shutdown does
+    * not apply to deployments bound this way.
+    *
+    * @param gracePeriod the time in milliseconds the names of an undeployed deployment are kept, 0 to bind directly
+    */
+   public void setBlueGreenGracePeriod(long gracePeriod)
+   {
+      if (gracePeriod < 0)
+         throw new IllegalArgumentException("Grace period cannot be negative: " + gracePeriod);
+
+      this.blueGreenGracePeriod = gracePeriod;
+   }
+
+   /**
+    * Drop the names of an undeployed deployment per subcontext, instead of unbinding every name.
+    * Subcontexts which hold names of others as well only lose the names of the deployment.
+    * Does not apply together with a blue green or rebind grace period.
+    *
+    * @param fastShutdown true to drop whole subcontexts
+    */
+   public void setFastShutdown(boolean fastShutdown)
+   {
+      this.fastShutdown = fastShutdown;
+   }
+
+   /**
+    * Register a statistics MBean per deployment, with the names and bind timings of its binders.
+    *
+    * @param bindingStatistics true to register the statistics
+    */
+   public void setBindingStatistics(boolean bindingStatistics)
+   {
+      this.bindingStatistics = bindingStatistics;
+   }
+
+   public void stop()
+   {
+      if (rebindRegistry != null)
+         rebindRegistry.stop();
+   }
+
+   /**
+    * Get the generation switch of the top level deployment, and let its cutover wait for the binder.
+    *
+    * @param unit the component unit
+    * @param binderName the name of the binder bean
+    * @return the generation switch
+    */
+   protected GenerationSwitch getGenerationSwitch(DeploymentUnit unit, String binderName)
+   {
+      DeploymentUnit topLevel = unit.getTopLevel();
+      // the same across redeploys
+      GenerationSwitch generationSwitch = GenerationSwitch.getSwitch(topLevel.getName());
+      BeanMetaDataBuilder cutover = topLevel.getAttachment(CUTOVER_BUILDER, BeanMetaDataBuilder.class);
+      if (cutover == null)
+      {
+         String cutoverName = "jboss.ejb3:application=" + topLevel.getSimpleName() + ",service=" + GenerationCutover.class.getSimpleName();
+         cutover = BeanMetaDataBuilderFactory.createBuilder(cutoverName, GenerationCutover.class.getName());
+         cutover.addConstructorParameter(GenerationSwitch.class.getName(), generationSwitch);
+         cutover.addConstructorParameter(long.class.getName(), blueGreenGracePeriod);
+         topLevel.addAttachment(CUTOVER_BUILDER, cutover);
+         topLevel.addAttachment(cutoverName, cutover.getBeanMetaData());
+      }
+      // all binders of the deployment are processed before any bean is installed
+      cutover.addDependency(binderName);
+      return generationSwitch;
+   }
+
+   /**
+    * Get the name of the statistics bean of the top level deployment, which is attached on first use.
+    *
+    * @param unit the component unit
+    * @return the bean name
+    */
+   protected String getStatisticsName(DeploymentUnit unit)
+   {
+      DeploymentUnit topLevel = unit.getTopLevel();
+      String statisticsName = "jboss.ejb3:application=" + topLevel.getSimpleName() + ",service=" + BindingStatistics.class.getSimpleName();
+      if (topLevel.getAttachment(statisticsName) == null)
+      {
+         BeanMetaDataBuilder statistics = BeanMetaDataBuilderFactory.createBuilder(statisticsName, BindingStatistics.class.getName());
+         statistics.addAnnotation("@org.jboss.aop.microcontainer.aspects.jmx.JMX(name=\"" + statisticsName + "\", exposedInterface=" + BindingStatisticsMBean.class.getName() + ".class, registerDirectly=true)");
+         topLevel.addAttachment(statisticsName, statistics.getBeanMetaData());
+      }
+      return statisticsName;
+   }
+
+   /**
+    * Get the namespace shutdown of the top level deployment, and let its trigger depend on the binder.
+    *
+    * @param unit the component unit
+    * @param binderName the name of the binder bean
+    * @return the namespace shutdown
+    */
+   protected NamespaceShutdown getNamespaceShutdown(DeploymentUnit unit, String binderName)
+   {
+      DeploymentUnit topLevel = unit.getTopLevel();
+      NamespaceShutdown namespaceShutdown = topLevel.getAttachment(NamespaceShutdown.class);
+      BeanMetaDataBuilder trigger = topLevel.getAttachment(SHUTDOWN_BUILDER, BeanMetaDataBuilder.class);
+      if (namespaceShutdown == null)
+      {
+         namespaceShutdown = new NamespaceShutdown();
+         String triggerName = "jboss.ejb3:application=" + topLevel.getSimpleName() + ",service=" + FastShutdown.class.getSimpleName();
+         trigger = BeanMetaDataBuilderFactory.createBuilder(triggerName, FastShutdown.class.getName());
+         trigger.addConstructorParameter(NamespaceShutdown.class.getName(), namespaceShutdown);
+         topLevel.addAttachment(NamespaceShutdown.class, namespaceShutdown);
+         topLevel.addAttachment(SHUTDOWN_BUILDER, trigger);
+         topLevel.addAttachment(triggerName, trigger.getBeanMetaData());
+      }
+      // stopped before any binder of the deployment
+      trigger.addDependency(binderName);
+      return namespaceShutdown;
+   }
+
    public void addDependencyBuilder(DependencyBuilder builder)
    {
       if (builder == null)
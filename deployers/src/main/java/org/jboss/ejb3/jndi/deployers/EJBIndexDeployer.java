@@ -0,0 +1,83 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright (c) 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.deployers;
+
+import org.jboss.deployers.spi.DeploymentException;
+import org.jboss.deployers.spi.deployer.DeploymentStages;
+import org.jboss.deployers.spi.deployer.helpers.AbstractDeployer;
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.jndi.deployers.resolver.EJBIndex;
+import org.jboss.ejb3.jndi.deployers.resolver.EJBResolutionCache;
+import org.jboss.reloaded.naming.deployers.javaee.JavaEEComponentInformer;
+
+/**
+ * Adds every deployment unit to the EJB index of its top level deployment,
+ * so references resolve with a few lookups instead of scanning all beans.
+ * Adding or removing a unit drops the resolved references of the deployment.
+ */
+public class EJBIndexDeployer extends AbstractDeployer
+{
+   private JavaEEComponentInformer informer;
+
+   public EJBIndexDeployer(JavaEEComponentInformer informer)
+   {
+      if (informer == null)
+         throw new IllegalArgumentException("Null informer");
+
+      this.informer = informer;
+      // before any reference is resolved
+      setStage(DeploymentStages.POST_CLASSLOADING);
+   }
+
+   public void deploy(DeploymentUnit unit) throws DeploymentException
+   {
+      if (unit.isComponent())
+         return;
+
+      DeploymentUnit topLevel = unit.getTopLevel();
+      EJBIndex index = topLevel.getAttachment(EJBIndex.class);
+      if (index == null)
+      {
+         index = new EJBIndex(informer);
+         topLevel.addAttachment(EJBIndex.class, index);
+         topLevel.addAttachment(EJBResolutionCache.class, new EJBResolutionCache());
+      }
+      index.add(unit);
+      // the new unit might change how references resolve
+      topLevel.getAttachment(EJBResolutionCache.class).clear();
+   }
+
+   @Override
+   public void undeploy(DeploymentUnit unit)
+   {
+      if (unit.isComponent())
+         return;
+
+      DeploymentUnit topLevel = unit.getTopLevel();
+      EJBIndex index = topLevel.getAttachment(EJBIndex.class);
+      if (index != null)
+         index.remove(unit);
+      EJBResolutionCache cache = topLevel.getAttachment(EJBResolutionCache.class);
+      if (cache != null)
+         cache.clear();
+   }
+}
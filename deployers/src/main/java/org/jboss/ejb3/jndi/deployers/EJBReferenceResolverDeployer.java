@@ -0,0 +1,179 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright (c) 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.deployers;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.deployers.spi.DeploymentException;
+import org.jboss.deployers.spi.deployer.DeploymentStages;
+import org.jboss.deployers.spi.deployer.helpers.AbstractDeployer;
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.jndi.deployers.resolver.BatchEJBBinderResolver;
+import org.jboss.ejb3.jndi.deployers.resolver.EJBBinderResolutionResults;
+import org.jboss.ejb3.jndi.deployers.resolver.EJBReference;
+import org.jboss.logging.Logger;
+import org.jboss.metadata.ejb.jboss.JBossEnterpriseBeanMetaData;
+import org.jboss.metadata.javaee.spec.AnnotatedEJBReferenceMetaData;
+import org.jboss.metadata.javaee.spec.AnnotatedEJBReferencesMetaData;
+import org.jboss.metadata.javaee.spec.EJBLocalReferenceMetaData;
+import org.jboss.metadata.javaee.spec.EJBLocalReferencesMetaData;
+import org.jboss.metadata.javaee.spec.EJBReferenceMetaData;
+import org.jboss.metadata.javaee.spec.EJBReferencesMetaData;
+
+/**
+ * Resolves the ejb-refs, ejb-local-refs and @EJB references of all enterprise beans and web modules
+ * in a deployment as one batch, once all of its units are indexed. The results end up in the resolution
+ * cache, so the resource providers of the ENC only look them up.
+ *
+ * References which name their target, or whose interface is only known from the injection target,
+ * are left to the resource providers. Errors are left to them as well, so they are reported for
+ * the environment entry they belong to.
+ */
+public class EJBReferenceResolverDeployer extends AbstractDeployer
+{
+   private static final Logger log = Logger.getLogger(EJBReferenceResolverDeployer.class);
+
+   // a dependency on jboss-metadata-web just for its environment is a bit too much, so it is taken by name
+   private static final String WEB_METADATA = "org.jboss.metadata.web.jboss.JBossWebMetaData";
+
+   private BatchEJBBinderResolver resolver;
+
+   public EJBReferenceResolverDeployer(BatchEJBBinderResolver resolver)
+   {
+      if (resolver == null)
+         throw new IllegalArgumentException("Null resolver");
+
+      this.resolver = resolver;
+      // all units are indexed by now, the ENC is not populated yet
+      setStage(DeploymentStages.PRE_REAL);
+      setTopLevelOnly(true);
+   }
+
+   public void deploy(DeploymentUnit unit) throws DeploymentException
+   {
+      List<EJBReference> references = new ArrayList<EJBReference>();
+      collect(unit, references);
+      if (references.isEmpty())
+         return;
+
+      EJBBinderResolutionResults results = resolver.resolveAll(references);
+      if (log.isDebugEnabled())
+      {
+         log.debug("Resolved " + results + " in " + unit);
+         for (Map.Entry<EJBReference, RuntimeException> entry : results.getErrors().entrySet())
+            log.debug("Could not resolve " + entry.getKey() + " ahead of the ENC", entry.getValue());
+      }
+   }
+
+   private static void collect(DeploymentUnit unit, List<EJBReference> references)
+   {
+      JBossEnterpriseBeanMetaData bean = unit.getAttachment(JBossEnterpriseBeanMetaData.class);
+      if (bean != null)
+      {
+         collect(unit, bean.getEjbLocalReferences(), references);
+         collect(unit, bean.getEjbReferences(), references);
+         collect(unit, bean.getAnnotatedEjbReferences(), references);
+      }
+      Object web = unit.getAttachment(WEB_METADATA);
+      if (web != null)
+      {
+         collect(unit, get(web, "getEjbLocalReferences", EJBLocalReferencesMetaData.class), references);
+         collect(unit, get(web, "getEjbReferences", EJBReferencesMetaData.class), references);
+         collect(unit, get(web, "getAnnotatedEjbReferences", AnnotatedEJBReferencesMetaData.class), references);
+      }
+      for (DeploymentUnit component : unit.getComponents())
+         collect(component, references);
+      for (DeploymentUnit child : unit.getChildren())
+         collect(child, references);
+   }
+
+   private static void collect(DeploymentUnit unit, EJBLocalReferencesMetaData refs, List<EJBReference> references)
+   {
+      if (refs == null)
+         return;
+      for (EJBLocalReferenceMetaData ref : refs)
+      {
+         // the local home goes first, as for the resource provider
+         String beanInterface = ref.getLocalHome() != null ? ref.getLocalHome() : ref.getLocal();
+         add(unit, ref.getLink(), beanInterface, ref.getMappedName(), references);
+      }
+   }
+
+   private static void collect(DeploymentUnit unit, EJBReferencesMetaData refs, List<EJBReference> references)
+   {
+      if (refs == null)
+         return;
+      for (EJBReferenceMetaData ref : refs)
+      {
+         String beanInterface = ref.getHome() != null ? ref.getHome() : ref.getRemote();
+         add(unit, ref.getLink(), beanInterface, ref.getMappedName(), references);
+      }
+   }
+
+   private static void collect(DeploymentUnit unit, AnnotatedEJBReferencesMetaData refs, List<EJBReference> references)
+   {
+      if (refs == null)
+         return;
+      for (AnnotatedEJBReferenceMetaData ref : refs)
+      {
+         // an interface only known from the injection target is left to the resource provider
+         Object type = ref.getBeanInterface();
+         String beanInterface = type instanceof Class<?> ? ((Class<?>) type).getName() : (String) type;
+         add(unit, ref.getLink(), beanInterface, ref.getMappedName(), references);
+      }
+   }
+
+   private static <T> T get(Object metadata, String getter, Class<T> type)
+   {
+      try
+      {
+         Method method = metadata.getClass().getMethod(getter);
+         return type.cast(method.invoke(metadata));
+      }
+      catch (NoSuchMethodException e)
+      {
+         log.debug("No " + getter + " on " + metadata.getClass().getName());
+         return null;
+      }
+      catch (IllegalAccessException e)
+      {
+         throw new RuntimeException(e);
+      }
+      catch (InvocationTargetException e)
+      {
+         throw new RuntimeException(e.getCause());
+      }
+   }
+
+   private static void add(DeploymentUnit unit, String link, String beanInterface, String mappedName, List<EJBReference> references)
+   {
+      if (mappedName != null && !mappedName.trim().isEmpty())
+         return;
+      if (beanInterface == null || beanInterface.trim().isEmpty())
+         return;
+      references.add(new EJBReference(unit, link, beanInterface, null, null));
+   }
+}
@@ -0,0 +1,51 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright (c) 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.deployers;
+
+import org.jboss.ejb3.jndi.binder.impl.NamespaceShutdown;
+
+/**
+ * Begins the namespace shutdown of a deployment. It depends on all binders of the deployment,
+ * so it is stopped before any of them, once the whole deployment is going away.
+ */
+public class FastShutdown
+{
+   private final NamespaceShutdown namespaceShutdown;
+
+   public FastShutdown(NamespaceShutdown namespaceShutdown)
+   {
+      if (namespaceShutdown == null)
+         throw new IllegalArgumentException("Null namespace shutdown");
+
+      this.namespaceShutdown = namespaceShutdown;
+   }
+
+   public void start()
+   {
+      namespaceShutdown.cancel();
+   }
+
+   public void stop()
+   {
+      namespaceShutdown.begin();
+   }
+}
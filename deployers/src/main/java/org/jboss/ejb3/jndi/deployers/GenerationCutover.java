@@ -0,0 +1,53 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright (c) 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @authors tag. See the copyright.txt in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.deployers;
+
+import org.jboss.ejb3.jndi.binder.impl.GenerationSwitch;
+
+/**
+ * Cuts a deployment over to the generation its binders staged, once all of them are started.
+ * Stopping it retires the generation after a grace period, unless a redeploy cuts over first.
+ */
+public class GenerationCutover
+{
+   private final GenerationSwitch generationSwitch;
+   private final long gracePeriod;
+
+   public GenerationCutover(GenerationSwitch generationSwitch, long gracePeriod)
+   {
+      if (generationSwitch == null)
+         throw new IllegalArgumentException("Null generation switch");
+
+      this.generationSwitch = generationSwitch;
+      this.gracePeriod = gracePeriod;
+   }
+
+   public void start()
+   {
+      generationSwitch.cutover();
+   }
+
+   public void stop()
+   {
+      generationSwitch.retire(gracePeriod);
+   }
+}
@@ -53,7 +53,8 @@ public class LazyProxyFactory extends AbstractLazyProxyFactory
       {
          linkName = nameResolver.resolveJNDIName(sessionBean, className);
       }
-      return lazyLinkRef(className, linkName);
+      // every lookup of a stateful bean must create a new session
+      return lazyLinkRef(view.getBusinessInterface(), linkName, sessionBean.isStateful());
    }
    
    private String getJNDINameForEjb2xSessionBean(JBossSessionBeanMetaData sessionBean, View view)
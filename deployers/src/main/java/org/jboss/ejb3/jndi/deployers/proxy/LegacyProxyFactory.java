@@ -21,7 +21,9 @@
  */
 package org.jboss.ejb3.jndi.deployers.proxy;
 
+import org.jboss.ejb3.jndi.binder.impl.LinkFlattener;
 import org.jboss.ejb3.jndi.binder.impl.View;
+import org.jboss.ejb3.jndi.binder.spi.BindListener;
 import org.jboss.ejb3.jndi.binder.spi.ProxyFactory;
 import org.jboss.ejb3.jndi.deployers.metadata.SessionBeanTypeWrapper;
 import org.jboss.metadata.ejb.jboss.InvokerBindingMetaData;
@@ -34,23 +36,75 @@ import javax.naming.LinkRef;
 /**
  * @author <a href="mailto:cdewolf@redhat.com">Carlo de Wolf</a>
  */
-public class LegacyProxyFactory implements ProxyFactory
+public class LegacyProxyFactory implements ProxyFactory, BindListener
 {
    private JNDIPolicyBasedSessionBean31JNDINameResolver nameResolver = new JNDIPolicyBasedSessionBean31JNDINameResolver();
+   private BindListener warmup;
+   private LinkFlattener flattener;
 
    @Override
    public Object produce(View view)
    {
       SessionBeanTypeWrapper beanType = (SessionBeanTypeWrapper) view.getMetadata();
       JBossSessionBeanMetaData sessionBean = beanType.getSessionBeanMetaData();
+      String jndiName;
       if (!sessionBean.getJBossMetaData().isEJB3x())
       {
-         String jndiName = this.getJNDINameForEjb2xSessionBean(sessionBean, view);
-         return new LinkRef(jndiName);
+         jndiName = this.getJNDINameForEjb2xSessionBean(sessionBean, view);
+      }
+      else
+      {
+         jndiName = nameResolver.resolveJNDIName(sessionBean, view.getBusinessInterface().getName());
+      }
+      // every lookup of a stateful bean must create a new session
+      if (flattener != null && !sessionBean.isStateful())
+      {
+         return flattener.flatten(jndiName);
       }
-      String jndiName = nameResolver.resolveJNDIName(sessionBean, view.getBusinessInterface().getName());
       return new LinkRef(jndiName);
    }
+
+   public boolean isFlattenLinks()
+   {
+      return flattener != null;
+   }
+
+   /**
+    * Bind the target of the link, resolved at bind time, instead of a link ref.
+    * Stateful beans always get a link ref.
+    *
+    * @param flattenLinks true to flatten links
+    */
+   public void setFlattenLinks(boolean flattenLinks)
+   {
+      if (flattenLinks == isFlattenLinks())
+         return;
+      this.flattener = flattenLinks ? new LinkFlattener() : null;
+   }
+
+   /**
+    * Hand the bound link ref to the warm-up, if there is one. Stateful beans
+    * are not warmed up, looking them up would create a session nobody uses.
+    */
+   public void bound(View view, Object obj)
+   {
+      if (warmup == null)
+         return;
+      SessionBeanTypeWrapper beanType = (SessionBeanTypeWrapper) view.getMetadata();
+      if (beanType.getSessionBeanMetaData().isStateful())
+         return;
+      warmup.bound(view, obj);
+   }
+
+   public BindListener getWarmup()
+   {
+      return warmup;
+   }
+
+   public void setWarmup(BindListener warmup)
+   {
+      this.warmup = warmup;
+   }
    
    private String getJNDINameForEjb2xSessionBean(JBossSessionBeanMetaData sessionBean, View view)
    {
@@ -0,0 +1,42 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.deployers.resolver;
+
+import java.util.Collection;
+
+/**
+ * An {@link EJBBinderResolver} which can also resolve a batch of references at once.
+ *
+ * @version $Revision: $
+ */
+public interface BatchEJBBinderResolver extends EJBBinderResolver
+{
+
+   /**
+    * Resolves a batch of references, each within the unit which owns it. A reference
+    * which fails does not stop the others, its error is part of the outcome.
+    * 
+    * @param references The references, for instance all of a unit or a whole deployment
+    * @return the results and errors of all references
+    */
+   public EJBBinderResolutionResults resolveAll(Collection<EJBReference> references);
+}
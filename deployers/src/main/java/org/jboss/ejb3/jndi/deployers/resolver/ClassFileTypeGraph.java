@@ -0,0 +1,224 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.deployers.resolver;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javassist.bytecode.ClassFile;
+
+/**
+ * The supertypes of the classes visible to a class loader, read from their class files
+ * instead of loading the classes.
+ *
+ * <p>
+ *   Only when a class file is not available as a resource, the class is loaded to get its supertypes.
+ *   The full supertype closure of a class is kept as well, so an assignability check is a single lookup.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class ClassFileTypeGraph
+{
+   private static final Map<ClassLoader, ClassFileTypeGraph> graphs = new WeakHashMap<ClassLoader, ClassFileTypeGraph>();
+
+   private static final String[] NONE = new String[0];
+
+   /**
+    * The graph is the value of a weak key, so it must not keep the class loader alive
+    */
+   private final WeakReference<ClassLoader> loader;
+
+   private final ConcurrentMap<String, String[]> supertypes = new ConcurrentHashMap<String, String[]>();
+
+   private final ConcurrentMap<String, Set<String>> closures = new ConcurrentHashMap<String, Set<String>>();
+
+   private ClassFileTypeGraph(ClassLoader loader)
+   {
+      this.loader = new WeakReference<ClassLoader>(loader);
+   }
+
+   /**
+    * Returns the graph of a class loader.
+    *
+    * @param loader The class loader
+    * @return the graph
+    */
+   public static ClassFileTypeGraph getGraph(ClassLoader loader)
+   {
+      synchronized (graphs)
+      {
+         ClassFileTypeGraph graph = graphs.get(loader);
+         if (graph == null)
+         {
+            graph = new ClassFileTypeGraph(loader);
+            graphs.put(loader, graph);
+         }
+         return graph;
+      }
+   }
+
+   /**
+    * Returns true if a type is the same as, or a supertype of, another type. Same as
+    * {@link Class#isAssignableFrom(Class)} for reference types, but by name.
+    *
+    * @param type The fully qualified name of the type
+    * @param from The fully qualified name of the other type
+    * @return true if type is assignable from the other type
+    */
+   public boolean isAssignableFrom(String type, String from)
+   {
+      if (type.equals(from) || type.equals(Object.class.getName()))
+      {
+         return true;
+      }
+      return this.getClosure(from).contains(type);
+   }
+
+   /**
+    * Returns a class and all of its supertypes, direct or not.
+    *
+    * @param className The fully qualified class name
+    * @return the names of the class and its supertypes
+    */
+   public Set<String> getClosure(String className)
+   {
+      Set<String> closure = this.closures.get(className);
+      if (closure == null)
+      {
+         Set<String> result = new HashSet<String>();
+         result.add(className);
+         for (String supertype : this.getSupertypes(className))
+         {
+            result.addAll(this.getClosure(supertype));
+         }
+         closure = Collections.unmodifiableSet(result);
+         this.closures.put(className, closure);
+      }
+      return closure;
+   }
+
+   /**
+    * Returns the direct superclass and interfaces of a class.
+    *
+    * @param className The fully qualified class name
+    * @return the names of the direct supertypes
+    */
+   public String[] getSupertypes(String className)
+   {
+      String[] result = this.supertypes.get(className);
+      if (result == null)
+      {
+         result = this.readSupertypes(className);
+         this.supertypes.put(className, result);
+      }
+      return result;
+   }
+
+   private String[] readSupertypes(String className)
+   {
+      if (className.equals(Object.class.getName()))
+      {
+         return NONE;
+      }
+      ClassLoader cl = this.getLoader();
+      InputStream in = cl.getResourceAsStream(className.replace('.', '/') + ".class");
+      if (in == null)
+      {
+         return this.loadSupertypes(className, cl);
+      }
+      try
+      {
+         ClassFile classFile = new ClassFile(new DataInputStream(new BufferedInputStream(in)));
+         String superclass = classFile.getSuperclass();
+         String[] interfaces = classFile.getInterfaces();
+         if (superclass == null)
+         {
+            return interfaces;
+         }
+         String[] result = new String[interfaces.length + 1];
+         result[0] = superclass;
+         System.arraycopy(interfaces, 0, result, 1, interfaces.length);
+         return result;
+      }
+      catch (IOException ioe)
+      {
+         // not a readable class file, let the class loader sort it out
+         return this.loadSupertypes(className, cl);
+      }
+      finally
+      {
+         try
+         {
+            in.close();
+         }
+         catch (IOException ignore)
+         {
+         }
+      }
+   }
+
+   private String[] loadSupertypes(String className, ClassLoader cl)
+   {
+      Class<?> type;
+      try
+      {
+         type = cl.loadClass(className);
+      }
+      catch (ClassNotFoundException cnfe)
+      {
+         throw new RuntimeException(cnfe);
+      }
+      List<String> result = new ArrayList<String>();
+      if (type.getSuperclass() != null)
+      {
+         result.add(type.getSuperclass().getName());
+      }
+      for (Class<?> intf : type.getInterfaces())
+      {
+         result.add(intf.getName());
+      }
+      return result.toArray(new String[result.size()]);
+   }
+
+   private ClassLoader getLoader()
+   {
+      ClassLoader cl = this.loader.get();
+      if (cl == null)
+      {
+         throw new IllegalStateException("Class loader has been collected");
+      }
+      return cl;
+   }
+}
@@ -0,0 +1,164 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.deployers.resolver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The outcome of resolving a batch of {@link EJBReference}s: a result for every reference
+ * which was resolved, and the error for every reference which failed.
+ *
+ * @version $Revision: $
+ */
+public class EJBBinderResolutionResults
+{
+
+   private final List<EJBReference> references;
+
+   private final ConcurrentMap<EJBReference, EJBBinderResolutionResult> results = new ConcurrentHashMap<EJBReference, EJBBinderResolutionResult>();
+
+   private final ConcurrentMap<EJBReference, RuntimeException> errors = new ConcurrentHashMap<EJBReference, RuntimeException>();
+
+   public EJBBinderResolutionResults(List<EJBReference> references)
+   {
+      if (references == null)
+      {
+         throw new IllegalArgumentException("Null references");
+      }
+      this.references = Collections.unmodifiableList(new ArrayList<EJBReference>(references));
+   }
+
+   void resolved(EJBReference reference, EJBBinderResolutionResult result)
+   {
+      if (result != null)
+      {
+         this.results.put(reference, result);
+      }
+   }
+
+   void failed(EJBReference reference, RuntimeException error)
+   {
+      this.errors.put(reference, error);
+   }
+
+   /**
+    * Returns all references of the batch, in the order they were passed.
+    * 
+    * @return the references
+    */
+   public List<EJBReference> getReferences()
+   {
+      return this.references;
+   }
+
+   /**
+    * Returns the result of a reference.
+    * 
+    * @param reference The reference
+    * @return the result, or null if the reference could not be resolved or failed
+    */
+   public EJBBinderResolutionResult getResult(EJBReference reference)
+   {
+      return this.results.get(reference);
+   }
+
+   /**
+    * Returns the results of the resolved references, in the order they were passed.
+    * 
+    * @return the results by reference
+    */
+   public Map<EJBReference, EJBBinderResolutionResult> getResults()
+   {
+      Map<EJBReference, EJBBinderResolutionResult> ordered = new LinkedHashMap<EJBReference, EJBBinderResolutionResult>();
+      for (EJBReference reference : this.references)
+      {
+         EJBBinderResolutionResult result = this.results.get(reference);
+         if (result != null)
+         {
+            ordered.put(reference, result);
+         }
+      }
+      return ordered;
+   }
+
+   /**
+    * Returns the references which could not be resolved, without an error.
+    * 
+    * @return the unresolved references
+    */
+   public List<EJBReference> getUnresolved()
+   {
+      List<EJBReference> unresolved = new ArrayList<EJBReference>();
+      for (EJBReference reference : this.references)
+      {
+         if (!this.results.containsKey(reference) && !this.errors.containsKey(reference))
+         {
+            unresolved.add(reference);
+         }
+      }
+      return unresolved;
+   }
+
+   /**
+    * Returns the errors of the failed references, in the order they were passed.
+    * 
+    * @return the errors by reference
+    */
+   public Map<EJBReference, RuntimeException> getErrors()
+   {
+      Map<EJBReference, RuntimeException> ordered = new LinkedHashMap<EJBReference, RuntimeException>();
+      for (EJBReference reference : this.references)
+      {
+         RuntimeException error = this.errors.get(reference);
+         if (error != null)
+         {
+            ordered.put(reference, error);
+         }
+      }
+      return ordered;
+   }
+
+   public boolean hasErrors()
+   {
+      return !this.errors.isEmpty();
+   }
+
+   @Override
+   public String toString()
+   {
+      StringBuilder sb = new StringBuilder(this.getClass().getSimpleName());
+      sb.append("[references=");
+      sb.append(this.references.size());
+      sb.append(" ,resolved=");
+      sb.append(this.results.size());
+      sb.append(" ,errors=");
+      sb.append(this.getErrors().values());
+      sb.append("]");
+      return sb.toString();
+   }
+}
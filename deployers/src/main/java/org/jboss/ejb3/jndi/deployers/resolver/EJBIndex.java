@@ -0,0 +1,505 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.deployers.resolver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.metadata.ejb.jboss.JBossEnterpriseBeanMetaData;
+import org.jboss.metadata.ejb.jboss.JBossEnterpriseBeansMetaData;
+import org.jboss.metadata.ejb.jboss.JBossEntityBeanMetaData;
+import org.jboss.metadata.ejb.jboss.JBossMetaData;
+import org.jboss.metadata.ejb.jboss.JBossSessionBean31MetaData;
+import org.jboss.metadata.ejb.jboss.JBossSessionBeanMetaData;
+import org.jboss.reloaded.naming.deployers.javaee.JavaEEComponentInformer;
+
+/**
+ * An index of the enterprise beans in a top level deployment, by ejb-name, by module/ejb-name
+ * and by the names of the interfaces they expose.
+ *
+ * <p>
+ *   Deployment units are added as they are deployed, but their beans are only indexed once the
+ *   index is queried, so the metadata can still be processed in between. Nothing is class loaded,
+ *   so interfaces match by name only.
+ * </p>
+ * <p>
+ *   The beans can also be looked up by any supertype of the interfaces they expose. That part of
+ *   the index is built from the class files of the exposed interfaces, on the first such lookup.
+ * </p>
+ * <p>
+ *   Once the index is {@link #prepare() prepared}, queries only take a read lock, so they run in
+ *   parallel until the next unit is added or removed.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class EJBIndex
+{
+   private final JavaEEComponentInformer componentInformer;
+
+   private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+   /**
+    * Whether all units added so far have been indexed by {@link #prepare()}
+    */
+   private volatile boolean prepared;
+
+   /**
+    * The units which have been added, but not yet indexed
+    */
+   private final Set<DeploymentUnit> pending = new LinkedHashSet<DeploymentUnit>();
+
+   private final Map<String, List<Candidate>> byEjbName = new HashMap<String, List<Candidate>>();
+
+   private final Map<String, List<Candidate>> byModuleAndEjbName = new HashMap<String, List<Candidate>>();
+
+   private final Map<String, List<Candidate>> byInterface = new HashMap<String, List<Candidate>>();
+
+   /**
+    * The candidates which are indexed by interface, but not yet by supertype
+    */
+   private final List<Candidate> supertypesPending = new ArrayList<Candidate>();
+
+   private final Map<String, List<Candidate>> bySupertype = new HashMap<String, List<Candidate>>();
+
+   /**
+    * The candidates of which the supertypes could not be determined, the resolver has to scan while there are any
+    * of these, or of the candidates still pending
+    */
+   private final List<Candidate> supertypesIncomplete = new ArrayList<Candidate>();
+
+   public EJBIndex(JavaEEComponentInformer componentInformer)
+   {
+      if (componentInformer == null)
+         throw new IllegalArgumentException("Null component informer");
+
+      this.componentInformer = componentInformer;
+   }
+
+   /**
+    * Returns the metadata of the enterprise beans in a unit, or null if it has none.
+    *
+    * @param du The deployment unit
+    * @return the metadata or null
+    */
+   static JBossMetaData getMetaData(DeploymentUnit du)
+   {
+      // TODO: It's a bit too much to add an dependency on jboss-ejb3-common just for this constant attachment name.
+      // So this hardcoding. 
+      JBossMetaData metadata = du.getAttachment("processed." + JBossMetaData.class.getName(), JBossMetaData.class);
+      if (metadata == null)
+      {
+         // try to get just by the type. The Ejb3MetadataProcessingDeployer skips EJB2.x
+         // beans. Hence the attachment by name "processed." + JBossMetaData.class.getName()
+         // will not be available for EJB2.x beans. So just try by type:
+         metadata = du.getAttachment(JBossMetaData.class);
+      }
+      return metadata;
+   }
+
+   /**
+    * Add a unit, its beans are indexed on the next query.
+    *
+    * @param unit The deployment unit
+    */
+   public void add(DeploymentUnit unit)
+   {
+      if (unit == null)
+         throw new IllegalArgumentException("Null unit");
+
+      this.lock.writeLock().lock();
+      try
+      {
+         this.prepared = false;
+         this.pending.add(unit);
+      }
+      finally
+      {
+         this.lock.writeLock().unlock();
+      }
+   }
+
+   /**
+    * Remove a unit and its beans.
+    *
+    * @param unit The deployment unit
+    */
+   public void remove(DeploymentUnit unit)
+   {
+      if (unit == null)
+         throw new IllegalArgumentException("Null unit");
+
+      this.lock.writeLock().lock();
+      try
+      {
+         this.prepared = false;
+         this.pending.remove(unit);
+         remove(this.byEjbName, unit);
+         remove(this.byModuleAndEjbName, unit);
+         remove(this.byInterface, unit);
+         remove(this.bySupertype, unit);
+         remove(this.supertypesPending, unit);
+         remove(this.supertypesIncomplete, unit);
+      }
+      finally
+      {
+         this.lock.writeLock().unlock();
+      }
+   }
+
+   /**
+    * Index all units added so far, including the supertypes of their interfaces. Queries
+    * after this only read the index, as long as no unit is added.
+    */
+   public void prepare()
+   {
+      this.lock.writeLock().lock();
+      try
+      {
+         this.indexPending();
+         this.indexSupertypes();
+         this.prepared = true;
+      }
+      finally
+      {
+         this.lock.writeLock().unlock();
+      }
+   }
+
+   /**
+    * Returns the lock for a query, the write lock as long as the index may have to be completed.
+    */
+   private Lock lockQuery()
+   {
+      if (this.prepared)
+      {
+         Lock read = this.lock.readLock();
+         read.lock();
+         // adding or removing a unit takes the write lock, so it stays prepared from here
+         if (this.prepared)
+         {
+            return read;
+         }
+         read.unlock();
+      }
+      Lock write = this.lock.writeLock();
+      write.lock();
+      return write;
+   }
+
+   /**
+    * Returns the beans with an ejb-name, grouped by unit.
+    *
+    * @param ejbName The ejb-name
+    * @return the candidate beans per unit, empty if there are none
+    */
+   public Map<DeploymentUnit, List<JBossEnterpriseBeanMetaData>> getByEjbName(String ejbName)
+   {
+      Lock query = this.lockQuery();
+      try
+      {
+         return get(this.byEjbName, ejbName);
+      }
+      finally
+      {
+         query.unlock();
+      }
+   }
+
+   /**
+    * Returns the beans with an ejb-name in a module, grouped by unit.
+    *
+    * @param moduleName The module name
+    * @param ejbName The ejb-name
+    * @return the candidate beans per unit, empty if there are none
+    */
+   public Map<DeploymentUnit, List<JBossEnterpriseBeanMetaData>> getByModuleAndEjbName(String moduleName, String ejbName)
+   {
+      Lock query = this.lockQuery();
+      try
+      {
+         return get(this.byModuleAndEjbName, moduleName + "/" + ejbName);
+      }
+      finally
+      {
+         query.unlock();
+      }
+   }
+
+   /**
+    * Returns the beans which expose an interface, or bean class in case of a no-interface view, grouped by unit.
+    *
+    * @param interfaceName The fully qualified interface name
+    * @return the candidate beans per unit, empty if there are none
+    */
+   public Map<DeploymentUnit, List<JBossEnterpriseBeanMetaData>> getByInterface(String interfaceName)
+   {
+      Lock query = this.lockQuery();
+      try
+      {
+         return get(this.byInterface, interfaceName);
+      }
+      finally
+      {
+         query.unlock();
+      }
+   }
+
+   /**
+    * Returns the beans which expose an interface that is, or extends, a type, grouped by unit.
+    *
+    * @param typeName The fully qualified name of the type
+    * @return the candidate beans per unit, or null if the supertypes of some interfaces could not be determined (yet)
+    */
+   public Map<DeploymentUnit, List<JBossEnterpriseBeanMetaData>> getBySupertype(String typeName)
+   {
+      Lock query = this.lockQuery();
+      try
+      {
+         this.indexSupertypes();
+         // units without a class loader yet are not in the supertype index, a partial answer would be cached as final
+         if (!this.supertypesIncomplete.isEmpty() || !this.supertypesPending.isEmpty())
+         {
+            return null;
+         }
+         return get(this.bySupertype, typeName);
+      }
+      finally
+      {
+         query.unlock();
+      }
+   }
+
+   private void indexSupertypes()
+   {
+      if (this.prepared)
+      {
+         return;
+      }
+      this.indexPending();
+      Iterator<Candidate> it = this.supertypesPending.iterator();
+      while (it.hasNext())
+      {
+         Candidate candidate = it.next();
+         ClassLoader cl = candidate.unit.getClassLoader();
+         // no class loader yet, try again on the next query
+         if (cl == null)
+         {
+            continue;
+         }
+         it.remove();
+         ClassFileTypeGraph graph = ClassFileTypeGraph.getGraph(cl);
+         Set<String> supertypes = new LinkedHashSet<String>();
+         try
+         {
+            for (String interfaceName : candidate.interfaces)
+            {
+               // a no-interface view only matches its own bean class
+               if (interfaceName.equals(candidate.bean.getEjbClass()))
+               {
+                  supertypes.add(interfaceName);
+                  continue;
+               }
+               supertypes.addAll(graph.getClosure(interfaceName));
+            }
+         }
+         catch (RuntimeException e)
+         {
+            // let the resolver scan, so it reports the interface that cannot be found
+            this.supertypesIncomplete.add(candidate);
+            continue;
+         }
+         for (String supertype : supertypes)
+         {
+            put(this.bySupertype, supertype, candidate);
+         }
+      }
+   }
+
+   private Map<DeploymentUnit, List<JBossEnterpriseBeanMetaData>> get(Map<String, List<Candidate>> index, String key)
+   {
+      this.indexPending();
+      Map<DeploymentUnit, List<JBossEnterpriseBeanMetaData>> result = new LinkedHashMap<DeploymentUnit, List<JBossEnterpriseBeanMetaData>>();
+      List<Candidate> candidates = index.get(key);
+      if (candidates == null)
+      {
+         return result;
+      }
+      for (Candidate candidate : candidates)
+      {
+         List<JBossEnterpriseBeanMetaData> beans = result.get(candidate.unit);
+         if (beans == null)
+         {
+            beans = new ArrayList<JBossEnterpriseBeanMetaData>();
+            result.put(candidate.unit, beans);
+         }
+         beans.add(candidate.bean);
+      }
+      return result;
+   }
+
+   private void indexPending()
+   {
+      // prepared, so this only reads
+      if (this.prepared)
+      {
+         return;
+      }
+      Iterator<DeploymentUnit> it = this.pending.iterator();
+      while (it.hasNext())
+      {
+         DeploymentUnit unit = it.next();
+         JBossMetaData metadata = getMetaData(unit);
+         // not processed yet, try again on the next query
+         if (metadata == null)
+         {
+            continue;
+         }
+         it.remove();
+         JBossEnterpriseBeansMetaData beans = metadata.getEnterpriseBeans();
+         if (beans == null)
+         {
+            continue;
+         }
+         String moduleName = this.componentInformer.getModuleName(unit);
+         for (JBossEnterpriseBeanMetaData bean : beans)
+         {
+            // We only work with Session beans, @Service beans and (EJB2.x) entity beans.
+            if (!bean.isSession() && !bean.isService() && !bean.isEntity())
+            {
+               continue;
+            }
+            Set<String> interfaceNames = getInterfaceNames(bean);
+            Candidate candidate = new Candidate(unit, bean, interfaceNames.toArray(new String[interfaceNames.size()]));
+            put(this.byEjbName, bean.getEjbName(), candidate);
+            put(this.byModuleAndEjbName, moduleName + "/" + bean.getEjbName(), candidate);
+            for (String interfaceName : interfaceNames)
+            {
+               put(this.byInterface, interfaceName, candidate);
+            }
+            this.supertypesPending.add(candidate);
+         }
+      }
+   }
+
+   private static Set<String> getInterfaceNames(JBossEnterpriseBeanMetaData bean)
+   {
+      Set<String> names = new LinkedHashSet<String>();
+      if (bean instanceof JBossSessionBeanMetaData)
+      {
+         JBossSessionBeanMetaData sessionBean = (JBossSessionBeanMetaData) bean;
+         if (sessionBean.getBusinessLocals() != null)
+         {
+            names.addAll(sessionBean.getBusinessLocals());
+         }
+         if (sessionBean.getBusinessRemotes() != null)
+         {
+            names.addAll(sessionBean.getBusinessRemotes());
+         }
+         names.add(sessionBean.getHome());
+         names.add(sessionBean.getLocalHome());
+         if (sessionBean instanceof JBossSessionBean31MetaData && ((JBossSessionBean31MetaData) sessionBean).isNoInterfaceBean())
+         {
+            names.add(sessionBean.getEjbClass());
+         }
+      }
+      else if (bean instanceof JBossEntityBeanMetaData)
+      {
+         JBossEntityBeanMetaData entityBean = (JBossEntityBeanMetaData) bean;
+         names.add(entityBean.getLocal());
+         names.add(entityBean.getRemote());
+         names.add(entityBean.getHome());
+         names.add(entityBean.getLocalHome());
+      }
+      names.remove(null);
+      return names;
+   }
+
+   private static void put(Map<String, List<Candidate>> index, String key, Candidate candidate)
+   {
+      List<Candidate> candidates = index.get(key);
+      if (candidates == null)
+      {
+         candidates = new ArrayList<Candidate>(1);
+         index.put(key, candidates);
+      }
+      candidates.add(candidate);
+   }
+
+   private static void remove(Map<String, List<Candidate>> index, DeploymentUnit unit)
+   {
+      Iterator<List<Candidate>> lists = index.values().iterator();
+      while (lists.hasNext())
+      {
+         List<Candidate> candidates = lists.next();
+         remove(candidates, unit);
+         if (candidates.isEmpty())
+         {
+            lists.remove();
+         }
+      }
+   }
+
+   private static void remove(List<Candidate> candidates, DeploymentUnit unit)
+   {
+      Iterator<Candidate> it = candidates.iterator();
+      while (it.hasNext())
+      {
+         if (it.next().unit == unit)
+         {
+            it.remove();
+         }
+      }
+   }
+
+   /**
+    * A bean in the unit it is deployed in
+    */
+   private static class Candidate
+   {
+      private final DeploymentUnit unit;
+
+      private final JBossEnterpriseBeanMetaData bean;
+
+      /**
+       * The exposed interfaces, or bean class in case of a no-interface view
+       */
+      private final String[] interfaces;
+
+      private Candidate(DeploymentUnit unit, JBossEnterpriseBeanMetaData bean, String[] interfaces)
+      {
+         this.unit = unit;
+         this.bean = bean;
+         this.interfaces = interfaces;
+      }
+   }
+}
@@ -0,0 +1,181 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.deployers.resolver;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+
+/**
+ * The results of resolving {@link EJBReference}s within a top level deployment, including
+ * the references which could not be resolved.
+ *
+ * <p>
+ *   A result depends on all units of the deployment, so all results are dropped
+ *   as soon as a unit is added or removed.
+ * </p>
+ *
+ * @version $Revision: $
+ */
+public class EJBResolutionCache
+{
+   /**
+    * The result of a reference which could not be resolved
+    */
+   public static final EJBBinderResolutionResult UNRESOLVED = new EJBBinderResolutionResult(null, null, null, null);
+
+   private final ConcurrentMap<Key, EJBBinderResolutionResult> results = new ConcurrentHashMap<Key, EJBBinderResolutionResult>();
+
+   /**
+    * Incremented on every clear, so a result which was resolved before is not kept
+    */
+   private volatile int generation;
+
+   /**
+    * Returns the key of a reference resolved within a unit.
+    * 
+    * @param unit The unit the resolution starts in
+    * @param reference The reference
+    * @return the key
+    */
+   public static Object getKey(DeploymentUnit unit, EJBReference reference)
+   {
+      return new Key(unit, reference);
+   }
+
+   /**
+    * Returns the result for the key.
+    * 
+    * @param key The key
+    * @return the result, {@link #UNRESOLVED} if the reference could not be resolved or null if it is not known
+    */
+   public EJBBinderResolutionResult get(Object key)
+   {
+      return this.results.get(key);
+   }
+
+   /**
+    * Returns the generation to pass to {@link #put(Object, EJBBinderResolutionResult, int)}, taken before resolving.
+    * 
+    * @return the generation
+    */
+   public int getGeneration()
+   {
+      return this.generation;
+   }
+
+   /**
+    * Keep a result, unless the results were dropped since it was resolved.
+    * 
+    * @param key The key
+    * @param result The result, null for an unresolved reference
+    * @param generation The generation from before resolving
+    */
+   public synchronized void put(Object key, EJBBinderResolutionResult result, int generation)
+   {
+      if (generation != this.generation)
+      {
+         return;
+      }
+      this.results.put((Key) key, result == null ? UNRESOLVED : result);
+   }
+
+   /**
+    * Drop all results.
+    */
+   public synchronized void clear()
+   {
+      this.generation++;
+      this.results.clear();
+   }
+
+   public int size()
+   {
+      return this.results.size();
+   }
+
+   /**
+    * A reference normalized to what the resolution depends on
+    */
+   private static class Key
+   {
+      private final DeploymentUnit unit;
+
+      /**
+       * The owner of the reference, only relevant for a relative path in the ejbLink
+       */
+      private final DeploymentUnit owner;
+
+      private final String beanName;
+
+      private final String beanInterface;
+
+      private final int hashCode;
+
+      private Key(DeploymentUnit unit, EJBReference reference)
+      {
+         this.unit = unit;
+         this.beanName = normalize(reference.getBeanName());
+         this.beanInterface = normalize(reference.getBeanInterface());
+         this.owner = this.beanName != null && this.beanName.indexOf('#') != -1 ? reference.getOwnerDeploymentUnit() : null;
+         int hash = unit.hashCode();
+         hash = 31 * hash + (this.owner != null ? this.owner.hashCode() : 0);
+         hash = 31 * hash + (this.beanName != null ? this.beanName.hashCode() : 0);
+         hash = 31 * hash + (this.beanInterface != null ? this.beanInterface.hashCode() : 0);
+         this.hashCode = hash;
+      }
+
+      private static String normalize(String s)
+      {
+         // blank is the same as not specified
+         return s == null || s.trim().isEmpty() ? null : s;
+      }
+
+      private static boolean equals(Object a, Object b)
+      {
+         return a == null ? b == null : a.equals(b);
+      }
+
+      @Override
+      public boolean equals(Object obj)
+      {
+         if (this == obj)
+         {
+            return true;
+         }
+         if (!(obj instanceof Key))
+         {
+            return false;
+         }
+         Key other = (Key) obj;
+         return this.hashCode == other.hashCode && this.unit.equals(other.unit) && equals(this.owner, other.owner)
+               && equals(this.beanName, other.beanName) && equals(this.beanInterface, other.beanInterface);
+      }
+
+      @Override
+      public int hashCode()
+      {
+         return this.hashCode;
+      }
+   }
+}
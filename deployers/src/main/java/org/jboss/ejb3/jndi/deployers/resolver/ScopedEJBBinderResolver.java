@@ -25,8 +25,16 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jboss.deployers.structure.spi.DeploymentUnit;
 import org.jboss.ejb3.jndi.deployers.EJBBinderIdentifierGenerator;
@@ -35,7 +43,6 @@ import org.jboss.metadata.ear.jboss.JBossAppMetaData;
 import org.jboss.metadata.ejb.jboss.InvokerBindingMetaData;
 import org.jboss.metadata.ejb.jboss.InvokerBindingsMetaData;
 import org.jboss.metadata.ejb.jboss.JBossEnterpriseBeanMetaData;
-import org.jboss.metadata.ejb.jboss.JBossEnterpriseBeansMetaData;
 import org.jboss.metadata.ejb.jboss.JBossEntityBeanMetaData;
 import org.jboss.metadata.ejb.jboss.JBossMetaData;
 import org.jboss.metadata.ejb.jboss.JBossSessionBean31MetaData;
@@ -50,7 +57,7 @@ import org.jboss.reloaded.naming.deployers.javaee.JavaEEComponentInformer;
  * @author Jaikiran Pai
  * @version $Revision: $
  */
-public class ScopedEJBBinderResolver implements EJBBinderResolver
+public class ScopedEJBBinderResolver implements BatchEJBBinderResolver
 {
 
    /**
@@ -59,12 +66,149 @@ public class ScopedEJBBinderResolver implements EJBBinderResolver
    private static Logger logger = Logger.getLogger(ScopedEJBBinderResolver.class);
    
    private JavaEEComponentInformer componentInformer;
+
+   /**
+    * The number of threads to resolve a batch of references on, 0 to resolve in the calling thread
+    */
+   private int parallelism;
+
+   private ExecutorService executor;
    
    public ScopedEJBBinderResolver(JavaEEComponentInformer componentInformer)
    {
       this.componentInformer = componentInformer;
    }
 
+   /**
+    * Resolve batches of references in parallel.
+    * 
+    * @param threads The number of threads shared by all batches, 0 to resolve in the calling thread
+    */
+   public void setParallelism(int threads)
+   {
+      if (threads < 0)
+      {
+         throw new IllegalArgumentException("Threads cannot be negative: " + threads);
+      }
+      this.parallelism = threads;
+   }
+
+   public synchronized void stop()
+   {
+      if (this.executor != null)
+      {
+         this.executor.shutdown();
+         this.executor = null;
+      }
+   }
+
+   private synchronized ExecutorService getExecutor()
+   {
+      if (this.parallelism == 0)
+      {
+         return null;
+      }
+      if (this.executor == null)
+      {
+         this.executor = Executors.newFixedThreadPool(this.parallelism, new ThreadFactory()
+         {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r)
+            {
+               Thread thread = new Thread(r, "EJBBinderResolver-" + count.incrementAndGet());
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+      }
+      return this.executor;
+   }
+
+   /**
+    * Resolves all references, each within its owner {@link DeploymentUnit}. The indexes of the deployments
+    * involved are completed first, so the threads only share a read-only view of the metadata.
+    * 
+    * @param references The references
+    * @return the results and errors of all references
+    */
+   @Override
+   public EJBBinderResolutionResults resolveAll(Collection<EJBReference> references)
+   {
+      if (references == null)
+      {
+         throw new IllegalArgumentException("Null references");
+      }
+      final List<EJBReference> batch = new ArrayList<EJBReference>(references);
+      final EJBBinderResolutionResults results = new EJBBinderResolutionResults(batch);
+      Set<DeploymentUnit> topLevels = new HashSet<DeploymentUnit>();
+      for (EJBReference reference : batch)
+      {
+         DeploymentUnit topLevel = reference.getOwnerDeploymentUnit().getTopLevel();
+         if (topLevels.add(topLevel))
+         {
+            EJBIndex index = topLevel.getAttachment(EJBIndex.class);
+            if (index != null)
+            {
+               index.prepare();
+            }
+         }
+      }
+
+      ExecutorService executor = this.getExecutor();
+      final AtomicInteger next = new AtomicInteger();
+      Runnable worker = new Runnable()
+      {
+         public void run()
+         {
+            int i;
+            while ((i = next.getAndIncrement()) < batch.size())
+            {
+               resolveInto(results, batch.get(i));
+            }
+         }
+      };
+      int tasks = executor == null ? 0 : Math.min(this.parallelism, batch.size()) - 1;
+      List<Future<?>> futures = new ArrayList<Future<?>>(tasks);
+      for (int i = 0; i < tasks; i++)
+      {
+         futures.add(executor.submit(worker));
+      }
+      // the calling thread takes its share too
+      worker.run();
+      for (Future<?> future : futures)
+      {
+         try
+         {
+            future.get();
+         }
+         catch (InterruptedException e)
+         {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while resolving " + batch.size() + " references", e);
+         }
+         catch (ExecutionException e)
+         {
+            // the worker records every failure itself
+            throw new RuntimeException(e.getCause());
+         }
+      }
+      logger.debug("Resolved " + results);
+      return results;
+   }
+
+   private void resolveInto(EJBBinderResolutionResults results, EJBReference reference)
+   {
+      try
+      {
+         results.resolved(reference, this.resolveEJBBinder(reference.getOwnerDeploymentUnit(), reference));
+      }
+      catch (RuntimeException e)
+      {
+         results.failed(reference, e);
+      }
+   }
+
 
    /**
     * This method first tries to resolve the passed {@link EjbReference} in the passed <code>du</code>.
@@ -86,7 +230,72 @@ public class ScopedEJBBinderResolver implements EJBBinderResolver
    @Override
    public EJBBinderResolutionResult resolveEJBBinder(DeploymentUnit unit, EJBReference ejbRef)
    {
-      return this.resolveEJBBinder(unit, new HashSet<DeploymentUnit>(), ejbRef);
+      EJBResolutionCache cache = unit.getTopLevel().getAttachment(EJBResolutionCache.class);
+      if (cache == null)
+      {
+         return this.resolveUncached(unit, ejbRef);
+      }
+      Object key = EJBResolutionCache.getKey(unit, ejbRef);
+      EJBBinderResolutionResult result = cache.get(key);
+      if (result != null)
+      {
+         return result == EJBResolutionCache.UNRESOLVED ? null : result;
+      }
+      int generation = cache.getGeneration();
+      result = this.resolveUncached(unit, ejbRef);
+      // unresolved references are kept too, so a fall back doesn't scan again
+      cache.put(key, result, generation);
+      return result;
+   }
+
+   private EJBBinderResolutionResult resolveUncached(DeploymentUnit unit, EJBReference ejbRef)
+   {
+      EJBIndex index = unit.getTopLevel().getAttachment(EJBIndex.class);
+      if (index != null)
+      {
+         // only scan the units with candidate beans, in the same order
+         String ejbLink = ejbRef.getBeanName();
+         if (ejbLink != null && !ejbLink.trim().isEmpty())
+         {
+            // a bean name only ever matches the beans with that ejb-name 
+            return this.resolveEJBBinder(unit, new HashSet<DeploymentUnit>(), ejbRef, this.getCandidates(index, ejbLink));
+         }
+         String beanInterface = ejbRef.getBeanInterface();
+         if (beanInterface != null)
+         {
+            // the beans exposing the interface itself or a subtype of it, so every unit is
+            // checked for both at once, as a scan would
+            Map<DeploymentUnit, List<JBossEnterpriseBeanMetaData>> candidates = index.getBySupertype(beanInterface);
+            if (candidates != null)
+            {
+               return this.resolveEJBBinder(unit, new HashSet<DeploymentUnit>(), ejbRef, candidates);
+            }
+         }
+         // the supertypes are not known for all beans, so scan all
+      }
+      return this.resolveEJBBinder(unit, new HashSet<DeploymentUnit>(), ejbRef, null);
+   }
+
+   /**
+    * Returns the candidate beans for an ejbLink, grouped by unit.
+    * 
+    * @param index The index of the top level deployment
+    * @param ejbLink The ejbLink, which is validated while matching the candidates
+    * @return the candidate beans per unit
+    */
+   private Map<DeploymentUnit, List<JBossEnterpriseBeanMetaData>> getCandidates(EJBIndex index, String ejbLink)
+   {
+      int indexOfHash = ejbLink.indexOf("#");
+      if (indexOfHash != -1)
+      {
+         return index.getByEjbName(ejbLink.substring(indexOfHash + 1));
+      }
+      int indexOfForwardSlash = ejbLink.indexOf("/");
+      if (indexOfForwardSlash != -1)
+      {
+         return index.getByModuleAndEjbName(ejbLink.substring(0, indexOfForwardSlash), ejbLink.substring(indexOfForwardSlash + 1));
+      }
+      return index.getByEjbName(ejbLink);
    }
    
    /**
@@ -103,13 +312,15 @@ public class ScopedEJBBinderResolver implements EJBBinderResolver
     * @param du The deployment unit within which the {@link EjbReference} will be resolved
     * @param alreadyScannedDUs The {@link DeploymentUnit}s which have already been scanned for resolving the {@link EjbReference}
     * @param reference The {@link EjbReference} which is being resolved
+    * @param candidates The candidate beans per {@link DeploymentUnit}, null to consider all beans
     * @return Returns the jndi-name resolved out the {@link EjbReference}. If the jndi-name cannot be resolved, then this
     *           method returns null.
     */
-   private EJBBinderResolutionResult resolveEJBBinder(DeploymentUnit du, Collection<DeploymentUnit> alreadyScannedDUs, EJBReference reference)
+   private EJBBinderResolutionResult resolveEJBBinder(DeploymentUnit du, Collection<DeploymentUnit> alreadyScannedDUs, EJBReference reference,
+         Map<DeploymentUnit, List<JBossEnterpriseBeanMetaData>> candidates)
    {
       // first find in the passed DU
-      EJBBinderResolutionResult binderResoultionResult = findBinder(du, reference);
+      EJBBinderResolutionResult binderResoultionResult = findBinder(du, reference, candidates);
       // found, just return it
       if (binderResoultionResult != null)
       {
@@ -136,7 +347,7 @@ public class ScopedEJBBinderResolver implements EJBBinderResolver
                continue;
             }
             // try resolving in this child DU
-            binderResoultionResult = this.resolveEJBBinder(child, alreadyScannedDUs, reference);
+            binderResoultionResult = this.resolveEJBBinder(child, alreadyScannedDUs, reference, candidates);
             // found in this child DU (or its nested child), return the jndi name
             if (binderResoultionResult != null)
             {
@@ -154,36 +365,40 @@ public class ScopedEJBBinderResolver implements EJBBinderResolver
       DeploymentUnit parent = du.getParent();
       if (parent != null)
       {
-         return this.resolveEJBBinder(parent, alreadyScannedDUs, reference);
+         return this.resolveEJBBinder(parent, alreadyScannedDUs, reference, candidates);
       }
       // couldn't resolve in the entire DU hierarchy, return null
       return null;
    }
 
-   private EJBBinderResolutionResult findBinder(DeploymentUnit du, EJBReference reference)
+   private EJBBinderResolutionResult findBinder(DeploymentUnit du, EJBReference reference, Map<DeploymentUnit, List<JBossEnterpriseBeanMetaData>> candidates)
    {
-      // TODO: It's a bit too much to add an dependency on jboss-ejb3-common just for this constant attachment name.
-      // So this hardcoding. 
-      JBossMetaData metadata = du.getAttachment("processed." + JBossMetaData.class.getName(), JBossMetaData.class);
-      if (metadata == null)
-      {
-         // try to get just by the type. The Ejb3MetadataProcessingDeployer skips EJB2.x
-         // beans. Hence the attachment by name "processed." + JBossMetaData.class.getName()
-         // will not be available for EJB2.x beans. So just try by type:
-         metadata = du.getAttachment(JBossMetaData.class);
+      Iterable<JBossEnterpriseBeanMetaData> beans;
+      if (candidates != null)
+      {
+         // only the candidates of this DU can match
+         beans = candidates.get(du);
+         if (beans == null)
+         {
+            return null;
+         }
+         logger.debug("Resolving reference for " + reference + " in candidates " + beans);
+      }
+      else
+      {
+         JBossMetaData metadata = EJBIndex.getMetaData(du);
          if (metadata == null)
          {
             // no metadata found
             return null;
          }
+         logger.debug("Resolving reference for " + reference + " in " + metadata);
+         // Get all Enterprise Beans contained in the metadata
+         beans = metadata.getEnterpriseBeans();
       }
       // Initialize
-      logger.debug("Resolving reference for " + reference + " in " + metadata);
       List<JBossEnterpriseBeanMetaData> matches = new ArrayList<JBossEnterpriseBeanMetaData>();
 
-      // Get all Enterprise Beans contained in the metadata
-      JBossEnterpriseBeansMetaData beans = metadata.getEnterpriseBeans();
-
       String resolvedInterface = null;
       // Loop through all EJBs
       for (JBossEnterpriseBeanMetaData bean : beans)
@@ -215,6 +430,11 @@ public class ScopedEJBBinderResolver implements EJBBinderResolver
       }
 
       JBossEnterpriseBeanMetaData resolvedBeanMetaData = matches.get(0);
+      // the final match is the only interface which gets loaded
+      if (!resolvedInterface.equals(resolvedBeanMetaData.getEjbClass()))
+      {
+         this.loadClass(resolvedInterface, du.getClassLoader());
+      }
       // generate JNDI name
       String jndiName = this.getJNDIName(du, resolvedBeanMetaData, resolvedInterface);
       String binderName = null;
@@ -262,10 +482,9 @@ public class ScopedEJBBinderResolver implements EJBBinderResolver
          }
       }
        
-      ClassLoader cl = unit.getClassLoader();
       // Now get the interfaces that are directly eligible on the bean (i.e. business local, business remote,
       // remote home, local home, local, remote interfaces).
-      Set<Class<?>> directlyEligibleInterfacesOnBean = this.getExposedInterfaces(beanMetaData, cl);
+      Set<String> directlyEligibleInterfacesOnBean = this.getExposedInterfaces(beanMetaData);
 
       // Get the requested bean interface 
       String requestedInterface = reference.getBeanInterface();
@@ -273,50 +492,49 @@ public class ScopedEJBBinderResolver implements EJBBinderResolver
       {
          throw new RuntimeException("beanInterface missing from ejb reference: " + reference);
       }
-      Class<?> type = this.loadClass(requestedInterface, cl);
 
       // If the directly eligible interfaces on the bean match the requested
       // interface, then we have a match.
-      if (directlyEligibleInterfacesOnBean.contains(type))
+      if (directlyEligibleInterfacesOnBean.contains(requestedInterface))
       {
-         return type.getName();
+         return requestedInterface;
       }
-      Class<?> resolvedInterface = null;
-      boolean matchFound = false;
-      for (Class<?> exposedIntf : directlyEligibleInterfacesOnBean)
+      // match by the class files, nothing is loaded until the match is final
+      ClassFileTypeGraph graph = ClassFileTypeGraph.getGraph(unit.getClassLoader());
+      String resolvedInterface = null;
+      for (String exposedIntf : directlyEligibleInterfacesOnBean)
       {
-         if (type.isAssignableFrom(exposedIntf))
+         if (graph.isAssignableFrom(requestedInterface, exposedIntf))
          {
-            if (!matchFound)
+            if (resolvedInterface == null)
             {
                resolvedInterface = exposedIntf;
-               matchFound = true;
                continue;
             }
-            throw new RuntimeException("beanInterface specified, " + type + ", is not unique within EJB " + beanMetaData.getEjbName());
+            throw new RuntimeException("beanInterface specified, " + requestedInterface + ", is not unique within EJB " + beanMetaData.getEjbName());
          }
       }
-      return resolvedInterface == null ? null : resolvedInterface.getName();
+      return resolvedInterface;
       
    }
 
-   private Set<Class<?>> getExposedInterfaces(JBossEnterpriseBeanMetaData enterpriseBean, ClassLoader cl)
+   private Set<String> getExposedInterfaces(JBossEnterpriseBeanMetaData enterpriseBean)
    {
       if ((enterpriseBean.isSession() || enterpriseBean.isService()) && (enterpriseBean instanceof JBossSessionBeanMetaData))
       {
-         return this.getSessionBeanExposedInterfaces((JBossSessionBeanMetaData) enterpriseBean, cl);
+         return this.getSessionBeanExposedInterfaces((JBossSessionBeanMetaData) enterpriseBean);
       }
       if (enterpriseBean.isEntity() && (enterpriseBean instanceof JBossEntityBeanMetaData))
       {
-         return this.getEntityBeanExposedInterfaces((JBossEntityBeanMetaData) enterpriseBean, cl); 
+         return this.getEntityBeanExposedInterfaces((JBossEntityBeanMetaData) enterpriseBean); 
       }
       // return an empty set
-      return new HashSet<Class<?>>();
+      return new LinkedHashSet<String>();
    }
 
-   private Set<Class<?>> getSessionBeanExposedInterfaces(JBossSessionBeanMetaData smd, ClassLoader cl)
+   private Set<String> getSessionBeanExposedInterfaces(JBossSessionBeanMetaData smd)
    {
-      Set<Class<?>> interfaces = new HashSet<Class<?>>();
+      Set<String> interfaces = new LinkedHashSet<String>();
 
       // Add all eligible bean interfaces
       BusinessLocalsMetaData businessLocals = smd.getBusinessLocals();
@@ -331,7 +549,7 @@ public class ScopedEJBBinderResolver implements EJBBinderResolver
             {
                continue;
             }
-            interfaces.add(this.loadClass(busLocal, cl));   
+            interfaces.add(busLocal);   
          }
          
       }
@@ -343,50 +561,50 @@ public class ScopedEJBBinderResolver implements EJBBinderResolver
             {
                continue;
             }
-            interfaces.add(this.loadClass(busRemote, cl));   
+            interfaces.add(busRemote);   
          }
 
       }
       if (home != null && home.trim().length() > 0)
       {
-         interfaces.add(this.loadClass(home, cl));
+         interfaces.add(home);
       }
       if (localHome != null && localHome.trim().length() > 0)
       {
-         interfaces.add(this.loadClass(localHome, cl));
+         interfaces.add(localHome);
       }
 
       return interfaces;
    }
 
-   private Set<Class<?>> getEntityBeanExposedInterfaces(JBossEntityBeanMetaData entityBean, ClassLoader cl)
+   private Set<String> getEntityBeanExposedInterfaces(JBossEntityBeanMetaData entityBean)
    {
-      Set<Class<?>> interfaces = new HashSet<Class<?>>();
+      Set<String> interfaces = new LinkedHashSet<String>();
 
       // Add all eligible bean interfaces
       // local
       String local = entityBean.getLocal();
       if (local != null && !local.trim().isEmpty())
       {
-         interfaces.add(this.loadClass(local, cl));
+         interfaces.add(local);
       }
       // remote
       String remote = entityBean.getRemote();
       if (remote != null && remote.trim().isEmpty())
       {
-         interfaces.add(this.loadClass(remote, cl));
+         interfaces.add(remote);
       }
       // remote home
       String home = entityBean.getHome();
       if (home != null && !home.trim().isEmpty())
       {
-         interfaces.add(this.loadClass(home, cl));
+         interfaces.add(home);
       }
       // local home
       String localHome = entityBean.getLocalHome();
       if (localHome != null && !localHome.trim().isEmpty())
       {
-         interfaces.add(this.loadClass(localHome, cl));
+         interfaces.add(localHome);
       }
 
       return interfaces;
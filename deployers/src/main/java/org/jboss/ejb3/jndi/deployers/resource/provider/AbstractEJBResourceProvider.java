@@ -25,6 +25,7 @@ import java.util.Collection;
 import java.util.HashSet;
 
 import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.ejb3.jndi.binder.impl.LinkFlattener;
 import org.jboss.ejb3.jndi.deployers.resolver.EJBBinderResolutionResult;
 import org.jboss.ejb3.jndi.deployers.resolver.EJBBinderResolver;
 import org.jboss.metadata.ejb.jboss.JBossEnterpriseBeanMetaData;
@@ -47,6 +48,11 @@ public abstract class AbstractEJBResourceProvider
     */
    protected EJBBinderResolver ejbBinderResolver;
 
+   /**
+    * (Optional) flattener for the links of the provided resources
+    */
+   protected LinkFlattener flattener;
+
    /**
     * 
     * @param ejbBinderResolver
@@ -56,6 +62,26 @@ public abstract class AbstractEJBResourceProvider
       this.ejbBinderResolver = ejbBinderResolver;
    }
 
+   public boolean isFlattenLinks()
+   {
+      return this.flattener != null;
+   }
+
+   /**
+    * Let the provided EJB references skip the link bound under the global jndi name of
+    * the target EJB, which saves a link hop on every lookup through the ENC.
+    * 
+    * @param flattenLinks true to flatten links
+    */
+   public void setFlattenLinks(boolean flattenLinks)
+   {
+      if (flattenLinks == this.isFlattenLinks())
+      {
+         return;
+      }
+      this.flattener = flattenLinks ? new LinkFlattener() : null;
+   }
+
    protected Resource provideJndiNameBasedResource(DeploymentUnit unit, JBossJavaEEResourceType jbossJavaEEResourceRef)
    {
       // first check lookup name
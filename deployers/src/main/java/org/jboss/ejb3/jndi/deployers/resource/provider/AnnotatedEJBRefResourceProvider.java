@@ -103,7 +103,7 @@ public class AnnotatedEJBRefResourceProvider extends AbstractEJBResourceProvider
       // get the invocation dependencies 
       Collection<?> invocationDependencies = this.getInvocationDependencies(result);
       // return the resource
-      return new EJBRefResource(result.getJNDIName(), result.getEJBBinderName(), invocationDependencies);
+      return new EJBRefResource(result.getJNDIName(), result.getEJBBinderName(), invocationDependencies, this.flattener);
    }
 
    /**
@@ -26,6 +26,7 @@ import java.util.Collection;
 import javax.naming.LinkRef;
 
 import org.jboss.ejb3.jndi.binder.EJBBinder;
+import org.jboss.ejb3.jndi.binder.impl.LinkFlattener;
 import org.jboss.switchboard.spi.Resource;
 
 /**
@@ -62,6 +63,11 @@ public class EJBRefResource implements Resource
     * looked up or invoked upon
     */
    private Collection<?> invocationDependencies;
+
+   /**
+    * (Optional) flattener which takes the hop through the global jndi name out of the link
+    */
+   private LinkFlattener flattener;
    
    /**
     * Creates a {@link EJBRefResource}
@@ -83,6 +89,23 @@ public class EJBRefResource implements Resource
       this.invocationDependencies = invocationDependencies;
    }
 
+   /**
+    * Creates a {@link EJBRefResource} whose target skips the link bound under the jndi name,
+    * once the {@link EJBBinder} has bound it
+    * @param ejbJndiName The target jndi name 
+    * @param binderName The (optional) MC bean name of the {@link EJBBinder}
+    * @param invocationDependencies The dependencies which have to be resolved before this {@link EJBRefResource} can be 
+    *                           looked up or invoked upon
+    * @param flattener The (optional) flattener, null to always link to the jndi name
+    * 
+    * @throws IllegalArgumentException If <code>ejbJndiName</code> is null or an empty string
+    */
+   public EJBRefResource(String ejbJndiName, String binderName, Collection<?> invocationDependencies, LinkFlattener flattener)
+   {
+      this(ejbJndiName, binderName, invocationDependencies);
+      this.flattener = flattener;
+   }
+
    /**
     * Returns the dependency (if any)
     */
@@ -93,11 +116,17 @@ public class EJBRefResource implements Resource
    }
 
    /**
-    * Returns the {@link LinkRef} to the target jndi name of the EJB reference
+    * Returns the {@link LinkRef} to the target jndi name of the EJB reference. With a flattener
+    * and a bound jndi name, returns what the {@link EJBBinder} bound there instead, or the
+    * link it bound.
     */
    @Override
    public Object getTarget()
    {
+      if (this.flattener != null && this.ejbBinderName != null)
+      {
+         return this.flattener.shorten(this.linkRef.getLinkName());
+      }
       return this.linkRef;
    }
 
@@ -109,7 +109,7 @@ public class EJBRefResourceProvider extends AbstractEJBResourceProvider implemen
       // get the invocation dependencies 
       Collection<?> invocationDependencies = this.getInvocationDependencies(result);
       // return the resource
-      return new EJBRefResource(result.getJNDIName(), result.getEJBBinderName(), invocationDependencies);
+      return new EJBRefResource(result.getJNDIName(), result.getEJBBinderName(), invocationDependencies, this.flattener);
    }
 
    /**
@@ -0,0 +1,158 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.deployers.resolver;
+
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.metadata.ejb.jboss.JBossEnterpriseBeanMetaData;
+import org.jboss.metadata.ejb.jboss.JBossEnterpriseBeansMetaData;
+import org.jboss.metadata.ejb.jboss.JBossMetaData;
+import org.jboss.metadata.ejb.jboss.JBossSessionBean31MetaData;
+import org.jboss.metadata.ejb.spec.BusinessLocalsMetaData;
+import org.jboss.reloaded.naming.deployers.javaee.JavaEEComponentInformer;
+import org.junit.Before;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Mocked deployments of session beans, of which the interfaces are the types below.
+ */
+public abstract class AbstractResolverTestCase
+{
+   public interface Base
+   {
+   }
+
+   public interface Sub extends Base
+   {
+   }
+
+   public interface Other
+   {
+   }
+
+   public abstract static class SubImpl implements Sub, Other
+   {
+   }
+
+   protected JavaEEComponentInformer informer;
+
+   @Before
+   public void before()
+   {
+      informer = mock(JavaEEComponentInformer.class);
+   }
+
+   protected static DeploymentUnit createTopLevel(String name)
+   {
+      DeploymentUnit unit = mock(DeploymentUnit.class);
+      doReturn(unit).when(unit).getTopLevel();
+      doReturn(true).when(unit).isTopLevel();
+      doReturn(new ArrayList<DeploymentUnit>()).when(unit).getChildren();
+      doReturn(name).when(unit).getSimpleName();
+      doReturn("vfs:///" + name).when(unit).getName();
+      doReturn("").when(unit).getRelativePath();
+      doReturn(AbstractResolverTestCase.class.getClassLoader()).when(unit).getClassLoader();
+      return unit;
+   }
+
+   /**
+    * Creates a module in a top level deployment, with the beans if there are any.
+    */
+   protected DeploymentUnit createUnit(DeploymentUnit parent, String name, JBossEnterpriseBeanMetaData... beans)
+   {
+      DeploymentUnit topLevel = parent.getTopLevel();
+      DeploymentUnit unit = mock(DeploymentUnit.class);
+      doReturn(topLevel).when(unit).getTopLevel();
+      doReturn(parent).when(unit).getParent();
+      doReturn(new ArrayList<DeploymentUnit>()).when(unit).getChildren();
+      doReturn(name).when(unit).getSimpleName();
+      doReturn(parent.getName() + "/" + name).when(unit).getName();
+      doReturn(name).when(unit).getRelativePath();
+      doReturn(AbstractResolverTestCase.class.getClassLoader()).when(unit).getClassLoader();
+      parent.getChildren().add(unit);
+      doReturn(name.substring(0, name.lastIndexOf('.'))).when(informer).getModuleName(unit);
+      if (beans.length > 0)
+         setBeans(unit, beans);
+      return unit;
+   }
+
+   /**
+    * Attaches the metadata of the beans, as if the unit has been processed.
+    */
+   protected static void setBeans(DeploymentUnit unit, JBossEnterpriseBeanMetaData... beans)
+   {
+      final List<JBossEnterpriseBeanMetaData> list = Arrays.asList(beans);
+      JBossEnterpriseBeansMetaData enterpriseBeans = mock(JBossEnterpriseBeansMetaData.class);
+      doAnswer(new Answer<Object>()
+      {
+         public Object answer(InvocationOnMock invocation)
+         {
+            return list.iterator();
+         }
+      }).when(enterpriseBeans).iterator();
+      JBossMetaData metaData = mock(JBossMetaData.class);
+      doReturn(true).when(metaData).isEJB31();
+      doReturn(enterpriseBeans).when(metaData).getEnterpriseBeans();
+      for (JBossEnterpriseBeanMetaData bean : beans)
+         doReturn(metaData).when(bean).getJBossMetaData();
+      doReturn(metaData).when(unit).getAttachment(JBossMetaData.class);
+   }
+
+   /**
+    * Attaches a new index and resolution cache to a top level deployment.
+    */
+   protected EJBIndex createIndex(DeploymentUnit topLevel)
+   {
+      EJBIndex index = new EJBIndex(informer);
+      doReturn(index).when(topLevel).getAttachment(EJBIndex.class);
+      doReturn(new EJBResolutionCache()).when(topLevel).getAttachment(EJBResolutionCache.class);
+      return index;
+   }
+
+   protected static JBossSessionBean31MetaData createSessionBean(String ejbName, String... businessLocals)
+   {
+      JBossSessionBean31MetaData bean = mock(JBossSessionBean31MetaData.class);
+      doReturn(true).when(bean).isSession();
+      doReturn(ejbName).when(bean).getEjbName();
+      doReturn("org.acme." + ejbName).when(bean).getEjbClass();
+      BusinessLocalsMetaData locals = new BusinessLocalsMetaData();
+      locals.addAll(Arrays.asList(businessLocals));
+      doReturn(locals).when(bean).getBusinessLocals();
+      return bean;
+   }
+
+   protected static JBossSessionBean31MetaData createNoInterfaceBean(String ejbName, Class<?> beanClass)
+   {
+      JBossSessionBean31MetaData bean = createSessionBean(ejbName);
+      doReturn(beanClass.getName()).when(bean).getEjbClass();
+      doReturn(true).when(bean).isNoInterfaceBean();
+      return bean;
+   }
+}
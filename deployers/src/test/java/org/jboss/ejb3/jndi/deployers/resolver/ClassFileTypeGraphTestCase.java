@@ -0,0 +1,120 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.deployers.resolver;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.InputStream;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+public class ClassFileTypeGraphTestCase extends AbstractResolverTestCase
+{
+   /**
+    * Hides the class files, so the classes have to be loaded
+    */
+   private static class NoResourcesClassLoader extends ClassLoader
+   {
+      private NoResourcesClassLoader()
+      {
+         super(ClassFileTypeGraphTestCase.class.getClassLoader());
+      }
+
+      @Override
+      public InputStream getResourceAsStream(String name)
+      {
+         return null;
+      }
+   }
+
+   private static String name(Class<?> type)
+   {
+      return type.getName();
+   }
+
+   @Test
+   public void testSupertypes()
+   {
+      ClassFileTypeGraph graph = ClassFileTypeGraph.getGraph(ClassFileTypeGraphTestCase.class.getClassLoader());
+      assertEquals(asList(name(Object.class), name(Sub.class), name(Other.class)), asList(graph.getSupertypes(name(SubImpl.class))));
+      assertEquals(asList(name(Object.class), name(Base.class)), asList(graph.getSupertypes(name(Sub.class))));
+      assertEquals(0, graph.getSupertypes(name(Object.class)).length);
+   }
+
+   @Test
+   public void testClosure()
+   {
+      ClassFileTypeGraph graph = ClassFileTypeGraph.getGraph(ClassFileTypeGraphTestCase.class.getClassLoader());
+      assertEquals(new HashSet<String>(asList(name(SubImpl.class), name(Sub.class), name(Base.class), name(Other.class), name(Object.class))),
+            graph.getClosure(name(SubImpl.class)));
+   }
+
+   @Test
+   public void testIsAssignableFrom()
+   {
+      ClassFileTypeGraph graph = ClassFileTypeGraph.getGraph(ClassFileTypeGraphTestCase.class.getClassLoader());
+      assertTrue(graph.isAssignableFrom(name(Base.class), name(Sub.class)));
+      assertTrue(graph.isAssignableFrom(name(Base.class), name(SubImpl.class)));
+      assertTrue(graph.isAssignableFrom(name(Sub.class), name(Sub.class)));
+      assertTrue(graph.isAssignableFrom(name(Object.class), name(Other.class)));
+      assertFalse(graph.isAssignableFrom(name(Sub.class), name(Base.class)));
+      assertFalse(graph.isAssignableFrom(name(Other.class), name(Sub.class)));
+   }
+
+   @Test
+   public void testWithoutClassFiles()
+   {
+      ClassFileTypeGraph graph = ClassFileTypeGraph.getGraph(new NoResourcesClassLoader());
+      assertEquals(asList(name(Object.class), name(Sub.class), name(Other.class)), asList(graph.getSupertypes(name(SubImpl.class))));
+      assertTrue(graph.isAssignableFrom(name(Base.class), name(SubImpl.class)));
+   }
+
+   @Test
+   public void testUnknownClass()
+   {
+      ClassFileTypeGraph graph = ClassFileTypeGraph.getGraph(ClassFileTypeGraphTestCase.class.getClassLoader());
+      try
+      {
+         graph.getClosure("org.acme.Missing");
+         fail("Should have thrown RuntimeException");
+      }
+      catch (RuntimeException e)
+      {
+         assertTrue(e.getCause() instanceof ClassNotFoundException);
+      }
+   }
+
+   @Test
+   public void testGraphPerClassLoader()
+   {
+      ClassLoader loader = ClassFileTypeGraphTestCase.class.getClassLoader();
+      assertSame(ClassFileTypeGraph.getGraph(loader), ClassFileTypeGraph.getGraph(loader));
+      assertNotSame(ClassFileTypeGraph.getGraph(loader), ClassFileTypeGraph.getGraph(new NoResourcesClassLoader()));
+   }
+}
@@ -0,0 +1,182 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.deployers.resolver;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.metadata.ejb.jboss.JBossEnterpriseBeanMetaData;
+import org.jboss.metadata.ejb.jboss.JBossSessionBean31MetaData;
+import org.junit.Test;
+
+public class EJBIndexTestCase extends AbstractResolverTestCase
+{
+   @Test
+   public void testIndexedOnQuery()
+   {
+      DeploymentUnit ear = createTopLevel("test.ear");
+      DeploymentUnit jar = createUnit(ear, "test.jar");
+      EJBIndex index = new EJBIndex(informer);
+      index.add(jar);
+
+      // not processed yet
+      assertTrue(index.getByEjbName("TestBean").isEmpty());
+
+      JBossSessionBean31MetaData bean = createSessionBean("TestBean", Base.class.getName());
+      setBeans(jar, bean);
+      Map<DeploymentUnit, List<JBossEnterpriseBeanMetaData>> candidates = index.getByEjbName("TestBean");
+      assertEquals(singletonList(jar), asList(candidates.keySet().toArray()));
+      assertEquals(singletonList(bean), candidates.get(jar));
+   }
+
+   @Test
+   public void testByModuleAndEjbName()
+   {
+      DeploymentUnit ear = createTopLevel("test.ear");
+      JBossSessionBean31MetaData bean1 = createSessionBean("TestBean", Base.class.getName());
+      JBossSessionBean31MetaData bean2 = createSessionBean("TestBean", Base.class.getName());
+      DeploymentUnit jar1 = createUnit(ear, "one.jar", bean1);
+      DeploymentUnit jar2 = createUnit(ear, "two.jar", bean2);
+      EJBIndex index = new EJBIndex(informer);
+      index.add(jar1);
+      index.add(jar2);
+
+      assertEquals(2, index.getByEjbName("TestBean").size());
+      assertEquals(singletonList(bean2), index.getByModuleAndEjbName("two", "TestBean").get(jar2));
+      assertTrue(index.getByModuleAndEjbName("two", "OtherBean").isEmpty());
+   }
+
+   @Test
+   public void testByInterface()
+   {
+      DeploymentUnit ear = createTopLevel("test.ear");
+      JBossSessionBean31MetaData bean = createSessionBean("TestBean", Sub.class.getName());
+      JBossSessionBean31MetaData noInterfaceBean = createNoInterfaceBean("NoInterfaceBean", SubImpl.class);
+      DeploymentUnit jar = createUnit(ear, "test.jar", bean, noInterfaceBean);
+      EJBIndex index = new EJBIndex(informer);
+      index.add(jar);
+
+      assertEquals(singletonList(bean), index.getByInterface(Sub.class.getName()).get(jar));
+      assertEquals(singletonList(noInterfaceBean), index.getByInterface(SubImpl.class.getName()).get(jar));
+      // an exact match only
+      assertTrue(index.getByInterface(Base.class.getName()).isEmpty());
+   }
+
+   @Test
+   public void testBySupertype()
+   {
+      DeploymentUnit ear = createTopLevel("test.ear");
+      JBossSessionBean31MetaData subBean = createSessionBean("SubBean", Sub.class.getName());
+      JBossSessionBean31MetaData baseBean = createSessionBean("BaseBean", Base.class.getName());
+      JBossSessionBean31MetaData noInterfaceBean = createNoInterfaceBean("NoInterfaceBean", SubImpl.class);
+      DeploymentUnit jar1 = createUnit(ear, "one.jar", subBean, noInterfaceBean);
+      DeploymentUnit jar2 = createUnit(ear, "two.jar", baseBean);
+      EJBIndex index = new EJBIndex(informer);
+      index.add(jar1);
+      index.add(jar2);
+
+      Map<DeploymentUnit, List<JBossEnterpriseBeanMetaData>> candidates = index.getBySupertype(Base.class.getName());
+      assertEquals(asList(jar1, jar2), asList(candidates.keySet().toArray()));
+      assertEquals(singletonList(subBean), candidates.get(jar1));
+      assertEquals(singletonList(baseBean), candidates.get(jar2));
+      assertEquals(singletonList(subBean), index.getBySupertype(Sub.class.getName()).get(jar1));
+      // a no-interface view does not expose the interfaces of its bean class
+      assertTrue(index.getBySupertype(Other.class.getName()).isEmpty());
+      assertEquals(singletonList(noInterfaceBean), index.getBySupertype(SubImpl.class.getName()).get(jar1));
+   }
+
+   @Test
+   public void testSupertypesWithoutClassLoader()
+   {
+      DeploymentUnit ear = createTopLevel("test.ear");
+      DeploymentUnit jar = createUnit(ear, "test.jar", createSessionBean("TestBean", Sub.class.getName()));
+      doReturn(null).when(jar).getClassLoader();
+      EJBIndex index = new EJBIndex(informer);
+      index.add(jar);
+
+      // a partial answer would hide the bean
+      assertNull(index.getBySupertype(Base.class.getName()));
+
+      doReturn(EJBIndexTestCase.class.getClassLoader()).when(jar).getClassLoader();
+      assertEquals(1, index.getBySupertype(Base.class.getName()).size());
+   }
+
+   @Test
+   public void testSupertypesIncomplete()
+   {
+      DeploymentUnit ear = createTopLevel("test.ear");
+      DeploymentUnit jar1 = createUnit(ear, "one.jar", createSessionBean("TestBean", Sub.class.getName()));
+      DeploymentUnit jar2 = createUnit(ear, "two.jar", createSessionBean("MissingBean", "org.acme.Missing"));
+      EJBIndex index = new EJBIndex(informer);
+      index.add(jar1);
+      index.add(jar2);
+
+      assertNull(index.getBySupertype(Base.class.getName()));
+      // the exact interfaces are still known
+      assertEquals(1, index.getByInterface("org.acme.Missing").size());
+
+      index.remove(jar2);
+      assertEquals(1, index.getBySupertype(Base.class.getName()).size());
+   }
+
+   @Test
+   public void testRemove()
+   {
+      DeploymentUnit ear = createTopLevel("test.ear");
+      DeploymentUnit jar = createUnit(ear, "test.jar", createSessionBean("TestBean", Sub.class.getName()));
+      EJBIndex index = new EJBIndex(informer);
+      index.add(jar);
+      assertEquals(1, index.getBySupertype(Base.class.getName()).size());
+
+      index.remove(jar);
+      assertTrue(index.getByEjbName("TestBean").isEmpty());
+      assertTrue(index.getByModuleAndEjbName("test", "TestBean").isEmpty());
+      assertTrue(index.getByInterface(Sub.class.getName()).isEmpty());
+      assertTrue(index.getBySupertype(Base.class.getName()).isEmpty());
+   }
+
+   @Test
+   public void testAddAfterPrepare()
+   {
+      DeploymentUnit ear = createTopLevel("test.ear");
+      DeploymentUnit jar1 = createUnit(ear, "one.jar", createSessionBean("TestBean", Sub.class.getName()));
+      EJBIndex index = new EJBIndex(informer);
+      index.add(jar1);
+      index.prepare();
+      assertEquals(1, index.getBySupertype(Base.class.getName()).size());
+
+      DeploymentUnit jar2 = createUnit(ear, "two.jar", createSessionBean("TestBean", Base.class.getName()));
+      index.add(jar2);
+      Map<DeploymentUnit, List<JBossEnterpriseBeanMetaData>> candidates = index.getBySupertype(Base.class.getName());
+      assertNotNull(candidates.get(jar2));
+      assertEquals(2, index.getByEjbName("TestBean").size());
+   }
+}
@@ -0,0 +1,87 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.deployers.resolver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.junit.Test;
+
+public class EJBResolutionCacheTestCase extends AbstractResolverTestCase
+{
+   @Test
+   public void testKey()
+   {
+      DeploymentUnit ear = createTopLevel("test.ear");
+      DeploymentUnit jar1 = createUnit(ear, "one.jar");
+      DeploymentUnit jar2 = createUnit(ear, "two.jar");
+      String intf = Base.class.getName();
+
+      // blank is the same as not specified
+      assertEquals(EJBResolutionCache.getKey(jar1, new EJBReference(jar1, null, intf, null, null)),
+            EJBResolutionCache.getKey(jar1, new EJBReference(jar1, " ", intf, null, null)));
+      // the owner is only relevant for a relative path
+      assertEquals(EJBResolutionCache.getKey(jar1, new EJBReference(jar1, "TestBean", intf, null, null)),
+            EJBResolutionCache.getKey(jar1, new EJBReference(jar2, "TestBean", intf, null, null)));
+      assertFalse(EJBResolutionCache.getKey(jar1, new EJBReference(jar1, "one.jar#TestBean", intf, null, null)).equals(
+            EJBResolutionCache.getKey(jar1, new EJBReference(jar2, "one.jar#TestBean", intf, null, null))));
+      // the unit the resolution starts in always is
+      assertFalse(EJBResolutionCache.getKey(jar1, new EJBReference(jar1, null, intf, null, null)).equals(
+            EJBResolutionCache.getKey(jar2, new EJBReference(jar1, null, intf, null, null))));
+      assertFalse(EJBResolutionCache.getKey(jar1, new EJBReference(jar1, null, intf, null, null)).equals(
+            EJBResolutionCache.getKey(jar1, new EJBReference(jar1, null, Sub.class.getName(), null, null))));
+   }
+
+   @Test
+   public void testUnresolved()
+   {
+      DeploymentUnit ear = createTopLevel("test.ear");
+      DeploymentUnit jar = createUnit(ear, "test.jar");
+      EJBResolutionCache cache = new EJBResolutionCache();
+      Object key = EJBResolutionCache.getKey(jar, new EJBReference(jar, null, Base.class.getName(), null, null));
+
+      assertNull(cache.get(key));
+      cache.put(key, null, cache.getGeneration());
+      assertSame(EJBResolutionCache.UNRESOLVED, cache.get(key));
+      cache.clear();
+      assertNull(cache.get(key));
+   }
+
+   @Test
+   public void testResolvedBeforeClear()
+   {
+      DeploymentUnit ear = createTopLevel("test.ear");
+      DeploymentUnit jar = createUnit(ear, "test.jar");
+      EJBResolutionCache cache = new EJBResolutionCache();
+      Object key = EJBResolutionCache.getKey(jar, new EJBReference(jar, null, Base.class.getName(), null, null));
+
+      int generation = cache.getGeneration();
+      // a unit is added while resolving
+      cache.clear();
+      cache.put(key, new EJBBinderResolutionResult(null, "java:global/test/TestBean", null, null), generation);
+      assertNull(cache.get(key));
+      assertEquals(0, cache.size());
+   }
+}
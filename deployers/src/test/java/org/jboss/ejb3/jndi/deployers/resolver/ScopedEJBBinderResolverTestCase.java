@@ -0,0 +1,218 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * Copyright 2010, Red Hat Middleware LLC, and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.ejb3.jndi.deployers.resolver;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doReturn;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.deployers.structure.spi.DeploymentUnit;
+import org.jboss.metadata.ejb.jboss.JBossSessionBean31MetaData;
+import org.junit.Test;
+
+public class ScopedEJBBinderResolverTestCase extends AbstractResolverTestCase
+{
+   private static void assertResult(JBossSessionBean31MetaData bean, Class<?> resolvedInterface, String jndiName, EJBBinderResolutionResult result)
+   {
+      assertSame(bean, result.getBeanMetadata());
+      assertEquals(resolvedInterface.getName(), result.getResolvedBusinessInterface());
+      assertEquals(jndiName, result.getJNDIName());
+   }
+
+   /**
+    * Resolve without the index and cache of the top level deployment.
+    */
+   private static EJBBinderResolutionResult scan(ScopedEJBBinderResolver resolver, DeploymentUnit unit, EJBReference reference)
+   {
+      DeploymentUnit topLevel = unit.getTopLevel();
+      EJBIndex index = topLevel.getAttachment(EJBIndex.class);
+      EJBResolutionCache cache = topLevel.getAttachment(EJBResolutionCache.class);
+      doReturn(null).when(topLevel).getAttachment(EJBIndex.class);
+      doReturn(null).when(topLevel).getAttachment(EJBResolutionCache.class);
+      try
+      {
+         return resolver.resolveEJBBinder(unit, reference);
+      }
+      finally
+      {
+         doReturn(index).when(topLevel).getAttachment(EJBIndex.class);
+         doReturn(cache).when(topLevel).getAttachment(EJBResolutionCache.class);
+      }
+   }
+
+   /**
+    * The closest unit wins, even if a unit further away exposes the interface itself.
+    */
+   @Test
+   public void testSupertypeInOwnUnitBeforeExactInOtherUnit()
+   {
+      DeploymentUnit ear = createTopLevel("test.ear");
+      JBossSessionBean31MetaData subBean = createSessionBean("SubBean", Sub.class.getName());
+      JBossSessionBean31MetaData baseBean = createSessionBean("BaseBean", Base.class.getName());
+      DeploymentUnit jar1 = createUnit(ear, "one.jar", subBean);
+      DeploymentUnit jar2 = createUnit(ear, "two.jar", baseBean);
+      EJBIndex index = createIndex(ear);
+      index.add(jar1);
+      index.add(jar2);
+      ScopedEJBBinderResolver resolver = new ScopedEJBBinderResolver(informer);
+
+      EJBReference fromJar1 = new EJBReference(jar1, null, Base.class.getName(), null, null);
+      EJBBinderResolutionResult result = resolver.resolveEJBBinder(jar1, fromJar1);
+      assertResult(subBean, Sub.class, "java:global/one/SubBean!" + Sub.class.getName(), result);
+      assertEquals("jboss.ejb3:module=one,component=SubBean,service=EJBBinder", result.getEJBBinderName());
+      assertResult(subBean, Sub.class, result.getJNDIName(), scan(resolver, jar1, fromJar1));
+
+      EJBReference fromJar2 = new EJBReference(jar2, null, Base.class.getName(), null, null);
+      result = resolver.resolveEJBBinder(jar2, fromJar2);
+      assertResult(baseBean, Base.class, "java:global/two/BaseBean!" + Base.class.getName(), result);
+      assertResult(baseBean, Base.class, result.getJNDIName(), scan(resolver, jar2, fromJar2));
+
+      // the ear itself has no beans, so its first module wins
+      EJBReference fromEar = new EJBReference(ear, null, Base.class.getName(), null, null);
+      assertSame(subBean, resolver.resolveEJBBinder(ear, fromEar).getBeanMetadata());
+      assertSame(subBean, scan(resolver, ear, fromEar).getBeanMetadata());
+   }
+
+   /**
+    * Within a unit an exact match does not take precedence over a supertype match.
+    */
+   @Test
+   public void testSupertypeAndExactInSameUnit()
+   {
+      DeploymentUnit ear = createTopLevel("test.ear");
+      DeploymentUnit jar1 = createUnit(ear, "one.jar", createSessionBean("SubBean", Sub.class.getName()),
+            createSessionBean("BaseBean", Base.class.getName()));
+      EJBIndex index = createIndex(ear);
+      index.add(jar1);
+      ScopedEJBBinderResolver resolver = new ScopedEJBBinderResolver(informer);
+
+      EJBReference reference = new EJBReference(jar1, null, Base.class.getName(), null, null);
+      try
+      {
+         resolver.resolveEJBBinder(jar1, reference);
+         fail("Should have thrown RuntimeException");
+      }
+      catch (RuntimeException e)
+      {
+         assertTrue(e.getMessage(), e.getMessage().contains("more than one EJB"));
+      }
+      // an explicit bean name picks one
+      EJBReference linked = new EJBReference(jar1, "BaseBean", Base.class.getName(), null, null);
+      assertEquals(Base.class.getName(), resolver.resolveEJBBinder(jar1, linked).getResolvedBusinessInterface());
+   }
+
+   @Test
+   public void testUnresolvedUntilUnitAdded()
+   {
+      DeploymentUnit ear = createTopLevel("test.ear");
+      DeploymentUnit jar1 = createUnit(ear, "one.jar", createSessionBean("OtherBean", Other.class.getName()));
+      EJBIndex index = createIndex(ear);
+      EJBResolutionCache cache = ear.getAttachment(EJBResolutionCache.class);
+      index.add(jar1);
+      ScopedEJBBinderResolver resolver = new ScopedEJBBinderResolver(informer);
+
+      EJBReference reference = new EJBReference(jar1, null, Base.class.getName(), null, null);
+      assertNull(resolver.resolveEJBBinder(jar1, reference));
+      assertSame(EJBResolutionCache.UNRESOLVED, cache.get(EJBResolutionCache.getKey(jar1, reference)));
+
+      // as the EJBIndexDeployer does
+      JBossSessionBean31MetaData baseBean = createSessionBean("BaseBean", Base.class.getName());
+      DeploymentUnit jar2 = createUnit(ear, "two.jar", baseBean);
+      index.add(jar2);
+      cache.clear();
+      assertSame(baseBean, resolver.resolveEJBBinder(jar1, reference).getBeanMetadata());
+
+      index.remove(jar2);
+      ear.getChildren().remove(jar2);
+      cache.clear();
+      assertNull(resolver.resolveEJBBinder(jar1, reference));
+   }
+
+   @Test
+   public void testResolveAll()
+   {
+      resolveAll(0);
+   }
+
+   @Test
+   public void testResolveAllInParallel()
+   {
+      resolveAll(4);
+   }
+
+   private void resolveAll(int parallelism)
+   {
+      DeploymentUnit ear = createTopLevel("test.ear");
+      JBossSessionBean31MetaData subBean = createSessionBean("SubBean", Sub.class.getName());
+      JBossSessionBean31MetaData baseBean = createSessionBean("BaseBean", Base.class.getName());
+      DeploymentUnit jar1 = createUnit(ear, "one.jar", subBean);
+      DeploymentUnit jar2 = createUnit(ear, "two.jar", baseBean);
+      DeploymentUnit jar3 = createUnit(ear, "three.jar", createSessionBean("SubBean1", Sub.class.getName()),
+            createSessionBean("SubBean2", Sub.class.getName()));
+      EJBIndex index = createIndex(ear);
+      index.add(jar1);
+      index.add(jar2);
+      index.add(jar3);
+      ScopedEJBBinderResolver resolver = new ScopedEJBBinderResolver(informer);
+      resolver.setParallelism(parallelism);
+      try
+      {
+         EJBReference supertype = new EJBReference(jar1, null, Base.class.getName(), null, null);
+         EJBReference exact = new EJBReference(jar2, null, Base.class.getName(), null, null);
+         EJBReference linked = new EJBReference(jar1, "two/BaseBean", Base.class.getName(), null, null);
+         EJBReference unresolved = new EJBReference(jar1, null, Other.class.getName(), null, null);
+         EJBReference ambiguous = new EJBReference(jar3, null, Sub.class.getName(), null, null);
+         List<EJBReference> references = new ArrayList<EJBReference>(asList(supertype, exact, linked, unresolved, ambiguous));
+         // enough to keep all threads busy
+         for (int i = 0; i < 50; i++)
+            references.add(new EJBReference(i % 2 == 0 ? jar1 : jar2, null, Base.class.getName(), null, null));
+
+         EJBBinderResolutionResults results = resolver.resolveAll(references);
+
+         assertEquals(references, results.getReferences());
+         assertResult(subBean, Sub.class, "java:global/one/SubBean!" + Sub.class.getName(), results.getResult(supertype));
+         assertResult(baseBean, Base.class, "java:global/two/BaseBean!" + Base.class.getName(), results.getResult(exact));
+         assertResult(baseBean, Base.class, "java:global/two/BaseBean!" + Base.class.getName(), results.getResult(linked));
+         assertEquals(singletonList(unresolved), results.getUnresolved());
+         assertEquals(singletonList(ambiguous), new ArrayList<EJBReference>(results.getErrors().keySet()));
+         assertEquals(references.size() - 2, results.getResults().size());
+         for (int i = 5; i < references.size(); i++)
+            assertSame(i % 2 == 1 ? subBean : baseBean, results.getResult(references.get(i)).getBeanMetadata());
+
+         // the batch warmed up the cache
+         assertSame(results.getResult(supertype), resolver.resolveEJBBinder(jar1, supertype));
+         assertNull(resolver.resolveEJBBinder(jar1, unresolved));
+      }
+      finally
+      {
+         resolver.stop();
+      }
+   }
+}